@@ -0,0 +1,184 @@
+/**
+ * Copyright (C) 2012 Grameen Foundation
+Licensed under the Apache License, Version 2.0 (the "License"); you may not
+use this file except in compliance with the License. You may obtain a copy of
+the License at http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations under
+the License.
+ */
+
+package org.odk.collect.android.activities;
+
+import java.io.File;
+
+import org.odk.collect.android.listeners.DiagnosticsListener;
+import org.odk.collect.android.tasks.DiagnosticsTask;
+
+import android.app.Activity;
+import android.graphics.Typeface;
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.widget.ScrollView;
+import android.widget.TextView;
+import android.widget.Toast;
+import applab.client.surveys.R;
+
+/**
+ * Shows how quickly form entry responded to swipes, per form: the 50th, 95th and 99th percentile
+ * of the time from the gesture to the first frame of the next screen, and the questions that were
+ * slowest to reach. The recorded swipes can be exported to a CSV file for central analysis.
+ * <p>
+ * Not on any menu; long press "Manage Forms And Data" on the main menu to open it.
+ */
+public class DiagnosticsActivity extends Activity implements DiagnosticsListener {
+
+    private static final int MENU_EXPORT = Menu.FIRST;
+    private static final int MENU_CLEAR = Menu.FIRST + 1;
+
+    private static final String KEY_REPORT = "report";
+
+    private TextView mReport;
+    // the report shown, or null while it is being read
+    private String mReportText;
+
+    private DiagnosticsTask mDiagnosticsTask;
+
+
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setTitle(getString(R.string.app_name) + " > " + getString(R.string.diagnostics));
+
+        mReport = new TextView(this);
+        mReport.setTypeface(Typeface.MONOSPACE);
+        mReport.setPadding(6, 6, 6, 6);
+        ScrollView sv = new ScrollView(this);
+        sv.addView(mReport);
+        setContentView(sv);
+
+        // get the task if we've changed orientations. If it has finished, its result went to
+        // the old activity, so read the report again.
+        mDiagnosticsTask = (DiagnosticsTask) getLastNonConfigurationInstance();
+        if (isTaskRunning()) {
+            if (savedInstanceState != null) {
+                mReportText = savedInstanceState.getString(KEY_REPORT);
+            }
+            mReport.setText(mReportText != null ? mReportText : getString(R.string.please_wait));
+        } else {
+            runTask(DiagnosticsTask.REPORT);
+        }
+    }
+
+
+    /**
+     * Reads or writes the recorded swipes in the background.
+     */
+    private void runTask(int action) {
+        if (action != DiagnosticsTask.EXPORT) {
+            mReportText = null;
+            mReport.setText(getString(R.string.please_wait));
+        }
+        mDiagnosticsTask = new DiagnosticsTask();
+        mDiagnosticsTask.setDiagnosticsListener(this);
+        mDiagnosticsTask.execute(action);
+    }
+
+
+    private boolean isTaskRunning() {
+        return mDiagnosticsTask != null
+                && mDiagnosticsTask.getStatus() != AsyncTask.Status.FINISHED;
+    }
+
+
+    @Override
+    public void reportReady(String report) {
+        mReportText = report != null ? report : getString(R.string.diagnostics_empty);
+        mReport.setText(mReportText);
+    }
+
+
+    @Override
+    public void exportComplete(File f) {
+        if (f != null) {
+            Toast.makeText(this, getString(R.string.diagnostics_exported, f.getAbsolutePath()),
+                    Toast.LENGTH_LONG).show();
+        } else {
+            Toast.makeText(this, getString(R.string.no_sd_error), Toast.LENGTH_LONG).show();
+        }
+        if (mReportText == null) {
+            // recreated while exporting, so the report hasn't been read yet
+            runTask(DiagnosticsTask.REPORT);
+        }
+    }
+
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        super.onCreateOptionsMenu(menu);
+        menu.add(0, MENU_EXPORT, 0, getString(R.string.diagnostics_export)).setIcon(
+                android.R.drawable.ic_menu_save);
+        menu.add(0, MENU_CLEAR, 0, getString(R.string.diagnostics_clear)).setIcon(
+                android.R.drawable.ic_menu_delete);
+        return true;
+    }
+
+
+    @Override
+    public boolean onPrepareOptionsMenu(Menu menu) {
+        super.onPrepareOptionsMenu(menu);
+        // one task at a time, so a result is never dropped
+        menu.findItem(MENU_EXPORT).setEnabled(!isTaskRunning());
+        menu.findItem(MENU_CLEAR).setEnabled(!isTaskRunning());
+        return true;
+    }
+
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        switch (item.getItemId()) {
+            case MENU_EXPORT:
+                runTask(DiagnosticsTask.EXPORT);
+                return true;
+            case MENU_CLEAR:
+                runTask(DiagnosticsTask.CLEAR);
+                return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putString(KEY_REPORT, mReportText);
+    }
+
+
+    @Override
+    public Object onRetainNonConfigurationInstance() {
+        return mDiagnosticsTask;
+    }
+
+
+    @Override
+    protected void onResume() {
+        if (mDiagnosticsTask != null) {
+            mDiagnosticsTask.setDiagnosticsListener(this);
+        }
+        super.onResume();
+    }
+
+
+    @Override
+    protected void onDestroy() {
+        if (mDiagnosticsTask != null) {
+            mDiagnosticsTask.setDiagnosticsListener(null);
+        }
+        super.onDestroy();
+    }
+}
@@ -63,12 +63,18 @@ public class FormDownloadList extends ListActivity implements FormDownloaderList
     private static final String BUNDLE_TOGGLED_KEY = "toggled";
     private static final String BUNDLE_SELECTED_COUNT = "selectedcount";
     private static final String BUNDLE_FORM_LIST = "formlist";
+    private static final String BUNDLE_FORM_HASHES = "formhashes";
+    private static final String BUNDLE_FORM_MANIFESTS = "formmanifests";
+    private static final String BUNDLE_FORM_VERSIONS = "formversions";
     private static final String DIALOG_TITLE = "dialogtitle";
     private static final String DIALOG_MSG = "dialogmsg";
     private static final String DIALOG_SHOWING = "dialogshowing";
 
     public static final String LIST_URL = "listurl";
 
+    // ask the server even if the cached form list is still fresh
+    public static final String FORCE_REFRESH = "forcerefresh";
+
     private String mAlertMsg;
     private boolean mAlertShowing = false;
     private boolean mSuccess = false;
@@ -83,6 +89,9 @@ public class FormDownloadList extends ListActivity implements FormDownloaderList
     private Button mRefreshButton;
 
     private HashMap<String, String> mFormNamesAndURLs;
+    private HashMap<String, String> mFormHashes = new HashMap<String, String>();
+    private HashMap<String, String> mFormManifests = new HashMap<String, String>();
+    private HashMap<String, String> mFormVersions = new HashMap<String, String>();
     private ArrayAdapter<String> mFileAdapter;
 
     private boolean mToggled = false;
@@ -132,7 +141,7 @@ public class FormDownloadList extends ListActivity implements FormDownloaderList
             @Override
             public void onClick(View v) {
                 mToggled = false;
-                downloadFormList();
+                downloadFormList(true);
             }
         });
 
@@ -142,6 +151,21 @@ public class FormDownloadList extends ListActivity implements FormDownloaderList
                 mFormNamesAndURLs =
                     (HashMap<String, String>) savedInstanceState.getSerializable(BUNDLE_FORM_LIST);
             }
+            if (savedInstanceState.containsKey(BUNDLE_FORM_HASHES)) {
+                mFormHashes =
+                    (HashMap<String, String>) savedInstanceState
+                            .getSerializable(BUNDLE_FORM_HASHES);
+            }
+            if (savedInstanceState.containsKey(BUNDLE_FORM_MANIFESTS)) {
+                mFormManifests =
+                    (HashMap<String, String>) savedInstanceState
+                            .getSerializable(BUNDLE_FORM_MANIFESTS);
+            }
+            if (savedInstanceState.containsKey(BUNDLE_FORM_VERSIONS)) {
+                mFormVersions =
+                    (HashMap<String, String>) savedInstanceState
+                            .getSerializable(BUNDLE_FORM_VERSIONS);
+            }
             // indicating whether or not select-all is on or off.
             if (savedInstanceState.containsKey(BUNDLE_TOGGLED_KEY)) {
                 mToggled = savedInstanceState.getBoolean(BUNDLE_TOGGLED_KEY);
@@ -172,7 +196,7 @@ public class FormDownloadList extends ListActivity implements FormDownloaderList
 
         mDownloadFormsTask = (DownloadFormsTask) getLastNonConfigurationInstance();
         if (mDownloadFormsTask == null) {
-            downloadFormList();
+            downloadFormList(false);
         } else if (mDownloadFormsTask.getStatus() == AsyncTask.Status.FINISHED) {
             try {
                 dismissDialog(PROGRESS_DIALOG);
@@ -191,9 +215,17 @@ public class FormDownloadList extends ListActivity implements FormDownloaderList
     }
 
 
+    /**
+     * Fetches the form list. Unless forced, a recently cached list is shown without going to the
+     * server.
+     */
     @SuppressWarnings("unchecked")
-    private void downloadFormList() {
+    private void downloadFormList(boolean force) {
         mFormNamesAndURLs = new HashMap<String, String>();
+        mFormHashes = new HashMap<String, String>();
+        mFormManifests = new HashMap<String, String>();
+        mFormVersions = new HashMap<String, String>();
+        buildView();
         if (mProgressDialog != null) {
             // This is needed because onPrepareDialog() is broken in 1.6.
             mProgressDialog.setMessage(getString(R.string.please_wait));
@@ -212,6 +244,9 @@ public class FormDownloadList extends ListActivity implements FormDownloaderList
 
         HashMap<String, String> arg = new HashMap<String, String>();
         arg.put(LIST_URL, url);
+        if (force) {
+            arg.put(FORCE_REFRESH, FORCE_REFRESH);
+        }
         mDownloadFormsTask.execute(arg);
     }
 
@@ -222,6 +257,9 @@ public class FormDownloadList extends ListActivity implements FormDownloaderList
         outState.putBoolean(BUNDLE_TOGGLED_KEY, mToggled);
         outState.putInt(BUNDLE_SELECTED_COUNT, selectedItemCount());
         outState.putSerializable(BUNDLE_FORM_LIST, mFormNamesAndURLs);
+        outState.putSerializable(BUNDLE_FORM_HASHES, mFormHashes);
+        outState.putSerializable(BUNDLE_FORM_MANIFESTS, mFormManifests);
+        outState.putSerializable(BUNDLE_FORM_VERSIONS, mFormVersions);
         outState.putString(DIALOG_TITLE, mAlertTitle);
         outState.putString(DIALOG_MSG, mAlertMsg);
         outState.putBoolean(DIALOG_SHOWING, mAlertShowing);
@@ -240,16 +278,16 @@ public class FormDownloadList extends ListActivity implements FormDownloaderList
     }
 
 
+    private static final Comparator<String> IGNORE_CASE = new Comparator<String>() {
+        public int compare(String strA, String strB) {
+            return strA.compareToIgnoreCase(strB);
+        }
+    };
+
+
     private void buildView() {
         ArrayList<String> formNames = new ArrayList<String>(mFormNamesAndURLs.keySet());
-        
-        class IgnoreStringCaseComparator implements Comparator<String> {
-        	  public int compare(String strA, String strB) {
-        	    return strA.compareToIgnoreCase(strB);
-        	  }
-        	}
-          IgnoreStringCaseComparator iscc = new IgnoreStringCaseComparator();
-          Collections.sort(formNames,iscc);
+        Collections.sort(formNames, IGNORE_CASE);
 
         mFileAdapter =
             new ArrayAdapter<String>(this, android.R.layout.simple_list_item_multiple_choice,
@@ -317,12 +355,20 @@ public class FormDownloadList extends ListActivity implements FormDownloaderList
     private void downloadSelectedFiles() {
         totalCount = 0;
         HashMap<String, String> filesToDownload = new HashMap<String, String>();
+        HashMap<String, String> hashes = new HashMap<String, String>();
+        HashMap<String, String> manifests = new HashMap<String, String>();
 
         SparseBooleanArray sba = getListView().getCheckedItemPositions();
         for (int i = 0; i < getListView().getCount(); i++) {
             if (sba.get(i, false)) {
                 String form = (String) getListAdapter().getItem(i);
                 filesToDownload.put(form, mFormNamesAndURLs.get(form));
+                if (mFormHashes.containsKey(form)) {
+                    hashes.put(form, mFormHashes.get(form));
+                }
+                if (mFormManifests.containsKey(form)) {
+                    manifests.put(form, mFormManifests.get(form));
+                }
             }
         }
         totalCount = filesToDownload.size();
@@ -334,7 +380,9 @@ public class FormDownloadList extends ListActivity implements FormDownloaderList
             FileUtils.createFolder(FileUtils.FORMS_PATH);
             mDownloadFormsTask = new DownloadFormsTask();
             mDownloadFormsTask.setDownloaderListener(this);
-            mDownloadFormsTask.execute(filesToDownload);
+            // the hashes let the task check each download before installing it, and the
+            // manifests tell it which media to fetch with each form
+            mDownloadFormsTask.execute(filesToDownload, hashes, manifests);
         } else {
             Toast.makeText(getApplicationContext(), R.string.noselect_error, Toast.LENGTH_SHORT)
                     .show();
@@ -419,6 +467,10 @@ public class FormDownloadList extends ListActivity implements FormDownloaderList
                     // Download succeeded
                     mFormNamesAndURLs = result;
                     mSuccess = true;
+                    if (mFileAdapter != null && mFileAdapter.getCount() == result.size()) {
+                        // every form was already added as it was parsed, so keep the selections
+                        return;
+                    }
                 } else {
                     // Download failed
                     dialogMessage =
@@ -477,6 +529,62 @@ public class FormDownloadList extends ListActivity implements FormDownloaderList
         mProgressDialog.setMessage(mAlertMsg);
     }
 
+
+    @Override
+    public void formFound(String form, String url, String hash, String version,
+            String manifestUrl) {
+        if (mFileAdapter == null) {
+            // recreated while the list was still coming in
+            if (mFormNamesAndURLs == null) {
+                mFormNamesAndURLs = new HashMap<String, String>();
+            }
+            buildView();
+        }
+        if (mFileAdapter.isEmpty()) {
+            // the list is coming in, so let the user see it fill up
+            try {
+                dismissDialog(PROGRESS_DIALOG);
+            } catch (IllegalArgumentException e) {
+                Log.w(t, "Attempting to close a dialog that was not previously opened");
+            }
+        }
+        if (hash != null) {
+            mFormHashes.put(form, hash);
+        }
+        if (version != null) {
+            mFormVersions.put(form, version);
+        }
+        if (manifestUrl != null) {
+            mFormManifests.put(form, manifestUrl);
+        }
+        if (mFormNamesAndURLs.put(form, url) == null) {
+            // the adapter is kept sorted, so insert in place rather than sorting it again
+            int low = 0;
+            int high = mFileAdapter.getCount();
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (IGNORE_CASE.compare(mFileAdapter.getItem(mid), form) <= 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            mFileAdapter.insert(form, low);
+        }
+    }
+
+
+    @Override
+    public void formListReset() {
+        // the fetch failed part way, and the cached list is coming instead
+        mFormNamesAndURLs = new HashMap<String, String>();
+        mFormHashes.clear();
+        mFormManifests.clear();
+        mFormVersions.clear();
+        getListView().clearChoices();
+        buildView();
+    }
+
 }
 
 // TODO: make dialog persist through screen rotations.
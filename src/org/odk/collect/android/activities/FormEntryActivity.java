@@ -24,6 +24,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Calendar;
 
 import org.javarosa.core.model.FormIndex;
@@ -33,24 +34,37 @@ import org.javarosa.core.services.transport.payload.ByteArrayPayload;
 import org.javarosa.form.api.FormEntryCaption;
 import org.javarosa.form.api.FormEntryController;
 import org.javarosa.form.api.FormEntryModel;
+import org.javarosa.form.api.FormEntryPrompt;
 import org.javarosa.model.xform.XFormSerializingVisitor;
 import org.javarosa.model.xform.XFormsModule;
 import org.odk.collect.android.database.FileDbAdapter;
 import org.odk.collect.android.listeners.FormLoaderListener;
 import org.odk.collect.android.listeners.FormSavedListener;
+import org.odk.collect.android.listeners.PhotoIngestListener;
 import org.odk.collect.android.logic.GlobalConstants;
+import org.odk.collect.android.logic.FormEngine;
+import org.odk.collect.android.logic.AudioPlayback;
+import org.odk.collect.android.logic.BreadcrumbCache;
+import org.odk.collect.android.logic.FormHierarchyModel;
+import org.odk.collect.android.logic.FormNavigationIndex;
+import org.odk.collect.android.logic.FormProgressModel;
 import org.odk.collect.android.logic.PropertyManager;
+import org.odk.collect.android.logic.QuestionSearchIndex;
+import org.odk.collect.android.logic.SwipeLatencyTracker;
 import org.odk.collect.android.tasks.FormLoaderTask;
+import org.odk.collect.android.tasks.PhotoIngestTask;
 import org.odk.collect.android.tasks.SaveToDiskTask;
+import org.odk.collect.android.utilities.BitmapCache;
 import org.odk.collect.android.utilities.FileUtils;
 import org.odk.collect.android.utilities.GestureDetector;
 import org.odk.collect.android.views.QuestionView;
+import org.odk.collect.android.widgets.ImageWidget;
+import org.odk.collect.android.widgets.WidgetPool;
 
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.app.Dialog;
 import android.app.ProgressDialog;
-import android.content.ContentValues;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
@@ -58,8 +72,13 @@ import android.database.Cursor;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Debug;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.text.TextUtils;
 import android.provider.MediaStore.Images;
 import android.util.Log;
+import android.view.Display;
 import android.view.Gravity;
 import android.view.KeyEvent;
 import android.view.LayoutInflater;
@@ -75,6 +94,7 @@ import android.view.animation.Animation.AnimationListener;
 import android.view.inputmethod.InputMethodManager;
 import android.widget.Button;
 import android.widget.CheckBox;
+import android.widget.ProgressBar;
 import android.widget.RelativeLayout;
 import android.widget.TextView;
 import android.widget.Toast;
@@ -87,7 +107,7 @@ import applab.client.surveys.R;
  * @author Carl Hartung (carlhartung@gmail.com)
  */
 public class FormEntryActivity extends Activity implements AnimationListener,
-		FormLoaderListener, FormSavedListener {
+		FormLoaderListener, FormSavedListener, PhotoIngestListener {
 	private static final String t = "FormEntryActivity";
 
 	// Request codes for returning data from specified intent.
@@ -117,11 +137,13 @@ public class FormEntryActivity extends Activity implements AnimationListener,
 	private static final int MENU_HIERARCHY_VIEW = Menu.FIRST + 3;
 	private static final int MENU_SAVE = Menu.FIRST + 4;
 
+	// missing media files named when a form is opened
+	private static final int MISSING_MEDIA_LISTED = 5;
+
 	private static final int PROGRESS_DIALOG = 1;
 	private static final int SAVING_DIALOG = 2;
 
-	// uncomment when ProgressBar slowdown is fixed.
-	// private ProgressBar mProgressBar;
+	private ProgressBar mProgressBar;
 
 	private int swipeCounter;
 
@@ -132,6 +154,15 @@ public class FormEntryActivity extends Activity implements AnimationListener,
 	public static FormEntryController mFormEntryController;
 	public FormEntryModel mFormEntryModel;
 
+	// kept with the controller so a screen rotation doesn't recount the form
+	private static FormProgressModel mProgressModel;
+	private static FormNavigationIndex mNavigationIndex;
+	private static FormHierarchyModel mHierarchyModel;
+	private static BreadcrumbCache mBreadcrumbCache;
+	private static QuestionSearchIndex mSearchIndex;
+	private boolean mProgressScheduled;
+	private boolean mSearchScheduled;
+
 	private Animation mInAnimation;
 	private Animation mOutAnimation;
 
@@ -149,9 +180,40 @@ public class FormEntryActivity extends Activity implements AnimationListener,
 
 	private FormLoaderTask mFormLoaderTask;
 	private SaveToDiskTask mSaveToDiskTask;
+	// static so a screen rotation doesn't lose the photo being saved
+	private static PhotoIngestTask mPhotoIngestTask;
+	// the question the photo being saved answers
+	private static FormIndex mPhotoIndex;
+	// a save asked for while the photo was being saved, run once it is
+	private static PendingSave mPendingSave;
 
 	private boolean firstAutoSaveDone;
 
+	// Views for the questions either side of the current one, built while the
+	// user is on the current question so that a swipe only has to attach them.
+	private LookAhead mNextLookAhead;
+	private LookAhead mPreviousLookAhead;
+	private int mLookAheadStep = LOOK_AHEAD_DONE;
+	private boolean mLookAheadScheduled;
+
+	private static final int LOOK_AHEAD_NEXT = 0;
+	private static final int LOOK_AHEAD_PREVIOUS = 1;
+	private static final int LOOK_AHEAD_DONE = 2;
+
+	// widgets from views that have gone off screen, and the view waiting for
+	// its out animation to finish before its widget can be reused
+	private WidgetPool mWidgetPool;
+	private View mRecycleView;
+
+	// log allocations per swipe with: adb shell setprop log.tag.FormEntryActivity DEBUG
+	private boolean mCountAllocations;
+
+	// times each swipe for the diagnostics screen
+	private SwipeLatencyTracker mLatencyTracker;
+
+	// commits answers off the UI thread; see isFormEngineBusy()
+	private FormEngine mFormEngine;
+
 	enum AnimationType {
 		LEFT, RIGHT, FADE
 	}
@@ -164,7 +226,7 @@ public class FormEntryActivity extends Activity implements AnimationListener,
 		setTitle(getString(R.string.app_name) + " > "
 				+ getString(R.string.loading_form));
 
-		// mProgressBar = (ProgressBar) findViewById(R.id.progressbar);
+		mProgressBar = (ProgressBar) findViewById(R.id.progressbar);
 		mRelativeLayout = (RelativeLayout) findViewById(R.id.rl);
 
 		mBeenSwiped = false;
@@ -173,6 +235,12 @@ public class FormEntryActivity extends Activity implements AnimationListener,
 		mInAnimation = null;
 		mOutAnimation = null;
 		mGestureDetector = new GestureDetector();
+		mWidgetPool = new WidgetPool();
+
+		mCountAllocations = Log.isLoggable(t, Log.DEBUG);
+		if (mCountAllocations) {
+			Debug.startAllocCounting();
+		}
 
 		// Load JavaRosa modules. needed to restore forms.
 		new XFormsModule().registerModule();
@@ -219,6 +287,11 @@ public class FormEntryActivity extends Activity implements AnimationListener,
 
 			// Not a restart from a screen orientation change (or other).
 			mFormEntryController = null;
+			mProgressModel = null;
+			mNavigationIndex = null;
+			mHierarchyModel = null;
+			mBreadcrumbCache = null;
+			mSearchIndex = null;
 
 			Intent intent = getIntent();
 			if (intent != null) {
@@ -261,6 +334,9 @@ public class FormEntryActivity extends Activity implements AnimationListener,
 			return;
 		}
 
+		// the widget may have been used while a swipe's answer was committed
+		waitForFormEngine();
+
 		switch (requestCode) {
 		case BARCODE_CAPTURE:
 			String sb = intent.getStringExtra("SCAN_RESULT");
@@ -271,38 +347,33 @@ public class FormEntryActivity extends Activity implements AnimationListener,
 			// We saved the image to the tempfile_path, but we really want
 			// it to be in:
 			// /sdcard/odk/instances/[current instnace]/something.jpg
-			// so we move it there before inserting it into the content
-			// provider.
+			// so we move it there and insert it into the content provider
+			// in the background, and show it once that's done.
 			File fi = new File(FileUtils.TMPFILE_PATH);
+			if (!fi.exists()) {
+				// the camera returned without writing a photo, so keep the
+				// answer as it was
+				Toast.makeText(getApplicationContext(),
+						getString(R.string.photo_save_error),
+						Toast.LENGTH_LONG).show();
+				break;
+			}
 
 			String mInstanceFolder = mInstancePath.substring(0,
 					mInstancePath.lastIndexOf("/") + 1);
 			String s = mInstanceFolder + "/" + System.currentTimeMillis()
 					+ ".jpg";
-
 			File nf = new File(s);
-			if (!fi.renameTo(nf)) {
-				Log.e(t, "Failed to rename " + fi.getAbsolutePath());
-			} else {
-				Log.i(t,
-						"renamed " + fi.getAbsolutePath() + " to "
-								+ nf.getAbsolutePath());
-			}
-
-			// Add the new image to the Media content provider so that the
-			// viewing is fast in Android 2.0+
-			ContentValues values = new ContentValues(6);
-			values.put(Images.Media.TITLE, nf.getName());
-			values.put(Images.Media.DISPLAY_NAME, nf.getName());
-			values.put(Images.Media.DATE_TAKEN, System.currentTimeMillis());
-			values.put(Images.Media.MIME_TYPE, "image/jpeg");
-			values.put(Images.Media.DATA, nf.getAbsolutePath());
 
-			Uri imageuri = getContentResolver().insert(
-					Images.Media.EXTERNAL_CONTENT_URI, values);
-			Log.i(t, "Inserting image returned uri = " + imageuri.toString());
+			Display display = getWindowManager().getDefaultDisplay();
+			mPhotoIngestTask = new PhotoIngestTask(getContentResolver(), fi,
+					nf, display.getWidth() / ImageWidget.THUMBNAIL_SCALE,
+					display.getHeight() / ImageWidget.THUMBNAIL_SCALE);
+			mPhotoIngestTask.setPhotoIngestListener(this);
+			mPhotoIngestTask.execute();
+			mPhotoIndex = mFormEntryModel.getFormIndex();
 
-			((QuestionView) mCurrentView).setBinaryData(imageuri);
+			((QuestionView) mCurrentView).setBinaryData(nf);
 			saveCurrentAnswer(false);
 			refreshCurrentView();
 			break;
@@ -349,6 +420,9 @@ public class FormEntryActivity extends Activity implements AnimationListener,
 
 	@Override
 	public boolean onPrepareOptionsMenu(Menu menu) {
+		if (isFormEngineBusy()) {
+			return false;
+		}
 		menu.removeItem(MENU_CLEAR);
 		menu.removeItem(MENU_DELETE_REPEAT);
 		menu.removeItem(MENU_LANGUAGES);
@@ -383,6 +457,9 @@ public class FormEntryActivity extends Activity implements AnimationListener,
 	 */
 	@Override
 	public boolean onOptionsItemSelected(MenuItem item) {
+		if (isFormEngineBusy()) {
+			return true;
+		}
 		switch (item.getItemId()) {
 		case MENU_LANGUAGES:
 			createLanguageDialog();
@@ -436,6 +513,38 @@ public class FormEntryActivity extends Activity implements AnimationListener,
 		return true;
 	}
 
+	/**
+	 * Saves the answer to the current prompt on the form engine's thread, and
+	 * runs next on the UI thread once it's in. If a constraint is violated the
+	 * toast is shown and next isn't run, so the question stays on screen.
+	 */
+	private void saveCurrentAnswer(final boolean evaluateConstraints,
+			final Runnable next) {
+		if (mFormEntryModel.isIndexReadonly()
+				|| mFormEntryModel.getEvent() != FormEntryController.EVENT_QUESTION) {
+			next.run();
+			return;
+		}
+
+		getFormEngine().saveAnswer(mFormEntryModel.getFormIndex(),
+				((QuestionView) mCurrentView).getAnswer(), evaluateConstraints,
+				new FormEngine.AnswerListener() {
+					@Override
+					public void answerSaved(FormEngine.AnswerResult result) {
+						answerCommitted(result);
+						if (evaluateConstraints
+								&& result.status != FormEntryController.ANSWER_OK) {
+							getLatencyTracker().cancel();
+							createConstraintToast(mFormEntryModel
+									.getQuestionPrompt().getConstraintText(),
+									result.status);
+							return;
+						}
+						next.run();
+					}
+				});
+	}
+
 	/**
 	 * Clears the answer on the screen.
 	 */
@@ -463,6 +572,7 @@ public class FormEntryActivity extends Activity implements AnimationListener,
 			return mSaveToDiskTask;
 
 		// mFormEntryController is static so we don't need to pass it.
+		waitForFormEngine();
 		if (mFormEntryController != null && currentPromptIsQuestion()) {
 			saveCurrentAnswer(false);
 		}
@@ -512,9 +622,10 @@ public class FormEntryActivity extends Activity implements AnimationListener,
 
 			return endView;
 		case FormEntryController.EVENT_QUESTION:
-			QuestionView qv = new QuestionView(this, mInstancePath);
+			QuestionView qv = new QuestionView(this, mInstancePath, mWidgetPool);
 			qv.buildView(mFormEntryModel.getQuestionPrompt(),
-					getGroupsForCurrentIndex());
+					getBreadcrumbCache().getBreadcrumb(
+							mFormEntryModel.getFormIndex()));
 			return qv;
 		default:
 			Log.e(t, "Attempted to create a view that does not exist.");
@@ -552,14 +663,16 @@ public class FormEntryActivity extends Activity implements AnimationListener,
 			switch (mGestureDetector.getGesture(motionEvent)) {
 			case SWIPE_RIGHT:
 				mBeenSwiped = true;
+				resetAllocCount();
+				getLatencyTracker().start();
 				showPreviousView();
-				trackSwipeCount();
 				handled = true;
 				break;
 			case SWIPE_LEFT:
 				mBeenSwiped = true;
+				resetAllocCount();
+				getLatencyTracker().start();
 				showNextView();
-				trackSwipeCount();
 				handled = true;
 				break;
 			}
@@ -595,27 +708,39 @@ public class FormEntryActivity extends Activity implements AnimationListener,
 	 * answers to the data model after checking constraints.
 	 */
 	private void showNextView() {
-		if (currentPromptIsQuestion()) {
-			if (!saveCurrentAnswer(true)) {
-				// A constraint was violated so a dialog should be showing.
-				return;
+		// A violated constraint shows a toast and leaves the question on
+		// screen.
+		saveCurrentAnswer(true, new Runnable() {
+			@Override
+			public void run() {
+				getLatencyTracker().saved();
+				moveToNextView();
+				trackSwipeCount();
 			}
-		}
+		});
+	}
 
+	private void moveToNextView() {
 		if (mFormEntryModel.getEvent() != FormEntryController.EVENT_END_OF_FORM) {
 			int event = getNextNotGroupEvent();
 
 			switch (event) {
 			case FormEntryController.EVENT_QUESTION:
 			case FormEntryController.EVENT_END_OF_FORM:
-				View next = createView(event);
+				View next = takeLookAhead(mNextLookAhead);
+				if (next == null) {
+					next = createView(event);
+				}
+				getLatencyTracker().built();
 				showView(next, AnimationType.RIGHT);
 				break;
 			case FormEntryController.EVENT_PROMPT_NEW_REPEAT:
+				getLatencyTracker().cancel();
 				createRepeatDialog();
 				break;
 			}
 		} else {
+			getLatencyTracker().cancel();
 			mBeenSwiped = false;
 		}
 	}
@@ -628,21 +753,28 @@ public class FormEntryActivity extends Activity implements AnimationListener,
 	private void showPreviousView() {
 		// The answer is saved on a back swipe, but question constraints are
 		// ignored.
-		if (currentPromptIsQuestion()) {
-			saveCurrentAnswer(false);
-		}
+		saveCurrentAnswer(false, new Runnable() {
+			@Override
+			public void run() {
+				getLatencyTracker().saved();
+				moveToPreviousView();
+				trackSwipeCount();
+			}
+		});
+	}
 
+	private void moveToPreviousView() {
 		if (mFormEntryModel.getEvent() != FormEntryController.EVENT_BEGINNING_OF_FORM) {
-			int event = mFormEntryController.stepToPreviousEvent();
+			int event = getPreviousQuestionEvent();
 
-			while (event != FormEntryController.EVENT_BEGINNING_OF_FORM
-					&& event != FormEntryController.EVENT_QUESTION) {
-				event = mFormEntryController.stepToPreviousEvent();
+			View next = takeLookAhead(mPreviousLookAhead);
+			if (next == null) {
+				next = createView(event);
 			}
-
-			View next = createView(event);
+			getLatencyTracker().built();
 			showView(next, AnimationType.LEFT);
 		} else {
+			getLatencyTracker().cancel();
 			mBeenSwiped = false;
 		}
 	}
@@ -675,22 +807,20 @@ public class FormEntryActivity extends Activity implements AnimationListener,
 		if (mCurrentView != null) {
 			mCurrentView.startAnimation(mOutAnimation);
 			mRelativeLayout.removeView(mCurrentView);
+
+			// the widget is reused once the view has animated out
+			recycleView(mRecycleView);
+			mRecycleView = mCurrentView;
 		}
 
 		mInAnimation.setAnimationListener(this);
 
-		// We must call setMax() first because it doesn't redraw the progress
-		// bar.
-
-		// UnComment to make progress bar work.
-		// WARNING: will currently slow large forms considerably
-		// TODO: make the progress bar fast. Must be done in javarosa.
-		// mProgressBar.setMax(mFormEntryModel.getTotalRelevantQuestionCount());
-		// mProgressBar.setProgress(mFormEntryModel.getCompletedRelevantQuestionCount());
+		updateProgressBar();
+		scheduleSearchIndex();
 
 		RelativeLayout.LayoutParams lp = new RelativeLayout.LayoutParams(
 				LayoutParams.FILL_PARENT, LayoutParams.FILL_PARENT);
-		// lp.addRule(RelativeLayout.ABOVE, R.id.progressbar);
+		lp.addRule(RelativeLayout.ABOVE, R.id.progressbar);
 
 		mCurrentView = next;
 		mRelativeLayout.addView(mCurrentView, lp);
@@ -704,6 +834,291 @@ public class FormEntryActivity extends Activity implements AnimationListener,
 			inputManager.hideSoftInputFromWindow(mCurrentView.getWindowToken(),
 					0);
 		}
+
+		scheduleLookAhead();
+	}
+
+	/**
+	 * A view built ahead of time for the question at index, along with what it
+	 * showed so we can tell if it has gone stale.
+	 */
+	private static class LookAhead {
+		final FormIndex index;
+		final String text;
+		final String answer;
+		final QuestionView view;
+
+		LookAhead(FormIndex index, String text, String answer, QuestionView view) {
+			this.index = index;
+			this.text = text;
+			this.answer = answer;
+			this.view = view;
+		}
+	}
+
+	/**
+	 * Throws away the prebuilt views and queues new ones for the questions
+	 * either side of the current one. They're built when the UI thread is idle
+	 * rather than on a background thread, because neither the form model nor
+	 * Views can be used from more than one thread.
+	 */
+	private void scheduleLookAhead() {
+		if (mNextLookAhead != null && mNextLookAhead.view != mCurrentView) {
+			recycleView(mNextLookAhead.view);
+		}
+		if (mPreviousLookAhead != null
+				&& mPreviousLookAhead.view != mCurrentView) {
+			recycleView(mPreviousLookAhead.view);
+		}
+		mNextLookAhead = null;
+		mPreviousLookAhead = null;
+		mLookAheadStep = LOOK_AHEAD_NEXT;
+		if (!mLookAheadScheduled) {
+			mLookAheadScheduled = true;
+			Looper.myQueue().addIdleHandler(mLookAheadHandler);
+		}
+	}
+
+	private final MessageQueue.IdleHandler mLookAheadHandler = new MessageQueue.IdleHandler() {
+		@Override
+		public boolean queueIdle() {
+			if (mFormEntryController == null || isFinishing()) {
+				mLookAheadScheduled = false;
+				return false;
+			}
+			if (mBeenSwiped || isFormEngineBusy()) {
+				// wait for the transition to finish
+				return true;
+			}
+
+			// one view per idle pass, so we never hold up input for long
+			switch (mLookAheadStep) {
+			case LOOK_AHEAD_NEXT:
+				mNextLookAhead = buildLookAhead(findNextQuestion());
+				mLookAheadStep = LOOK_AHEAD_PREVIOUS;
+				return true;
+			case LOOK_AHEAD_PREVIOUS:
+				mPreviousLookAhead = buildLookAhead(findPreviousQuestion());
+				mLookAheadStep = LOOK_AHEAD_DONE;
+				break;
+			}
+			mLookAheadScheduled = false;
+			return false;
+		}
+	};
+
+	/**
+	 * Finds the question a forward swipe would show given the answers so far,
+	 * without moving the controller.
+	 * 
+	 * @return the question's index, or null if the swipe leads somewhere else
+	 */
+	private FormIndex findNextQuestion() {
+		FormIndex index = mFormEntryModel.getFormIndex();
+		if (index.isEndOfFormIndex()) {
+			return null;
+		}
+		FormIndex target = getNavigationIndex().getNext(index);
+		if (target != null) {
+			return target.isInForm()
+					&& mFormEntryModel.getEvent(target) == FormEntryController.EVENT_QUESTION ? target
+					: null;
+		}
+		int event;
+		do {
+			do {
+				index = mFormEntryModel.getForm().incrementIndex(index);
+			} while (index.isInForm() && !mFormEntryModel.isIndexRelevant(index));
+			event = mFormEntryModel.getEvent(index);
+		} while (event == FormEntryController.EVENT_GROUP
+				|| event == FormEntryController.EVENT_REPEAT);
+		return event == FormEntryController.EVENT_QUESTION ? index : null;
+	}
+
+	/**
+	 * Finds the question a back swipe would show, without moving the
+	 * controller.
+	 * 
+	 * @return the question's index, or null if the swipe leads somewhere else
+	 */
+	private FormIndex findPreviousQuestion() {
+		FormIndex index = mFormEntryModel.getFormIndex();
+		if (index.isBeginningOfFormIndex()) {
+			return null;
+		}
+		FormIndex target = getNavigationIndex().getPrevious(index);
+		if (target != null) {
+			return target.isInForm() ? target : null;
+		}
+		int event;
+		do {
+			do {
+				index = mFormEntryModel.getForm().decrementIndex(index);
+			} while (index.isInForm() && !mFormEntryModel.isIndexRelevant(index));
+			event = mFormEntryModel.getEvent(index);
+		} while (event != FormEntryController.EVENT_BEGINNING_OF_FORM
+				&& event != FormEntryController.EVENT_QUESTION);
+		return event == FormEntryController.EVENT_QUESTION ? index : null;
+	}
+
+	private LookAhead buildLookAhead(FormIndex index) {
+		if (index == null) {
+			return null;
+		}
+		FormEntryPrompt p = mFormEntryModel.getQuestionPrompt(index);
+		QuestionView qv = new QuestionView(this, mInstancePath, mWidgetPool);
+		qv.buildView(p, getBreadcrumbCache().getBreadcrumb(index));
+		return new LookAhead(index, p.getLongText(), p.getAnswerText(), qv);
+	}
+
+	/**
+	 * Returns the prebuilt view if the controller has arrived at the question
+	 * it was built for, and the question still reads the same. An answer that
+	 * changed relevance will have led to a different index, and one that fed
+	 * into the question's label or value will have changed its text.
+	 * 
+	 * @return the view, or null if it has to be built again
+	 */
+	private View takeLookAhead(LookAhead lookAhead) {
+		if (lookAhead == null
+				|| mFormEntryModel.getEvent() != FormEntryController.EVENT_QUESTION
+				|| !lookAhead.index.equals(mFormEntryModel.getFormIndex())) {
+			return null;
+		}
+		FormEntryPrompt p = mFormEntryModel.getQuestionPrompt();
+		if (!same(lookAhead.text, p.getLongText())
+				|| !same(lookAhead.answer, p.getAnswerText())) {
+			return null;
+		}
+		return lookAhead.view;
+	}
+
+	private static boolean same(String a, String b) {
+		return a == null ? b == null : a.equals(b);
+	}
+
+	/**
+	 * Shows the counts from the progress model, and queues a recount if one is
+	 * pending.
+	 */
+	private void updateProgressBar() {
+		if (mProgressModel == null) {
+			mProgressModel = new FormProgressModel(mFormEntryModel);
+		}
+		if (mProgressModel.isCounted()) {
+			// We must call setMax() first because it doesn't redraw the
+			// progress bar.
+			mProgressBar.setMax(mProgressModel.getTotal());
+			mProgressBar.setProgress(mProgressModel.getCompleted());
+			mProgressBar.setVisibility(View.VISIBLE);
+		} else {
+			mProgressBar.setVisibility(View.INVISIBLE);
+		}
+		if (mProgressModel.isScanning() && !mProgressScheduled) {
+			mProgressScheduled = true;
+			Looper.myQueue().addIdleHandler(mProgressHandler);
+		}
+	}
+
+	private final MessageQueue.IdleHandler mProgressHandler = new MessageQueue.IdleHandler() {
+		@Override
+		public boolean queueIdle() {
+			if (mProgressModel == null || isFinishing()) {
+				mProgressScheduled = false;
+				return false;
+			}
+			if (mBeenSwiped || mLookAheadScheduled || isFormEngineBusy()) {
+				// the transition and the look-ahead views come first
+				return true;
+			}
+			if (!mProgressModel.scan()) {
+				return mProgressModel.isScanning();
+			}
+			mProgressScheduled = false;
+			updateProgressBar();
+			return false;
+		}
+	};
+
+	/**
+	 * Queues the rest of the search index to be built while idle, if it isn't
+	 * complete.
+	 */
+	private void scheduleSearchIndex() {
+		if (getSearchIndex().isScanning() && !mSearchScheduled) {
+			mSearchScheduled = true;
+			Looper.myQueue().addIdleHandler(mSearchHandler);
+		}
+	}
+
+	private final MessageQueue.IdleHandler mSearchHandler = new MessageQueue.IdleHandler() {
+		@Override
+		public boolean queueIdle() {
+			if (mSearchIndex == null || isFinishing()) {
+				mSearchScheduled = false;
+				return false;
+			}
+			if (mBeenSwiped || mLookAheadScheduled || mProgressScheduled
+					|| isFormEngineBusy()) {
+				// the transition, the look-ahead views and the progress bar
+				// come first
+				return true;
+			}
+			if (!mSearchIndex.scan()) {
+				return mSearchIndex.isScanning();
+			}
+			mSearchScheduled = false;
+			return false;
+		}
+	};
+
+	private SwipeLatencyTracker getLatencyTracker() {
+		if (mLatencyTracker == null) {
+			mLatencyTracker = new SwipeLatencyTracker(new File(mFormPath)
+					.getName());
+		}
+		return mLatencyTracker;
+	}
+
+	/**
+	 * @return the reference of the question on screen, or a name for the
+	 *         other screens, for the latency records
+	 */
+	private String getScreenName() {
+		switch (mFormEntryModel.getEvent()) {
+		case FormEntryController.EVENT_BEGINNING_OF_FORM:
+			return "(start)";
+		case FormEntryController.EVENT_END_OF_FORM:
+			return "(end)";
+		default:
+			return mFormEntryModel.getFormIndex().getReference().toString(
+					false);
+		}
+	}
+
+	private void recycleView(View v) {
+		if (v instanceof QuestionView) {
+			((QuestionView) v).recycle();
+		}
+	}
+
+	private void resetAllocCount() {
+		if (mCountAllocations) {
+			Debug.resetThreadAllocCount();
+			Debug.resetThreadAllocSize();
+		}
+	}
+
+	/**
+	 * Logs what the UI thread allocated since the swipe started.
+	 */
+	private void logAllocCount() {
+		if (mCountAllocations) {
+			Log.d(t, "Swipe allocated " + Debug.getThreadAllocCount()
+					+ " objects, " + Debug.getThreadAllocSize()
+					+ " bytes. Widget pool hits " + mWidgetPool.getHits()
+					+ ", misses " + mWidgetPool.getMisses());
+		}
 	}
 
 	// TODO: use managed dialogs when the bugs are fixed
@@ -765,6 +1180,11 @@ public class FormEntryActivity extends Activity implements AnimationListener,
 				switch (i) {
 				case DialogInterface.BUTTON1: // yes, repeat
 					mFormEntryController.newRepeat();
+					mProgressModel.invalidate();
+					getNavigationIndex().structureChanged();
+					getHierarchyModel().structureChanged();
+					getBreadcrumbCache().clear();
+					getSearchIndex().structureChanged();
 					showNextView();
 					break;
 				case DialogInterface.BUTTON2: // no, no repeat
@@ -842,6 +1262,11 @@ public class FormEntryActivity extends Activity implements AnimationListener,
 				case DialogInterface.BUTTON1: // yes
 					FormIndex validIndex = mFormEntryController.deleteRepeat();
 					mFormEntryController.jumpToIndex(validIndex);
+					mProgressModel.invalidate();
+					getNavigationIndex().structureChanged();
+					getHierarchyModel().structureChanged();
+					getBreadcrumbCache().clear();
+					getSearchIndex().structureChanged();
 					showPreviousView();
 					break;
 				case DialogInterface.BUTTON2: // no
@@ -868,6 +1293,17 @@ public class FormEntryActivity extends Activity implements AnimationListener,
 			return false;
 		}
 
+		if (mPhotoIngestTask != null) {
+			// the instance mustn't name a photo that may not get saved
+			mPendingSave = new PendingSave(exit, complete, false);
+		} else {
+			startSaveToDiskTask(exit, complete);
+		}
+		showDialog(SAVING_DIALOG);
+		return true;
+	}
+
+	private void startSaveToDiskTask(boolean exit, boolean complete) {
 		mSaveToDiskTask = new SaveToDiskTask();
 		mSaveToDiskTask.setFormSavedListener(this);
 
@@ -878,8 +1314,41 @@ public class FormEntryActivity extends Activity implements AnimationListener,
 		mSaveToDiskTask.setExportVars(mInstancePath, getApplicationContext(),
 				exit, complete);
 		mSaveToDiskTask.execute();
-		showDialog(SAVING_DIALOG);
-		return true;
+	}
+
+	/**
+	 * A save waiting for a photo to be saved.
+	 */
+	private static class PendingSave {
+		final boolean exit;
+		final boolean complete;
+		final boolean auto;
+
+		PendingSave(boolean exit, boolean complete, boolean auto) {
+			this.exit = exit;
+			this.complete = complete;
+			this.auto = auto;
+		}
+	}
+
+	/**
+	 * Runs the save that was waiting for the photo, if there is one.
+	 */
+	private void runPendingSave() {
+		PendingSave save = mPendingSave;
+		mPendingSave = null;
+		if (save == null || isFinishing()) {
+			return;
+		}
+		if (!save.auto) {
+			startSaveToDiskTask(save.exit, save.complete);
+			return;
+		}
+		try {
+			executeAutoSave();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
 	}
 
 	private void discardChanges() {
@@ -903,6 +1372,12 @@ public class FormEntryActivity extends Activity implements AnimationListener,
 
 	private void executeAutoSave() throws UnsupportedEncodingException,
 			IOException {
+		if (mPhotoIngestTask != null) {
+			if (mPendingSave == null) {
+				mPendingSave = new PendingSave(false, false, true);
+			}
+			return;
+		}
 
 		// Create backup file
 		File instanceFile = new File(mInstancePath);
@@ -1062,6 +1537,9 @@ public class FormEntryActivity extends Activity implements AnimationListener,
 									int whichButton) {
 								mFormEntryController
 										.setLanguage(languages[whichButton]);
+								getHierarchyModel().structureChanged();
+								getBreadcrumbCache().clear();
+								getSearchIndex().structureChanged();
 								dialog.dismiss();
 								if (currentPromptIsQuestion()) {
 									saveCurrentAnswer(false);
@@ -1113,6 +1591,11 @@ public class FormEntryActivity extends Activity implements AnimationListener,
 				@Override
 				public void onClick(DialogInterface dialog, int which) {
 					dialog.dismiss();
+					if (mPendingSave != null) {
+						// still waiting for the photo
+						mPendingSave = null;
+						return;
+					}
 					mSaveToDiskTask.setFormSavedListener(null);
 					mSaveToDiskTask.cancel(true);
 				}
@@ -1148,6 +1631,9 @@ public class FormEntryActivity extends Activity implements AnimationListener,
 	@Override
 	protected void onPause() {
 		dismissDialogs();
+		if (mLatencyTracker != null) {
+			mLatencyTracker.flush();
+		}
 		super.onPause();
 	}
 
@@ -1168,6 +1654,15 @@ public class FormEntryActivity extends Activity implements AnimationListener,
 		if (mSaveToDiskTask != null) {
 			mSaveToDiskTask.setFormSavedListener(this);
 		}
+		if (mPhotoIngestTask != null) {
+			if (mPhotoIngestTask.getStatus() == AsyncTask.Status.FINISHED) {
+				// finished while no one was listening
+				photoIngested(mPhotoIngestTask.getPhoto(),
+						mPhotoIngestTask.isStored());
+			} else {
+				mPhotoIngestTask.setPhotoIngestListener(this);
+			}
+		}
 		super.onResume();
 	}
 
@@ -1180,7 +1675,9 @@ public class FormEntryActivity extends Activity implements AnimationListener,
 	public boolean onKeyDown(int keyCode, KeyEvent event) {
 		switch (keyCode) {
 		case KeyEvent.KEYCODE_BACK:
-			createQuitDialog();
+			if (!isFormEngineBusy()) {
+				createQuitDialog();
+			}
 			return true;
 		case KeyEvent.KEYCODE_DPAD_RIGHT:
 			if (event.isAltPressed() && !mBeenSwiped) {
@@ -1200,6 +1697,18 @@ public class FormEntryActivity extends Activity implements AnimationListener,
 		return super.onKeyDown(keyCode, event);
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see android.app.Activity#onLowMemory()
+	 */
+	@Override
+	public void onLowMemory() {
+		// the images on screen are kept by their views
+		BitmapCache.getInstance().clear();
+		super.onLowMemory();
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -1207,6 +1716,38 @@ public class FormEntryActivity extends Activity implements AnimationListener,
 	 */
 	@Override
 	protected void onDestroy() {
+		if (mLookAheadScheduled) {
+			Looper.myQueue().removeIdleHandler(mLookAheadHandler);
+			mLookAheadScheduled = false;
+		}
+		if (mProgressScheduled) {
+			Looper.myQueue().removeIdleHandler(mProgressHandler);
+			mProgressScheduled = false;
+		}
+		if (mSearchScheduled) {
+			Looper.myQueue().removeIdleHandler(mSearchHandler);
+			mSearchScheduled = false;
+		}
+		mNextLookAhead = null;
+		mPreviousLookAhead = null;
+		mRecycleView = null;
+		if (mFormEngine != null) {
+			// let a commit in flight finish before the next activity reads
+			// the form
+			mFormEngine.close();
+			mFormEngine = null;
+		}
+		if (mWidgetPool != null) {
+			mWidgetPool.clear();
+		}
+		if (isFinishing()) {
+			// kept prepared across a screen rotation
+			AudioPlayback.getInstance().release();
+		}
+		if (mCountAllocations) {
+			Debug.stopAllocCounting();
+		}
+
 		if (mFormLoaderTask != null) {
 			mFormLoaderTask.setFormLoaderListener(null);
 			// We have to call cancel to terminate the thread, otherwise it
@@ -1217,6 +1758,9 @@ public class FormEntryActivity extends Activity implements AnimationListener,
 				mFormLoaderTask.destroy();
 			}
 		}
+		if (mPhotoIngestTask != null) {
+			mPhotoIngestTask.setPhotoIngestListener(null);
+		}
 		if (mSaveToDiskTask != null) {
 			mSaveToDiskTask.setFormSavedListener(null);
 			// We have to call cancel to terminate the thread, otherwise it
@@ -1240,6 +1784,9 @@ public class FormEntryActivity extends Activity implements AnimationListener,
 	@Override
 	public void onAnimationEnd(Animation arg0) {
 		mBeenSwiped = false;
+		recycleView(mRecycleView);
+		mRecycleView = null;
+		logAllocCount();
 	}
 
 	/*
@@ -1263,7 +1810,10 @@ public class FormEntryActivity extends Activity implements AnimationListener,
 	 */
 	@Override
 	public void onAnimationStart(Animation animation) {
-		// Added by AnimationListener interface.
+		// the first frame of the new screen is being drawn
+		if (mLatencyTracker != null) {
+			mLatencyTracker.finish(getScreenName());
+		}
 	}
 
 	/**
@@ -1274,8 +1824,18 @@ public class FormEntryActivity extends Activity implements AnimationListener,
 	public void loadingComplete(FormEntryController fec) {
 		dismissDialog(PROGRESS_DIALOG);
 
+		if (mFormEngine != null) {
+			mFormEngine.close();
+			mFormEngine = null;
+		}
 		mFormEntryController = fec;
 		mFormEntryModel = fec.getModel();
+		mProgressModel = new FormProgressModel(mFormEntryModel);
+		mNavigationIndex = new FormNavigationIndex(mFormEntryModel);
+		mHierarchyModel = new FormHierarchyModel(mFormEntryModel);
+		mBreadcrumbCache = new BreadcrumbCache(mFormEntryModel);
+		mSearchIndex = new QuestionSearchIndex(mFormEntryModel);
+		prefetchMedia();
 
 		// Set saved answer path
 		if (mInstancePath == null) {
@@ -1300,6 +1860,78 @@ public class FormEntryActivity extends Activity implements AnimationListener,
 		refreshCurrentView();
 	}
 
+	/**
+	 * Starts decoding the images of the first questions, and warns about any
+	 * media the form refers to that isn't on the sd card.
+	 */
+	private void prefetchMedia() {
+		if (mFormLoaderTask == null) {
+			return;
+		}
+
+		// the same size IAVTLayout asks for
+		Display display = getWindowManager().getDefaultDisplay();
+		for (File f : mFormLoaderTask.getPrefetchImages()) {
+			BitmapCache.getInstance().load(f, display.getWidth(),
+					display.getHeight(), null);
+		}
+
+		ArrayList<String> missing = mFormLoaderTask.getMissingMedia();
+		if (!missing.isEmpty()) {
+			String names = TextUtils.join(", ", missing.subList(0, Math.min(
+					missing.size(), MISSING_MEDIA_LISTED)));
+			if (missing.size() > MISSING_MEDIA_LISTED) {
+				names += ", ...";
+			}
+			Toast.makeText(this,
+					getString(R.string.media_missing, missing.size(), names),
+					Toast.LENGTH_LONG).show();
+		}
+	}
+
+	/**
+	 * photoIngested() is called by PhotoIngestTask once a photo has been
+	 * stored.
+	 */
+	@Override
+	public void photoIngested(File photo, boolean ok) {
+		FormIndex index = mPhotoIndex;
+		mPhotoIngestTask = null;
+		mPhotoIndex = null;
+		if (!ok) {
+			clearPhotoAnswer(index, photo);
+			Toast.makeText(getApplicationContext(),
+					getString(R.string.photo_save_error), Toast.LENGTH_LONG)
+					.show();
+		} else if (!isFormEngineBusy() && currentPromptIsQuestion()
+				&& photo.getName().equals(
+						mFormEntryModel.getQuestionPrompt().getAnswerText())) {
+			// show the thumbnail if the photo is still on screen
+			refreshCurrentView();
+		}
+		runPendingSave();
+	}
+
+	/**
+	 * Takes a photo that couldn't be saved out of the answer to its question,
+	 * unless another photo was taken since.
+	 */
+	private void clearPhotoAnswer(FormIndex index, File photo) {
+		if (index == null) {
+			return;
+		}
+		waitForFormEngine();
+		if (mFormEntryModel.getEvent(index) != FormEntryController.EVENT_QUESTION
+				|| !photo.getName().equals(
+						mFormEntryModel.getQuestionPrompt(index).getAnswerText())) {
+			return;
+		}
+		answerCommitted(getFormEngine().saveAnswerAndWait(index, null, false));
+		if (index.equals(mFormEntryModel.getFormIndex())) {
+			refreshCurrentView();
+		}
+	}
+
 	@Override
 	public void loadingError(String errorMsg) {
 		dismissDialog(PROGRESS_DIALOG);
@@ -1344,12 +1976,47 @@ public class FormEntryActivity extends Activity implements AnimationListener,
 	}
 
 	public int saveAnswer(IAnswerData answer, boolean evaluateConstraints) {
-		if (evaluateConstraints) {
-			return mFormEntryController.answerQuestion(answer);
-		} else {
-			mFormEntryController.saveAnswer(mFormEntryModel.getFormIndex(),
-					answer);
-			return FormEntryController.ANSWER_OK;
+		// still goes through the engine so it can't overlap a swipe's commit
+		FormEngine.AnswerResult result = getFormEngine().saveAnswerAndWait(
+				mFormEntryModel.getFormIndex(), answer, evaluateConstraints);
+		answerCommitted(result);
+		return result.status;
+	}
+
+	/**
+	 * Updates what is kept about the form after an answer was committed.
+	 */
+	private void answerCommitted(FormEngine.AnswerResult result) {
+		// the progress model hears about answers from the form itself
+		if (result.status == FormEntryController.ANSWER_OK && result.isChanged()) {
+			getNavigationIndex().answersChanged();
+			getHierarchyModel().answersChanged();
+			getSearchIndex().answerChanged(result.index);
+		}
+	}
+
+	private FormEngine getFormEngine() {
+		if (mFormEngine == null) {
+			mFormEngine = new FormEngine(mFormEntryController);
+		}
+		return mFormEngine;
+	}
+
+	/**
+	 * @return true while an answer is being committed, when the form must
+	 *         not be read or changed from this thread
+	 */
+	private boolean isFormEngineBusy() {
+		return mFormEngine != null && mFormEngine.isBusy();
+	}
+
+	/**
+	 * Blocks until any answer being committed is in, for code that has to
+	 * read the form and can't wait for the commit's listener.
+	 */
+	private void waitForFormEngine() {
+		if (mFormEngine != null) {
+			mFormEngine.waitUntilIdle();
 		}
 	}
 
@@ -1371,11 +2038,59 @@ public class FormEntryActivity extends Activity implements AnimationListener,
 	}
 
 	/**
-	 * Loops through the FormEntryController until a non-group event is found.
-	 * 
-	 * @return The event found
+	 * @return the breadcrumbs of the form being filled in, which are kept for
+	 *         the session like the controller
+	 */
+	static BreadcrumbCache getBreadcrumbCache() {
+		if (mBreadcrumbCache == null) {
+			mBreadcrumbCache = new BreadcrumbCache(mFormEntryController
+					.getModel());
+		}
+		return mBreadcrumbCache;
+	}
+
+	/**
+	 * @return the hierarchy of the form being filled in, which is kept for the
+	 *         session like the controller
+	 */
+	static FormHierarchyModel getHierarchyModel() {
+		if (mHierarchyModel == null) {
+			mHierarchyModel = new FormHierarchyModel(mFormEntryController
+					.getModel());
+		}
+		return mHierarchyModel;
+	}
+
+	/**
+	 * @return the search index of the form being filled in, which is kept for
+	 *         the session like the controller
+	 */
+	static QuestionSearchIndex getSearchIndex() {
+		if (mSearchIndex == null) {
+			mSearchIndex = new QuestionSearchIndex(mFormEntryController
+					.getModel());
+		}
+		return mSearchIndex;
+	}
+
+	private FormNavigationIndex getNavigationIndex() {
+		if (mNavigationIndex == null) {
+			mNavigationIndex = new FormNavigationIndex(mFormEntryModel);
+		}
+		return mNavigationIndex;
+	}
+
+	/**
+	 * Moves to the next question, repeat prompt or the end of the form,
+	 * skipping groups and anything that isn't relevant.
 	 */
 	private int getNextNotGroupEvent() {
+		FormIndex target = getNavigationIndex().getNext(
+				mFormEntryModel.getFormIndex());
+		if (target != null) {
+			return mFormEntryController.jumpToIndex(target);
+		}
+
 		int event = mFormEntryController.stepToNextEvent();
 
 		while (event == FormEntryController.EVENT_GROUP
@@ -1385,6 +2100,24 @@ public class FormEntryActivity extends Activity implements AnimationListener,
 		return event;
 	}
 
+	/**
+	 * Moves to the previous relevant question or the beginning of the form.
+	 */
+	private int getPreviousQuestionEvent() {
+		FormIndex target = getNavigationIndex().getPrevious(
+				mFormEntryModel.getFormIndex());
+		if (target != null) {
+			return mFormEntryController.jumpToIndex(target);
+		}
+
+		int event = mFormEntryController.stepToPreviousEvent();
+		while (event != FormEntryController.EVENT_BEGINNING_OF_FORM
+				&& event != FormEntryController.EVENT_QUESTION) {
+			event = mFormEntryController.stepToPreviousEvent();
+		}
+		return event;
+	}
+
 	/**
 	 * The repeat count of closest group the prompt belongs to.
 	 */
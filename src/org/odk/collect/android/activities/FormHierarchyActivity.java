@@ -18,21 +18,27 @@ import java.util.ArrayList;
 import java.util.List;
 
 import org.javarosa.core.model.FormIndex;
-import org.javarosa.form.api.FormEntryCaption;
 import org.javarosa.form.api.FormEntryController;
 import org.javarosa.form.api.FormEntryModel;
-import org.javarosa.form.api.FormEntryPrompt;
 import org.odk.collect.android.adapters.HierarchyListAdapter;
+import org.odk.collect.android.logic.FormHierarchyModel;
+import org.odk.collect.android.logic.FormHierarchyModel.Node;
 import org.odk.collect.android.logic.HierarchyElement;
+import org.odk.collect.android.logic.QuestionSearchIndex;
 
 import android.app.ListActivity;
 import android.graphics.Color;
 import android.os.Bundle;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.util.Log;
 import android.view.KeyEvent;
 import android.view.View;
 import android.view.View.OnClickListener;
 import android.widget.Button;
+import android.widget.EditText;
 import android.widget.ListView;
 import android.widget.TextView;
 import applab.client.surveys.R;
@@ -54,9 +60,20 @@ public class FormHierarchyActivity extends ListActivity {
 
     List<HierarchyElement> formList;
     TextView mPath;
+    EditText mSearch;
 
     FormIndex mStartIndex;
 
+    // the form as a tree, and the part of it on screen: the root or a repeat instance
+    private FormHierarchyModel mHierarchyModel;
+    private Node mLevel;
+
+    // one adapter for the life of the screen, updated in place
+    private HierarchyListAdapter mAdapter;
+
+    // whether the rest of the search index is being built while idle
+    private boolean mSearchScheduled;
+
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -67,11 +84,36 @@ public class FormHierarchyActivity extends ListActivity {
         mFormEntryController = FormEntryActivity.mFormEntryController;
         mFormEntryModel = mFormEntryController.getModel();
         mStartIndex = mFormEntryModel.getFormIndex();
+        mHierarchyModel = FormEntryActivity.getHierarchyModel();
+        mLevel = mHierarchyModel.getLevel(mStartIndex);
 
         setTitle(getString(R.string.app_name) + " > " + mFormEntryModel.getFormTitle());
 
+        formList = new ArrayList<HierarchyElement>();
+        mAdapter = new HierarchyListAdapter(this);
+        mAdapter.setListItems(formList);
+        setListAdapter(mAdapter);
+
         mPath = (TextView) findViewById(R.id.pathtext);
 
+        mSearch = (EditText) findViewById(R.id.searchtext);
+        mSearch.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void afterTextChanged(Editable s) {
+                refreshView();
+            }
+
+
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+        });
+
         jumpPreviousButton = (Button) findViewById(R.id.jumpPreviousButton);
         jumpPreviousButton.setOnClickListener(new OnClickListener() {
             @Override
@@ -104,192 +146,171 @@ public class FormHierarchyActivity extends ListActivity {
 
 
     private void goUpLevel() {
-        FormIndex index = stepIndexOut(mFormEntryModel.getFormIndex());
-        int currentEvent = mFormEntryModel.getEvent();
-
-        // Step out of any group indexes that are present.
-        while (index != null && mFormEntryModel.getEvent(index) == FormEntryController.EVENT_GROUP) {
-            index = stepIndexOut(index);
-        }
-
-        if (index == null) {
-            mFormEntryController.jumpToIndex(FormIndex.createBeginningOfFormIndex());
-        } else {
-            if (currentEvent == FormEntryController.EVENT_REPEAT) {
-                // We were at a repeat, so stepping back brought us to then previous level
-                mFormEntryController.jumpToIndex(index);
-            } else {
-                // We were at a question, so stepping back brought us to either:
-                // The beginning. or The start of a repeat. So we need to step
-                // out again to go passed the repeat.
-                index = stepIndexOut(index);
-                if (index == null) {
-                    mFormEntryController.jumpToIndex(FormIndex.createBeginningOfFormIndex());
-                } else {
-                    mFormEntryController.jumpToIndex(index);
-                }
-            }
-        }
-
+        mLevel = mHierarchyModel.getParentLevel(mLevel);
         refreshView();
     }
 
 
     private String getCurrentPath() {
-        FormIndex index = stepIndexOut(mFormEntryModel.getFormIndex());
-
-        String path = "";
-        while (index != null) {
-
-            path =
-                mFormEntryModel.getCaptionPrompt(index).getLongText() + " ("
-                        + (mFormEntryModel.getCaptionPrompt(index).getMultiplicity() + 1) + ") > "
-                        + path;
-
-            index = stepIndexOut(index);
-        }
-        // return path?
-        return path.substring(0, path.length() - 2);
+        // the same breadcrumbs as above the questions, shared with form entry
+        return FormEntryActivity.getBreadcrumbCache().getPath(mLevel.getFormIndex());
     }
 
 
     public void refreshView() {
-        // Record the current index so we can return to the same place if the user hits 'back'.
-        FormIndex currentIndex = mFormEntryModel.getFormIndex();
+        formList.clear();
 
-        // If we're not at the first level, we're inside a repeated group so we want to only display
-        // everything enclosed within that group.
-        String enclosingGroupRef = "";
-        formList = new ArrayList<HierarchyElement>();
-
-        // If we're currently at a repeat node, record the name of the node and step to the next
-        // node to display.
-        if (mFormEntryModel.getEvent() == FormEntryController.EVENT_REPEAT) {
-            enclosingGroupRef = mFormEntryModel.getFormIndex().getReference().toString(false);
-            mFormEntryController.stepToNextEvent();
+        String query = mSearch.getText().toString().trim();
+        if (query.length() > 0) {
+            // the matches from the whole form, instead of the level
+            mPath.setVisibility(View.GONE);
+            jumpPreviousButton.setEnabled(false);
+            addSearchResults(query);
         } else {
-            FormIndex startTest = stepIndexOut(currentIndex);
-            // If we have a 'group' tag, we want to step back until we hit a repeat or the
-            // beginning.
-            while (startTest != null
-                    && mFormEntryModel.getEvent(startTest) == FormEntryController.EVENT_GROUP) {
-                startTest = stepIndexOut(startTest);
-            }
-            if (startTest == null) {
-                // check to see if the question is at the first level of the hierarchy. If it is,
-                // display the root level from the beginning.
-                mFormEntryController.jumpToIndex(FormIndex.createBeginningOfFormIndex());
+            if (mLevel.isRoot()) {
+                mPath.setVisibility(View.GONE);
+                jumpPreviousButton.setEnabled(false);
             } else {
-                // otherwise we're at a repeated group
-                mFormEntryController.jumpToIndex(startTest);
-            }
-
-            // now test again for repeat. This should be true at this point or we're at the
-            // beginning
-            if (mFormEntryModel.getEvent() == FormEntryController.EVENT_REPEAT) {
-                enclosingGroupRef = mFormEntryModel.getFormIndex().getReference().toString(false);
-                mFormEntryController.stepToNextEvent();
+                mPath.setVisibility(View.VISIBLE);
+                mPath.setText(getCurrentPath());
+                jumpPreviousButton.setEnabled(true);
             }
+            addLevel(mLevel);
         }
 
-        int event = mFormEntryModel.getEvent();
-        if (event == FormEntryController.EVENT_BEGINNING_OF_FORM) {
-            // The beginning of form has no valid prompt to display.
-            mFormEntryController.stepToNextEvent();
-            mPath.setVisibility(View.GONE);
-            jumpPreviousButton.setEnabled(false);
-        } else {
-            mPath.setVisibility(View.VISIBLE);
-            mPath.setText(getCurrentPath());
-            jumpPreviousButton.setEnabled(true);
-        }
+        mAdapter.notifyDataSetChanged();
+        getListView().setSelection(0);
+    }
 
-        // Refresh the current event in case we did step forward.
-        event = mFormEntryModel.getEvent();
 
-        // There may be repeating Groups at this level of the hierarchy, we use this variable to
-        // keep track of them.
-        String repeatedGroupRef = "";
+    /**
+     * Adds the relevant questions in a level to the list, including those in groups, and one
+     * collapsed entry for each repeat. The entries for its instances are only made when it is
+     * expanded, and what is inside them only when one is opened.
+     */
+    private void addLevel(Node container) {
+        String repeatRef = null;
 
-        event_search: while (event != FormEntryController.EVENT_END_OF_FORM) {
-            switch (event) {
-                case FormEntryController.EVENT_QUESTION:
-                    if (!repeatedGroupRef.equalsIgnoreCase("")) {
-                        // We're in a repeating group, so skip this question and move to the next
-                        // index.
-                        event = mFormEntryController.stepToNextEvent();
-                        continue;
-                    }
+        for (Node n : container.getChildren()) {
+            if (!mHierarchyModel.isRelevant(n)) {
+                continue;
+            }
 
-                    FormEntryPrompt fp = mFormEntryModel.getQuestionPrompt();
-                    formList.add(new HierarchyElement(fp.getLongText(), fp.getAnswerText(), null,
-                            Color.WHITE, QUESTION, fp.getIndex()));
+            switch (n.getEvent()) {
+                case FormEntryController.EVENT_QUESTION:
+                    formList.add(new HierarchyElement(n.getText(), mHierarchyModel.getAnswer(n),
+                            null, Color.WHITE, QUESTION, n.getFormIndex()));
                     break;
                 case FormEntryController.EVENT_GROUP:
-                    // ignore group events
-                    break;
-                case FormEntryController.EVENT_PROMPT_NEW_REPEAT:
-                    if (enclosingGroupRef.compareTo(mFormEntryModel.getFormIndex().getReference()
-                            .toString(false)) == 0) {
-                        // We were displaying a set of questions inside of a repeated group. This is
-                        // the end of that group.
-                        break event_search;
-                    }
-
-                    if (repeatedGroupRef.compareTo(mFormEntryModel.getFormIndex().getReference()
-                            .toString(false)) != 0) {
-                        // We're in a repeating group, so skip this repeat prompt and move to the
-                        // next event.
-                        event = mFormEntryController.stepToNextEvent();
-                        continue;
-                    }
-
-                    if (repeatedGroupRef.compareTo(mFormEntryModel.getFormIndex().getReference()
-                            .toString(false)) == 0) {
-                        // This is the end of the current repeating group, so we reset the
-                        // repeatedGroupName variable
-                        repeatedGroupRef = "";
-                    }
+                    // groups aren't shown, just their contents
+                    addLevel(n);
                     break;
                 case FormEntryController.EVENT_REPEAT:
-                    FormEntryCaption fc = mFormEntryModel.getCaptionPrompt();
-                    if (enclosingGroupRef.compareTo(mFormEntryModel.getFormIndex().getReference()
-                            .toString(false)) == 0) {
-                        // We were displaying a set of questions inside a repeated group. This is
-                        // the end of that group.
-                        break event_search;
-                    }
-                    if (repeatedGroupRef.equalsIgnoreCase("") && fc.getMultiplicity() == 0) {
+                    String ref = getRepeatRef(n);
+                    if (!ref.equals(repeatRef)) {
                         // This is the start of a repeating group. We only want to display
                         // "Group #", so we mark this as the beginning and skip all of its children
-                        HierarchyElement group =
-                            new HierarchyElement(fc.getLongText(), null, getResources()
-                                    .getDrawable(R.drawable.expander_ic_minimized), Color.WHITE,
-                                    COLLAPSED, fc.getIndex());
-                        repeatedGroupRef =
-                            mFormEntryModel.getFormIndex().getReference().toString(false);
-                        formList.add(group);
-                    }
-
-                    if (repeatedGroupRef.compareTo(mFormEntryModel.getFormIndex().getReference()
-                            .toString(false)) == 0) {
-                        // Add this group name to the drop down list for this repeating group.
-                        HierarchyElement h = formList.get(formList.size() - 1);
-                        h.addChild(new HierarchyElement(mIndent + fc.getLongText() + " "
-                                + (fc.getMultiplicity() + 1), null, null, Color.WHITE, CHILD, fc
-                                .getIndex()));
+                        formList.add(new HierarchyElement(n.getText(), null, getResources()
+                                .getDrawable(R.drawable.expander_ic_minimized), Color.WHITE,
+                                COLLAPSED, n.getFormIndex()));
+                        repeatRef = ref;
                     }
                     break;
             }
-            event = mFormEntryController.stepToNextEvent();
         }
+    }
 
-        HierarchyListAdapter itla = new HierarchyListAdapter(this);
-        itla.setListItems(formList);
-        setListAdapter(itla);
 
-        // set the controller back to the current index in case the user hits 'back'
-        mFormEntryController.jumpToIndex(currentIndex);
+    /**
+     * Lists the relevant questions anywhere in the form matching the query, each with the groups
+     * it is in. If form entry hadn't been idle long enough to finish the search index, the
+     * questions found so far are listed and the rest are added as it is built.
+     */
+    private void addSearchResults(String query) {
+        QuestionSearchIndex index = FormEntryActivity.getSearchIndex();
+        if (index.isScanning() && !mSearchScheduled) {
+            mSearchScheduled = true;
+            Looper.myQueue().addIdleHandler(mSearchHandler);
+        }
+
+        for (FormIndex i : index.search(query)) {
+            Node n = mHierarchyModel.getNode(i);
+            if (n == null) {
+                continue;
+            }
+            String path = FormEntryActivity.getBreadcrumbCache().getBreadcrumb(i);
+            String text = path.length() == 0 ? n.getText() : path + " > " + n.getText();
+            formList.add(new HierarchyElement(text, mHierarchyModel.getAnswer(n), null,
+                    Color.WHITE, QUESTION, i));
+        }
+    }
+
+
+    private final MessageQueue.IdleHandler mSearchHandler = new MessageQueue.IdleHandler() {
+        @Override
+        public boolean queueIdle() {
+            if (isFinishing()) {
+                mSearchScheduled = false;
+                return false;
+            }
+            QuestionSearchIndex index = FormEntryActivity.getSearchIndex();
+            boolean done = index.scan() || !index.isScanning();
+            String query = mSearch.getText().toString().trim();
+            if (query.length() > 0) {
+                // list what the step found, without moving the list
+                formList.clear();
+                addSearchResults(query);
+                mAdapter.notifyDataSetChanged();
+            }
+            if (done) {
+                mSearchScheduled = false;
+                return false;
+            }
+            return true;
+        }
+    };
+
+
+    @Override
+    protected void onDestroy() {
+        if (mSearchScheduled) {
+            Looper.myQueue().removeIdleHandler(mSearchHandler);
+            mSearchScheduled = false;
+        }
+        super.onDestroy();
+    }
+
+
+    /**
+     * Makes the entries for the relevant instances of a repeat.
+     * 
+     * @param first the first instance shown
+     */
+    private ArrayList<HierarchyElement> getRepeatInstances(Node first) {
+        ArrayList<HierarchyElement> instances = new ArrayList<HierarchyElement>();
+        String ref = getRepeatRef(first);
+        boolean found = false;
+        for (Node n : first.getParent().getChildren()) {
+            if (n == first) {
+                found = true;
+            }
+            if (!found || n.getEvent() != FormEntryController.EVENT_REPEAT
+                    || !mHierarchyModel.isRelevant(n)) {
+                continue;
+            }
+            if (!getRepeatRef(n).equals(ref)) {
+                // the instances of a repeat are next to each other
+                break;
+            }
+            instances.add(new HierarchyElement(mIndent + n.getText() + " "
+                    + (n.getMultiplicity() + 1), null, null, Color.WHITE, CHILD, n.getFormIndex()));
+        }
+        return instances;
+    }
+
+
+    private static String getRepeatRef(Node n) {
+        return n.getFormIndex().getReference().toString(false);
     }
 
 
@@ -322,20 +343,22 @@ public class FormHierarchyActivity extends ListActivity {
             case EXPANDED:
                 h.setType(COLLAPSED);
                 ArrayList<HierarchyElement> children = h.getChildren();
-                for (int i = 0; i < children.size(); i++) {
-                    formList.remove(position + 1);
-                }
+                formList.subList(position + 1, position + 1 + children.size()).clear();
+                // made again if it's expanded again
+                h.setChildren(new ArrayList<HierarchyElement>());
                 h.setIcon(getResources().getDrawable(R.drawable.expander_ic_minimized));
                 h.setColor(Color.WHITE);
                 break;
             case COLLAPSED:
-                h.setType(EXPANDED);
-                ArrayList<HierarchyElement> children1 = h.getChildren();
-                for (int i = 0; i < children1.size(); i++) {
-                    Log.i(t, "adding child: " + children1.get(i).getFormIndex());
-                    formList.add(position + 1 + i, children1.get(i));
-
+                Node first = mHierarchyModel.getNode(h.getFormIndex());
+                if (first == null) {
+                    Log.e(t, "repeat not found: " + h.getFormIndex());
+                    return;
                 }
+                h.setType(EXPANDED);
+                ArrayList<HierarchyElement> children1 = getRepeatInstances(first);
+                h.setChildren(children1);
+                formList.addAll(position + 1, children1);
                 h.setIcon(getResources().getDrawable(R.drawable.expander_ic_maximized));
                 h.setColor(Color.WHITE);
                 break;
@@ -345,17 +368,16 @@ public class FormHierarchyActivity extends ListActivity {
                 finish();
                 return;
             case CHILD:
-                mFormEntryController.jumpToIndex(h.getFormIndex());
-                setResult(RESULT_OK);
+                mLevel = mHierarchyModel.getNode(h.getFormIndex());
+                if (mLevel == null) {
+                    mLevel = mHierarchyModel.getRoot();
+                }
                 refreshView();
                 return;
         }
 
         // Should only get here if we've expanded or collapsed a group
-        HierarchyListAdapter itla = new HierarchyListAdapter(this);
-        itla.setListItems(formList);
-        setListAdapter(itla);
-        getListView().setSelection(position);
+        mAdapter.notifyDataSetChanged();
     }
 
 
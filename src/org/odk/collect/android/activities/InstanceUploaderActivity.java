@@ -128,6 +128,16 @@ public class InstanceUploaderActivity extends Activity implements InstanceUpload
     }
 
 
+    @Override
+    public void registrationUpdate(int status) {
+        // registrations are posted independently of the instances, so only report failures
+        if (status == InstanceUploaderTask.REGISTRATION_FAILED) {
+            Toast.makeText(this, getString(R.string.registration_failed), Toast.LENGTH_LONG)
+                    .show();
+        }
+    }
+
+
     @Override
     protected Dialog onCreateDialog(int id) {
         switch (id) {
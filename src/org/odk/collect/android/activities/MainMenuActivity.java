@@ -40,6 +40,7 @@ import android.view.MenuItem;
 import android.view.View;
 import android.view.Window;
 import android.view.View.OnClickListener;
+import android.view.View.OnLongClickListener;
 import android.widget.Button;
 import android.widget.EditText;
 import android.widget.Toast;
@@ -217,6 +218,16 @@ public class MainMenuActivity extends ApplabActivity implements Runnable {
                 startActivity(i);
             }
         });
+
+        // long press opens the hidden diagnostics screen
+        mManageFilesButton.setOnLongClickListener(new OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View v) {
+                Intent i = new Intent(getApplicationContext(), DiagnosticsActivity.class);
+                startActivity(i);
+                return true;
+            }
+        });
     }
 
     /*
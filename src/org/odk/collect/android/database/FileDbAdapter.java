@@ -57,6 +57,23 @@ public class FileDbAdapter {
     public static final String KEY_LOCATION = "location";
     public static final String KEY_INTERVIEWEE = "interviewee";
 
+    // hash cache columns
+    public static final String KEY_SIZE = "size";
+    public static final String KEY_MODIFIED = "modified";
+
+    // http validator columns
+    public static final String KEY_URL = "url";
+    public static final String KEY_ETAG = "etag";
+    public static final String KEY_LAST_MODIFIED = "lastmodified";
+
+    // swipe latency columns
+    public static final String KEY_FORM = "form";
+    public static final String KEY_QUESTION = "question";
+    public static final String KEY_TOTAL = "total";
+    public static final String KEY_SAVE = "save";
+    public static final String KEY_BUILD = "build";
+    public static final String KEY_TIME = "time";
+
     // file types
     public static final String TYPE_FORM = "form";
     public static final String TYPE_INSTANCE = "instance";
@@ -88,9 +105,40 @@ public class FileDbAdapter {
             + "location text, "
             + "interviewee text);";
 
+    // md5 hashes of attachments, so files are not rehashed on every upload attempt
+    private static final String HASHES_CREATE =
+        "create table IF NOT EXISTS hashes (_id integer primary key autoincrement, "
+            + "path text not null unique, "
+            + "size integer not null, "
+            + "modified integer not null, "
+            + "hash text not null);";
+
+    // ETag and Last-Modified values of downloaded urls, used for conditional requests
+    private static final String VALIDATORS_CREATE =
+        "create table IF NOT EXISTS validators (_id integer primary key autoincrement, "
+            + "url text not null unique, "
+            + "etag text, "
+            + "lastmodified text);";
+
+    // how long each swipe in form entry took to show the next screen, in milliseconds
+    private static final String LATENCIES_CREATE =
+        "create table IF NOT EXISTS latencies (_id integer primary key autoincrement, "
+            + "form text not null, "
+            + "question text not null, "
+            + "total integer not null, "
+            + "save integer not null, "
+            + "build integer not null, "
+            + "time integer not null);";
+
+    // only the most recent swipes are kept
+    private static final int MAX_LATENCIES = 10000;
+
     private static final String DATABASE_NAME = "data";
     private static final String DATABASE_TABLE = "files";
-    private static final int DATABASE_VERSION = 4;
+    private static final String HASHES_TABLE = "hashes";
+    private static final String VALIDATORS_TABLE = "validators";
+    private static final String LATENCIES_TABLE = "latencies";
+    private static final int DATABASE_VERSION = 7;
     private static final String DATABASE_PATH = Environment.getExternalStorageDirectory()
     + "/odk/metadata";
 
@@ -119,24 +167,31 @@ public class FileDbAdapter {
          */
         public void createTables(SQLiteDatabase db) throws SQLException {
             db.execSQL(DATABASE_CREATE);
+            db.execSQL(HASHES_CREATE);
+            db.execSQL(VALIDATORS_CREATE);
+            db.execSQL(LATENCIES_CREATE);
         }
 
 
         @Override
-        // upgrading will destroy all old data
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-            if(newVersion == 3) {
+            // apply every step between the old and the new version, not just the last one
+            if (oldVersion < 3) {
                 db.execSQL("ALTER TABLE " + DATABASE_TABLE + " ADD " + KEY_LOCATION + " TEXT");
             }
-            else if (newVersion == 4) {
+            if (oldVersion < 4) {
                 db.execSQL("ALTER TABLE " + DATABASE_TABLE + " ADD " + KEY_INTERVIEWEE + " TEXT");
             }
-            
+
+            // new tables are created here
             createTables(db);
         }
         
         private  void dropTables(SQLiteDatabase db) {
             db.execSQL("DROP TABLE IF EXISTS " + DATABASE_TABLE);
+            db.execSQL("DROP TABLE IF EXISTS " + HASHES_TABLE);
+            db.execSQL("DROP TABLE IF EXISTS " + VALIDATORS_TABLE);
+            db.execSQL("DROP TABLE IF EXISTS " + LATENCIES_TABLE);
         }
     }
     
@@ -218,15 +273,27 @@ public class FileDbAdapter {
      * @return id of the new file
      */
     public long createFile(String path, String type, String status) {
+        return createFile(path, type, status, FileUtils.getMd5Hash(new File(path)));
+    }
+
+
+    /**
+     * Insert file into the database, using a hash that is already known.
+     * 
+     * @param path path to the file
+     * @param type type of the file
+     * @param status status of the file
+     * @param hash md5 hash of the file
+     * @return id of the new file
+     */
+    public long createFile(String path, String type, String status, String hash) {
         File f = new File(path);
         ContentValues cv = new ContentValues();
 
         cv.put(KEY_FILEPATH, f.getAbsolutePath());
         cv.put(KEY_TYPE, type);
         cv.put(KEY_STATUS, status);
-
-        // create md5 hash of the file
-        cv.put(KEY_HASH, FileUtils.getMd5Hash(f));
+        cv.put(KEY_HASH, hash);
 
         // first row of the row display
         cv.put(KEY_DISPLAY, generateDisplay(f.getAbsolutePath(), type));
@@ -411,6 +478,182 @@ public class FileDbAdapter {
     }
 
 
+    /**
+     * Get the md5 hash of a file, reusing the cached hash if the file has the same size and date
+     * modified as when it was last hashed.
+     * 
+     * @param f file to hash
+     * @return md5 hash of the file, or null if it could not be read
+     */
+    public String getCachedMd5Hash(File f) {
+        String path = f.getAbsolutePath();
+        long size = f.length();
+        long modified = f.lastModified();
+
+        Cursor c = mDb.query(HASHES_TABLE, new String[] {
+                KEY_SIZE, KEY_MODIFIED, KEY_HASH
+        }, KEY_FILEPATH + "=?", new String[] {
+            path
+        }, null, null, null);
+        if (c != null) {
+            try {
+                if (c.moveToFirst() && c.getLong(c.getColumnIndex(KEY_SIZE)) == size
+                        && c.getLong(c.getColumnIndex(KEY_MODIFIED)) == modified) {
+                    return c.getString(c.getColumnIndex(KEY_HASH));
+                }
+            } finally {
+                c.close();
+            }
+        }
+
+        String hash = FileUtils.getMd5Hash(f);
+        if (hash != null) {
+            cacheMd5Hash(f, hash);
+        }
+        return hash;
+    }
+
+
+    /**
+     * Record the md5 hash of a file against its current size and date modified.
+     * 
+     * @param f file that was hashed
+     * @param hash md5 hash of the file
+     */
+    public void cacheMd5Hash(File f, String hash) {
+        ContentValues cv = new ContentValues();
+        cv.put(KEY_FILEPATH, f.getAbsolutePath());
+        cv.put(KEY_SIZE, f.length());
+        cv.put(KEY_MODIFIED, f.lastModified());
+        cv.put(KEY_HASH, hash);
+        mDb.replace(HASHES_TABLE, null, cv);
+    }
+
+
+    /**
+     * Get the validators last returned by the server for a url.
+     * 
+     * @param url the url that was downloaded
+     * @return the ETag and Last-Modified values (either may be null), or null if none are stored
+     */
+    public String[] getValidators(String url) {
+        Cursor c = mDb.query(VALIDATORS_TABLE, new String[] {
+                KEY_ETAG, KEY_LAST_MODIFIED
+        }, KEY_URL + "=?", new String[] {
+            url
+        }, null, null, null);
+        if (c == null) {
+            return null;
+        }
+        try {
+            if (!c.moveToFirst()) {
+                return null;
+            }
+            return new String[] {
+                    c.getString(c.getColumnIndex(KEY_ETAG)),
+                    c.getString(c.getColumnIndex(KEY_LAST_MODIFIED))
+            };
+        } finally {
+            c.close();
+        }
+    }
+
+
+    /**
+     * Store the validators returned by the server for a url. If the server sent neither, any
+     * stored validators are removed.
+     * 
+     * @param url the url that was downloaded
+     * @param etag value of the ETag header
+     * @param lastModified value of the Last-Modified header
+     */
+    public void updateValidators(String url, String etag, String lastModified) {
+        if (etag == null && lastModified == null) {
+            mDb.delete(VALIDATORS_TABLE, KEY_URL + "=?", new String[] {
+                url
+            });
+            return;
+        }
+        ContentValues cv = new ContentValues();
+        cv.put(KEY_URL, url);
+        cv.put(KEY_ETAG, etag);
+        cv.put(KEY_LAST_MODIFIED, lastModified);
+        mDb.replace(VALIDATORS_TABLE, null, cv);
+    }
+
+
+    /**
+     * Starts a transaction, so a batch of writes is committed at once.
+     */
+    public void beginTransaction() {
+        mDb.beginTransaction();
+    }
+
+
+    /**
+     * Marks the transaction as successful, so endTransaction() commits it.
+     */
+    public void setTransactionSuccessful() {
+        mDb.setTransactionSuccessful();
+    }
+
+
+    /**
+     * Ends the transaction, rolling it back unless setTransactionSuccessful() was called.
+     */
+    public void endTransaction() {
+        mDb.endTransaction();
+    }
+
+
+    /**
+     * Record how long a swipe in form entry took. Call trimLatencies() once a batch has been
+     * added.
+     * 
+     * @param form name of the form
+     * @param question reference of the question that was shown
+     * @param total milliseconds from the gesture to the first frame of the new screen
+     * @param save milliseconds spent saving the answer and checking constraints
+     * @param build milliseconds spent building the new screen
+     * @param time when the swipe happened
+     */
+    public void addLatency(String form, String question, long total, long save, long build,
+            long time) {
+        ContentValues cv = new ContentValues();
+        cv.put(KEY_FORM, form);
+        cv.put(KEY_QUESTION, question);
+        cv.put(KEY_TOTAL, total);
+        cv.put(KEY_SAVE, save);
+        cv.put(KEY_BUILD, build);
+        cv.put(KEY_TIME, time);
+        mDb.insert(LATENCIES_TABLE, null, cv);
+    }
+
+
+    /**
+     * Drop the oldest swipe latencies once there are too many.
+     */
+    public void trimLatencies() {
+        mDb.delete(LATENCIES_TABLE, KEY_ID + "<=(SELECT MAX(" + KEY_ID + ") FROM "
+                + LATENCIES_TABLE + ")-" + MAX_LATENCIES, null);
+    }
+
+
+    /**
+     * Get all recorded swipe latencies, oldest first.
+     */
+    public Cursor fetchLatencies() throws SQLException {
+        return mDb.query(LATENCIES_TABLE, new String[] {
+                KEY_FORM, KEY_QUESTION, KEY_TOTAL, KEY_SAVE, KEY_BUILD, KEY_TIME
+        }, null, null, null, null, KEY_ID);
+    }
+
+
+    public void deleteLatencies() {
+        mDb.delete(LATENCIES_TABLE, null, null);
+    }
+
+
     /**
      * Find orphaned files on the file system
      */
@@ -432,6 +675,22 @@ public class FileDbAdapter {
             }
             c.close();
         }
+
+        // drop cached hashes of files that have been removed
+        c = mDb.query(HASHES_TABLE, new String[] {
+            KEY_FILEPATH
+        }, null, null, null, null, null);
+        if (c != null) {
+            while (c.moveToNext()) {
+                String path = c.getString(c.getColumnIndex(KEY_FILEPATH));
+                if (!new File(path).exists()) {
+                    mDb.delete(HASHES_TABLE, KEY_FILEPATH + "=?", new String[] {
+                        path
+                    });
+                }
+            }
+            c.close();
+        }
     }
 
 
@@ -492,8 +751,8 @@ public class FileDbAdapter {
                     if (!(formPath.endsWith(".xml") || formPath.endsWith(".xhtml")))
                         continue;
 
-                    // hash of raw form
-                    hash = FileUtils.getMd5Hash(new File(formPath));
+                    // hash of raw form, reused if the form hasn't changed since it was hashed
+                    hash = getCachedMd5Hash(new File(formPath));
 
                     c = fetchFilesByPath(null, hash);
                     // db has the hash
@@ -515,7 +774,7 @@ public class FileDbAdapter {
 
                         // add this raw form
                         createFile(formPath, FileDbAdapter.TYPE_FORM,
-                                FileDbAdapter.STATUS_AVAILABLE);
+                                FileDbAdapter.STATUS_AVAILABLE, hash);
 
                     }
                 }
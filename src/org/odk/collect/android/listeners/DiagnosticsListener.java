@@ -0,0 +1,27 @@
+/**
+ * Copyright (C) 2012 Grameen Foundation
+Licensed under the Apache License, Version 2.0 (the "License"); you may not
+use this file except in compliance with the License. You may obtain a copy of
+the License at http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations under
+the License.
+ */
+
+package org.odk.collect.android.listeners;
+
+import java.io.File;
+
+public interface DiagnosticsListener {
+    /**
+     * @param report the latency report, or null if no swipes have been recorded
+     */
+    void reportReady(String report);
+
+    /**
+     * @param f the file written, or null if it could not be
+     */
+    void exportComplete(File f);
+}
@@ -22,4 +22,6 @@ import java.util.HashMap;
 public interface FormDownloaderListener {
     void formDownloadingComplete(HashMap<String, String> result);
     void progressUpdate(String currentFile, int progress, int total);
+    void formFound(String form, String url, String hash, String version, String manifestUrl);
+    void formListReset();
 }
@@ -23,4 +23,5 @@ import java.util.ArrayList;
 public interface InstanceUploaderListener {
     void uploadingComplete(ArrayList<String> result);
     void progressUpdate(int progress, int total);
+    void registrationUpdate(int status);
 }
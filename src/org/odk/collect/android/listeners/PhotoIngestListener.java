@@ -0,0 +1,23 @@
+/**
+ * Copyright (C) 2012 Grameen Foundation
+Licensed under the Apache License, Version 2.0 (the "License"); you may not
+use this file except in compliance with the License. You may obtain a copy of
+the License at http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations under
+the License.
+ */
+
+package org.odk.collect.android.listeners;
+
+import java.io.File;
+
+public interface PhotoIngestListener {
+    /**
+     * @param photo where the photo was moved to
+     * @param ok false if it couldn't be moved
+     */
+    void photoIngested(File photo, boolean ok);
+}
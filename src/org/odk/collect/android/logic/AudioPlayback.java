@@ -0,0 +1,216 @@
+/**
+ * Copyright (C) 2012 Grameen Foundation
+Licensed under the Apache License, Version 2.0 (the "License"); you may not
+use this file except in compliance with the License. You may obtain a copy of
+the License at http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations under
+the License.
+ */
+
+package org.odk.collect.android.logic;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import android.media.MediaPlayer;
+import android.media.MediaPlayer.OnErrorListener;
+import android.media.MediaPlayer.OnPreparedListener;
+import android.util.Log;
+
+/**
+ * Plays the audio prompts of form entry. Players are prepared in the background ahead of being
+ * needed, for the question on screen and the next one, and kept prepared so a tap starts playback
+ * at once and a second tap replays without preparing again.
+ * <p>
+ * Only a few players are kept; the least recently used is released to make room. Only one prompt
+ * plays at a time. Must be used from the UI thread, and {@link #release()} called when form entry
+ * is left.
+ */
+public class AudioPlayback {
+
+    private final static String t = "AudioPlayback";
+
+    // players kept prepared: the prompts on screen and those on the next question
+    private static final int MAX_PLAYERS = 3;
+
+    public interface PlaybackListener {
+        /**
+         * Called if the file couldn't be prepared or played.
+         */
+        void playbackFailed(String path);
+    }
+
+    private class Player implements OnPreparedListener, OnErrorListener {
+        final String mPath;
+        final MediaPlayer mPlayer = new MediaPlayer();
+        boolean mPrepared;
+        // set when play() was called before preparing finished
+        PlaybackListener mPlayWhenPrepared;
+
+
+        Player(String path) {
+            mPath = path;
+        }
+
+
+        @Override
+        public void onPrepared(MediaPlayer mp) {
+            mPrepared = true;
+            if (mPlayWhenPrepared != null) {
+                mPlayWhenPrepared = null;
+                start(this);
+            }
+        }
+
+
+        @Override
+        public boolean onError(MediaPlayer mp, int what, int extra) {
+            Log.e(t, "Error " + what + " playing " + mPath);
+            PlaybackListener listener = mPlayWhenPrepared;
+            discard(this);
+            if (listener != null) {
+                listener.playbackFailed(mPath);
+            }
+            return true;
+        }
+    }
+
+    private static AudioPlayback sInstance;
+
+    // in access order, so the first is the least recently used
+    private final LinkedHashMap<String, Player> mPlayers =
+        new LinkedHashMap<String, Player>(MAX_PLAYERS, 0.75f, true);
+    // the player that was started last
+    private Player mCurrent;
+
+
+    public static AudioPlayback getInstance() {
+        if (sInstance == null) {
+            sInstance = new AudioPlayback();
+        }
+        return sInstance;
+    }
+
+
+    /**
+     * Starts preparing a file in the background, so playing it later starts at once.
+     */
+    public void prepare(String path) {
+        obtain(path);
+    }
+
+
+    /**
+     * Plays a file from the beginning, stopping whatever else was playing. If the file is still
+     * being prepared it plays as soon as it is ready.
+     */
+    public void play(String path, PlaybackListener listener) {
+        stop();
+        Player p = obtain(path);
+        if (p == null) {
+            listener.playbackFailed(path);
+            return;
+        }
+        if (p.mPrepared) {
+            start(p);
+        } else {
+            p.mPlayWhenPrepared = listener;
+        }
+    }
+
+
+    /**
+     * Stops the prompt being played, if it is the given file.
+     */
+    public void stop(String path) {
+        if (mCurrent != null && mCurrent.mPath.equals(path)) {
+            stop();
+        }
+    }
+
+
+    /**
+     * Stops whatever is playing. The players stay prepared.
+     */
+    public void stop() {
+        for (Player p : mPlayers.values()) {
+            p.mPlayWhenPrepared = null;
+        }
+        if (mCurrent != null && mCurrent.mPrepared && mCurrent.mPlayer.isPlaying()) {
+            mCurrent.mPlayer.pause();
+        }
+        mCurrent = null;
+    }
+
+
+    /**
+     * Releases every player.
+     */
+    public void release() {
+        mCurrent = null;
+        for (Player p : mPlayers.values()) {
+            p.mPlayer.release();
+        }
+        mPlayers.clear();
+    }
+
+
+    private void start(Player p) {
+        mCurrent = p;
+        // after a stop or once finished, play again from the start
+        p.mPlayer.seekTo(0);
+        p.mPlayer.start();
+    }
+
+
+    /**
+     * @return the player for the file, preparing a new one if needed, or null if the file can't be
+     *         opened
+     */
+    private Player obtain(String path) {
+        Player p = mPlayers.get(path);
+        if (p != null) {
+            return p;
+        }
+
+        p = new Player(path);
+        try {
+            p.mPlayer.setDataSource(path);
+        } catch (IOException e) {
+            Log.e(t, "Could not open " + path + ": " + e.getMessage());
+            p.mPlayer.release();
+            return null;
+        }
+        p.mPlayer.setOnPreparedListener(p);
+        p.mPlayer.setOnErrorListener(p);
+        p.mPlayer.prepareAsync();
+        mPlayers.put(path, p);
+
+        // make room, keeping whatever is playing
+        Iterator<Player> i = mPlayers.values().iterator();
+        while (mPlayers.size() > MAX_PLAYERS && i.hasNext()) {
+            Player eldest = i.next();
+            if (eldest == mCurrent || eldest == p) {
+                continue;
+            }
+            eldest.mPlayer.release();
+            i.remove();
+        }
+        return p;
+    }
+
+
+    private void discard(Player p) {
+        if (mCurrent == p) {
+            mCurrent = null;
+        }
+        if (mPlayers.get(p.mPath) == p) {
+            mPlayers.remove(p.mPath);
+        }
+        p.mPlayer.release();
+    }
+}
@@ -0,0 +1,107 @@
+/**
+ * Copyright (C) 2012 Grameen Foundation
+Licensed under the Apache License, Version 2.0 (the "License"); you may not
+use this file except in compliance with the License. You may obtain a copy of
+the License at http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations under
+the License.
+ */
+
+package org.odk.collect.android.logic;
+
+import java.util.HashMap;
+
+import org.javarosa.core.model.FormIndex;
+import org.javarosa.form.api.FormEntryCaption;
+import org.javarosa.form.api.FormEntryModel;
+
+/**
+ * The "Group (2) > Subgroup" text naming the groups an index is in, as shown above each question
+ * and at the top of the hierarchy screen.
+ * <p>
+ * Each group's text is built once from its parent's and kept, keyed by the group's position in the
+ * form, so questions in the same group share it and a deeper group only adds its own caption.
+ * Captions depend on the language and repeat numbers on the repeats before them, so the cache
+ * must be cleared when either changes.
+ */
+public class BreadcrumbCache {
+
+    private static final String SEPARATOR = " > ";
+
+    private FormEntryModel mModel;
+    private HashMap<String, String> mPaths = new HashMap<String, String>();
+
+
+    public BreadcrumbCache(FormEntryModel model) {
+        mModel = model;
+    }
+
+
+    public void clear() {
+        mPaths.clear();
+    }
+
+
+    /**
+     * @return the groups enclosing the index, or "" if there are none
+     */
+    public String getBreadcrumb(FormIndex index) {
+        if (index == null || !index.isInForm() || index.isTerminal()) {
+            return "";
+        }
+        return getPath(stepIndexOut(index));
+    }
+
+
+    /**
+     * @return the given group and the groups enclosing it
+     */
+    public String getPath(FormIndex group) {
+        String key = getKey(group);
+        String path = mPaths.get(key);
+        if (path != null) {
+            return path;
+        }
+
+        String parent = group.isTerminal() ? "" : getPath(stepIndexOut(group));
+        FormEntryCaption fc = mModel.getCaptionPrompt(group);
+        String text = fc.getLongText();
+        if (text == null) {
+            // untitled groups aren't shown
+            path = parent;
+        } else {
+            if (fc.repeats()) {
+                text = text + " (" + (fc.getMultiplicity() + 1) + ")";
+            }
+            path = parent.length() == 0 ? text : parent + SEPARATOR + text;
+        }
+        mPaths.put(key, path);
+        return path;
+    }
+
+
+    /**
+     * @return a key naming the index's position, including which repeat instances it is in
+     */
+    private static String getKey(FormIndex index) {
+        StringBuilder key = new StringBuilder();
+        for (FormIndex i = index; i != null; i = i.getNextLevel()) {
+            key.append(i.getLocalIndex()).append('_').append(i.getInstanceIndex()).append(',');
+        }
+        return key.toString();
+    }
+
+
+    /**
+     * @return the index one level up, e.g. 5_0 for 5_0, 1
+     */
+    private static FormIndex stepIndexOut(FormIndex index) {
+        if (index.isTerminal()) {
+            return null;
+        }
+        return new FormIndex(stepIndexOut(index.getNextLevel()), index);
+    }
+}
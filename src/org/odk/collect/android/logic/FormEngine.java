@@ -0,0 +1,263 @@
+/**
+ * Copyright (C) 2012 Grameen Foundation
+Licensed under the Apache License, Version 2.0 (the "License"); you may not
+use this file except in compliance with the License. You may obtain a copy of
+the License at http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations under
+the License.
+ */
+
+package org.odk.collect.android.logic;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.javarosa.core.model.FormIndex;
+import org.javarosa.core.model.data.IAnswerData;
+import org.javarosa.form.api.FormEntryController;
+import org.javarosa.form.api.FormEntryModel;
+
+import android.os.Handler;
+import android.util.Log;
+
+/**
+ * Commits answers to the form on a background thread, so that constraint checks and the
+ * recalculations an answer triggers don't freeze the screen after a swipe.
+ * <p>
+ * Only answers go through this thread, one at a time and in the order they were given. Everything
+ * else, navigation and building views included, still reads and changes the form on the UI thread.
+ * That is safe as long as the UI thread leaves the form alone while a commit is running:
+ * <ul>
+ * <li>code that can run while a swipe's answer is being committed, such as idle handlers and
+ * menus, checks {@link #isBusy()} first and does nothing while it is true</li>
+ * <li>code that can't wait for that, such as activity results and saving before the activity is
+ * recreated, calls {@link #waitUntilIdle()} before it touches the form</li>
+ * </ul>
+ * {@link #saveAnswerAndWait} and {@link #waitUntilIdle()} block the calling thread until the
+ * commit in flight is done, so they are kept to places that can't go on without it. Must be
+ * created on the UI thread, which is where listeners are called.
+ */
+public class FormEngine {
+
+    private final static String t = "FormEngine";
+
+    // how long closing waits for a commit that is still running
+    private static final int CLOSE_TIMEOUT = 10;
+
+    public interface AnswerListener {
+        void answerSaved(AnswerResult result);
+    }
+
+    /**
+     * The outcome of committing an answer.
+     */
+    public static class AnswerResult {
+        /** the question answered */
+        public final FormIndex index;
+        /** one of the FormEntryController.ANSWER_ constants */
+        public final int status;
+        /** the answer text before and after, to tell if anything changed */
+        public final String before;
+        public final String after;
+
+
+        AnswerResult(FormIndex index, int status, String before, String after) {
+            this.index = index;
+            this.status = status;
+            this.before = before;
+            this.after = after;
+        }
+
+
+        public boolean isChanged() {
+            return before == null ? after != null : !before.equals(after);
+        }
+    }
+
+    private final FormEntryController mController;
+    private final ExecutorService mExecutor;
+    private final Handler mHandler;
+
+    // only used on the UI thread
+    private int mPending;
+    private boolean mClosed;
+
+
+    public FormEngine(FormEntryController fec) {
+        mController = fec;
+        mHandler = new Handler();
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, t);
+            }
+        });
+    }
+
+
+    /**
+     * @return true while an answer is being committed
+     */
+    public boolean isBusy() {
+        return mPending > 0;
+    }
+
+
+    /**
+     * Commits an answer in the background and calls the listener on the UI thread when done.
+     *
+     * @param index question being answered, which must be the current one if constraints are
+     *            evaluated
+     * @param answer the answer, or null to clear it
+     * @param evaluateConstraints whether to check constraints and refuse a bad answer
+     */
+    public void saveAnswer(FormIndex index, IAnswerData answer, boolean evaluateConstraints,
+            final AnswerListener listener) {
+        final Callable<AnswerResult> task = createAnswerTask(index, answer, evaluateConstraints);
+        mPending++;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                AnswerResult result = null;
+                RuntimeException error = null;
+                try {
+                    result = task.call();
+                } catch (RuntimeException e) {
+                    error = e;
+                } catch (Exception e) {
+                    error = new RuntimeException(e);
+                }
+
+                final AnswerResult r = result;
+                final RuntimeException e = error;
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mPending--;
+                        if (e != null) {
+                            // fail the same way as if it had run on this thread
+                            throw e;
+                        }
+                        if (!mClosed) {
+                            listener.answerSaved(r);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+
+    /**
+     * Commits an answer after anything already queued, and waits for it.
+     */
+    public AnswerResult saveAnswerAndWait(FormIndex index, IAnswerData answer,
+            boolean evaluateConstraints) {
+        Future<AnswerResult> f =
+                mExecutor.submit(createAnswerTask(index, answer, evaluateConstraints));
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return f.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+
+    /**
+     * Waits for the answers already queued to be committed. Their listeners may not have been
+     * called yet, but the form can be read until another answer is queued.
+     */
+    public void waitUntilIdle() {
+        Future<?> f = mExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                // nothing to do, only to wait for what is ahead of it
+            }
+        });
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    f.get();
+                    return;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    // a failed commit is reported to its own listener
+                    return;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+
+    private Callable<AnswerResult> createAnswerTask(final FormIndex index,
+            final IAnswerData answer, final boolean evaluateConstraints) {
+        return new Callable<AnswerResult>() {
+            @Override
+            public AnswerResult call() {
+                FormEntryModel model = mController.getModel();
+                String before = model.getQuestionPrompt(index).getAnswerText();
+                int status;
+                if (evaluateConstraints) {
+                    status = mController.answerQuestion(answer);
+                } else {
+                    mController.saveAnswer(index, answer);
+                    status = FormEntryController.ANSWER_OK;
+                }
+                String after = before;
+                if (status == FormEntryController.ANSWER_OK) {
+                    after = model.getQuestionPrompt(index).getAnswerText();
+                }
+                return new AnswerResult(index, status, before, after);
+            }
+        };
+    }
+
+
+    /**
+     * Stops taking answers and waits for the one being committed, if any, so nothing else touches
+     * the form afterwards. Listeners still queued are not called.
+     */
+    public void close() {
+        mClosed = true;
+        mExecutor.shutdown();
+        try {
+            if (!mExecutor.awaitTermination(CLOSE_TIMEOUT, TimeUnit.SECONDS)) {
+                Log.e(t, "Timed out waiting for an answer to be saved");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,290 @@
+/**
+ * Copyright (C) 2012 Grameen Foundation
+Licensed under the Apache License, Version 2.0 (the "License"); you may not
+use this file except in compliance with the License. You may obtain a copy of
+the License at http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations under
+the License.
+ */
+
+package org.odk.collect.android.logic;
+
+import java.util.ArrayList;
+
+import org.javarosa.core.model.FormIndex;
+import org.javarosa.form.api.FormEntryCaption;
+import org.javarosa.form.api.FormEntryController;
+import org.javarosa.form.api.FormEntryModel;
+import org.javarosa.form.api.FormEntryPrompt;
+
+/**
+ * The questions, groups and repeats of a form as a tree, built with one walk over the form and
+ * kept for the rest of the session, so the hierarchy screen can be drawn without stepping the
+ * controller through the form.
+ * <p>
+ * Answers and relevance are read again only for the nodes being shown, and only after an answer
+ * has changed since they were last read. Adding or deleting a repeat, or changing language,
+ * changes the tree itself and it is rebuilt on next use.
+ * <p>
+ * Like the form model itself, this must only be used from the UI thread.
+ */
+public class FormHierarchyModel {
+
+    public static class Node {
+        final FormIndex mIndex;
+        final int mEvent;
+        final Node mParent;
+        final ArrayList<Node> mChildren = new ArrayList<Node>();
+
+        // caption, and for groups and repeats the multiplicity
+        String mText;
+        int mMultiplicity;
+
+        // refreshed when older than the model's generation
+        int mGeneration = -1;
+        boolean mRelevant;
+        String mAnswer;
+
+
+        Node(FormIndex index, int event, Node parent) {
+            mIndex = index;
+            mEvent = event;
+            mParent = parent;
+        }
+
+
+        public FormIndex getFormIndex() {
+            return mIndex;
+        }
+
+
+        /**
+         * @return one of the FormEntryController.EVENT_ constants
+         */
+        public int getEvent() {
+            return mEvent;
+        }
+
+
+        public Node getParent() {
+            return mParent;
+        }
+
+
+        public ArrayList<Node> getChildren() {
+            return mChildren;
+        }
+
+
+        public String getText() {
+            return mText;
+        }
+
+
+        /**
+         * @return which instance of its repeat this is, starting from 0
+         */
+        public int getMultiplicity() {
+            return mMultiplicity;
+        }
+
+
+        /**
+         * @return true for the form itself, which has no index
+         */
+        public boolean isRoot() {
+            return mIndex == null;
+        }
+    }
+
+    private FormEntryModel mModel;
+
+    // null until built, or after the structure of the form changed
+    private Node mRoot;
+    // every node but the root, in form order
+    private ArrayList<Node> mNodes;
+
+    private int mGeneration;
+
+
+    public FormHierarchyModel(FormEntryModel model) {
+        mModel = model;
+    }
+
+
+    /**
+     * Marks every answer and relevance as needing to be read again, after an answer changed.
+     */
+    public void answersChanged() {
+        mGeneration++;
+    }
+
+
+    /**
+     * Forgets the tree, after a repeat was added or deleted or the language changed.
+     */
+    public void structureChanged() {
+        mRoot = null;
+        mNodes = null;
+    }
+
+
+    public Node getRoot() {
+        build();
+        return mRoot;
+    }
+
+
+    /**
+     * @return the node for the index, or null if it isn't in the tree
+     */
+    public Node getNode(FormIndex index) {
+        if (index == null || !index.isInForm()) {
+            return null;
+        }
+        build();
+
+        // the nodes are in form order, so a binary search will do
+        int low = 0;
+        int high = mNodes.size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            Node candidate = mNodes.get(mid);
+            int c = candidate.mIndex.compareTo(index);
+            if (c < 0) {
+                low = mid + 1;
+            } else if (c > 0) {
+                high = mid - 1;
+            } else {
+                return candidate.mIndex.equals(index) ? candidate : null;
+            }
+        }
+        return null;
+    }
+
+
+    /**
+     * Finds the level the hierarchy screen shows for an index: the repeat instance it is in, or
+     * the root if it isn't in one. A repeat instance is its own level.
+     */
+    public Node getLevel(FormIndex index) {
+        Node n = getNode(index);
+        while (n != null && n.mEvent != FormEntryController.EVENT_REPEAT) {
+            n = n.mParent;
+        }
+        return n == null ? getRoot() : n;
+    }
+
+
+    /**
+     * @return the level above the given one
+     */
+    public Node getParentLevel(Node level) {
+        if (level.isRoot()) {
+            return level;
+        }
+        Node n = level.mParent;
+        while (!n.isRoot() && n.mEvent != FormEntryController.EVENT_REPEAT) {
+            n = n.mParent;
+        }
+        return n;
+    }
+
+
+    public boolean isRelevant(Node n) {
+        refresh(n);
+        return n.mRelevant;
+    }
+
+
+    /**
+     * @return the answer text of a question
+     */
+    public String getAnswer(Node n) {
+        refresh(n);
+        return n.mAnswer;
+    }
+
+
+    private void refresh(Node n) {
+        if (n.mGeneration == mGeneration || n.isRoot()) {
+            return;
+        }
+        n.mGeneration = mGeneration;
+        n.mRelevant = mModel.isIndexRelevant(n.mIndex);
+        if (n.mEvent == FormEntryController.EVENT_QUESTION) {
+            n.mAnswer = mModel.getQuestionPrompt(n.mIndex).getAnswerText();
+        }
+    }
+
+
+    /**
+     * Walks the form once, recording every question, group and repeat instance and how they nest.
+     */
+    private void build() {
+        if (mRoot != null) {
+            return;
+        }
+
+        Node root = new Node(null, FormEntryController.EVENT_BEGINNING_OF_FORM, null);
+        root.mRelevant = true;
+        ArrayList<Node> nodes = new ArrayList<Node>();
+
+        // the open groups and repeats, innermost last, with their depths
+        ArrayList<Node> open = new ArrayList<Node>();
+        ArrayList<Integer> openDepths = new ArrayList<Integer>();
+
+        FormIndex index = FormIndex.createBeginningOfFormIndex();
+        while (true) {
+            index = mModel.getForm().incrementIndex(index);
+            if (!index.isInForm()) {
+                break;
+            }
+
+            // the walk is depth first, so a group ends at the first event
+            // that is no deeper than the group itself
+            int depth = getDepth(index);
+            while (!open.isEmpty() && openDepths.get(open.size() - 1) >= depth) {
+                openDepths.remove(open.size() - 1);
+                open.remove(open.size() - 1);
+            }
+
+            int event = mModel.getEvent(index);
+            if (event == FormEntryController.EVENT_PROMPT_NEW_REPEAT) {
+                // not shown in the hierarchy
+                continue;
+            }
+
+            Node parent = open.isEmpty() ? root : open.get(open.size() - 1);
+            Node n = new Node(index, event, parent);
+            if (event == FormEntryController.EVENT_QUESTION) {
+                FormEntryPrompt fp = mModel.getQuestionPrompt(index);
+                n.mText = fp.getLongText();
+            } else {
+                FormEntryCaption fc = mModel.getCaptionPrompt(index);
+                n.mText = fc.getLongText();
+                n.mMultiplicity = fc.getMultiplicity();
+                open.add(n);
+                openDepths.add(depth);
+            }
+            parent.mChildren.add(n);
+            nodes.add(n);
+        }
+
+        mNodes = nodes;
+        mRoot = root;
+    }
+
+
+    private static int getDepth(FormIndex index) {
+        int depth = 0;
+        while (index != null) {
+            depth++;
+            index = index.getNextLevel();
+        }
+        return depth;
+    }
+}
@@ -0,0 +1,261 @@
+/**
+ * Copyright (C) 2012 Grameen Foundation
+Licensed under the Apache License, Version 2.0 (the "License"); you may not
+use this file except in compliance with the License. You may obtain a copy of
+the License at http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations under
+the License.
+ */
+
+package org.odk.collect.android.logic;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+
+import org.javarosa.core.model.FormIndex;
+import org.javarosa.form.api.FormEntryController;
+import org.javarosa.form.api.FormEntryModel;
+
+/**
+ * The events of a form flattened into form order, so that a swipe can find the next or previous
+ * relevant question without stepping the controller through every group and skipped question on
+ * the way.
+ * <p>
+ * Each group and repeat records where it ends, so a group that isn't relevant is passed over in
+ * one step. Relevance is looked up lazily and kept in a bitset until an answer changes, since any
+ * answer can fire triggerables that change it. Adding or deleting a repeat changes the events
+ * themselves, and the list is rebuilt on next use.
+ * <p>
+ * Like the form model itself, this must only be used from the UI thread.
+ */
+public class FormNavigationIndex {
+
+    private FormEntryModel mModel;
+
+    // null until built, or after the structure of the form changed
+    private ArrayList<FormIndex> mIndexes;
+    private int[] mEvents;
+    // for groups and repeats, the position just past their last child
+    private int[] mEnds;
+    // the enclosing group or repeat, or -1 at the top level
+    private int[] mParents;
+
+    private BitSet mRelevanceKnown = new BitSet();
+    private BitSet mRelevant = new BitSet();
+
+
+    public FormNavigationIndex(FormEntryModel model) {
+        mModel = model;
+    }
+
+
+    /**
+     * Forgets all relevance, after an answer changed.
+     */
+    public void answersChanged() {
+        mRelevanceKnown.clear();
+    }
+
+
+    /**
+     * Forgets the whole index, after a repeat was added or deleted.
+     */
+    public void structureChanged() {
+        mIndexes = null;
+        mRelevanceKnown.clear();
+    }
+
+
+    /**
+     * Finds where a forward swipe from the given index lands: the next relevant question or
+     * repeat prompt, or the end of the form. Groups are passed over as getNextNotGroupEvent does.
+     *
+     * @return the index to jump to, or null if the index isn't known
+     */
+    public FormIndex getNext(FormIndex from) {
+        int i;
+        if (from.isBeginningOfFormIndex()) {
+            build();
+            i = 0;
+        } else {
+            i = find(from);
+            if (i < 0) {
+                return null;
+            }
+            i++;
+        }
+
+        int size = mIndexes.size();
+        while (i < size) {
+            boolean group = isGroup(i);
+            if (!isRelevant(i)) {
+                i = group ? mEnds[i] : i + 1;
+            } else if (group) {
+                i++;
+            } else {
+                return mIndexes.get(i);
+            }
+        }
+        return FormIndex.createEndOfFormIndex();
+    }
+
+
+    /**
+     * Finds where a back swipe from the given index lands: the previous relevant question, or the
+     * beginning of the form.
+     *
+     * @return the index to jump to, or null if the index isn't known
+     */
+    public FormIndex getPrevious(FormIndex from) {
+        int i;
+        if (from.isEndOfFormIndex()) {
+            build();
+            i = mIndexes.size() - 1;
+        } else {
+            i = find(from);
+            if (i < 0) {
+                return null;
+            }
+            i--;
+        }
+
+        while (i >= 0) {
+            if (mEvents[i] == FormEntryController.EVENT_QUESTION) {
+                if (isRelevant(i)) {
+                    return mIndexes.get(i);
+                }
+                int parent = mParents[i];
+                if (parent >= 0 && !isRelevant(parent)) {
+                    // nothing else in this group is relevant either
+                    i = parent - 1;
+                    continue;
+                }
+            }
+            i--;
+        }
+        return FormIndex.createBeginningOfFormIndex();
+    }
+
+
+    private boolean isGroup(int i) {
+        return mEvents[i] == FormEntryController.EVENT_GROUP
+                || mEvents[i] == FormEntryController.EVENT_REPEAT;
+    }
+
+
+    private boolean isRelevant(int i) {
+        if (!mRelevanceKnown.get(i)) {
+            mRelevanceKnown.set(i);
+            if (mModel.isIndexRelevant(mIndexes.get(i))) {
+                mRelevant.set(i);
+            } else {
+                mRelevant.clear(i);
+            }
+        }
+        return mRelevant.get(i);
+    }
+
+
+    /**
+     * @return the position of the index, or -1 if it isn't in the form
+     */
+    private int find(FormIndex index) {
+        if (!index.isInForm()) {
+            return -1;
+        }
+        build();
+
+        // the events are in form order, so a binary search will do
+        int low = 0;
+        int high = mIndexes.size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            FormIndex candidate = mIndexes.get(mid);
+            int c = candidate.compareTo(index);
+            if (c < 0) {
+                low = mid + 1;
+            } else if (c > 0) {
+                high = mid - 1;
+            } else {
+                return candidate.equals(index) ? mid : -1;
+            }
+        }
+        return -1;
+    }
+
+
+    /**
+     * Walks the form once, recording every event and how the groups nest.
+     */
+    private void build() {
+        if (mIndexes != null) {
+            return;
+        }
+
+        ArrayList<FormIndex> indexes = new ArrayList<FormIndex>();
+        ArrayList<Integer> events = new ArrayList<Integer>();
+        ArrayList<Integer> depths = new ArrayList<Integer>();
+        ArrayList<Integer> parents = new ArrayList<Integer>();
+        ArrayList<Integer> open = new ArrayList<Integer>();
+        ArrayList<int[]> closed = new ArrayList<int[]>();
+
+        FormIndex index = FormIndex.createBeginningOfFormIndex();
+        while (true) {
+            index = mModel.getForm().incrementIndex(index);
+            if (!index.isInForm()) {
+                break;
+            }
+
+            // the walk is depth first, so a group ends at the first event
+            // that is no deeper than the group itself
+            int position = indexes.size();
+            int depth = getDepth(index);
+            while (!open.isEmpty()
+                    && depths.get(open.get(open.size() - 1)) >= depth) {
+                closed.add(new int[] {open.remove(open.size() - 1), position});
+            }
+
+            int event = mModel.getEvent(index);
+            indexes.add(index);
+            events.add(event);
+            depths.add(depth);
+            parents.add(open.isEmpty() ? -1 : open.get(open.size() - 1));
+            if (event == FormEntryController.EVENT_GROUP
+                    || event == FormEntryController.EVENT_REPEAT) {
+                open.add(position);
+            }
+        }
+
+        int size = indexes.size();
+        mEvents = new int[size];
+        mParents = new int[size];
+        int[] ends = new int[size];
+        for (int i = 0; i < size; i++) {
+            mEvents[i] = events.get(i);
+            mParents[i] = parents.get(i);
+            ends[i] = i + 1;
+        }
+        for (int[] group : closed) {
+            ends[group[0]] = group[1];
+        }
+        for (Integer group : open) {
+            ends[group] = size;
+        }
+        mEnds = ends;
+        mIndexes = indexes;
+        mRelevanceKnown.clear();
+    }
+
+
+    private static int getDepth(FormIndex index) {
+        int depth = 0;
+        while (index != null) {
+            depth++;
+            index = index.getNextLevel();
+        }
+        return depth;
+    }
+}
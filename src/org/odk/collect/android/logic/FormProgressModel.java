@@ -0,0 +1,196 @@
+/**
+ * Copyright (C) 2012 Grameen Foundation
+Licensed under the Apache License, Version 2.0 (the "License"); you may not
+use this file except in compliance with the License. You may obtain a copy of
+the License at http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations under
+the License.
+ */
+
+package org.odk.collect.android.logic;
+
+import java.util.IdentityHashMap;
+
+import org.javarosa.core.model.FormDef;
+import org.javarosa.core.model.FormElementStateListener;
+import org.javarosa.core.model.FormIndex;
+import org.javarosa.core.model.IFormElement;
+import org.javarosa.core.model.instance.TreeElement;
+import org.javarosa.form.api.FormEntryController;
+import org.javarosa.form.api.FormEntryModel;
+
+/**
+ * Keeps the number of relevant and answered questions in a form so the progress bar can be drawn
+ * on every swipe without walking the form.
+ * <p>
+ * The counts come from a walk over the whole form, done a few questions at a time through
+ * {@link #scan()} so it can run while the UI thread is idle. The walk registers with the instance
+ * element of each question, and javarosa then reports when a question is answered or cleared, or
+ * becomes relevant or irrelevant, including through calculations and relevance conditions. Each
+ * report adjusts the counts by one, so committing an answer never walks the form again. Adding or
+ * deleting a repeat starts a new walk through {@link #invalidate()}.
+ * <p>
+ * Changes are reported on the thread that commits answers; everything else must be called from
+ * the UI thread.
+ */
+public class FormProgressModel implements FormElementStateListener {
+
+    // events handled per call to scan()
+    private static final int SCAN_STEP = 25;
+
+    /**
+     * The counts from one walk, and whether each question it counted had an answer.
+     */
+    private static class Count {
+        int total;
+        int completed;
+        final IdentityHashMap<TreeElement, Boolean> answered =
+            new IdentityHashMap<TreeElement, Boolean>();
+
+
+        void add(TreeElement e) {
+            boolean isAnswered = e.getValue() != null;
+            answered.put(e, isAnswered);
+            if (e.isRelevant()) {
+                total++;
+                if (isAnswered) {
+                    completed++;
+                }
+            }
+        }
+
+
+        void changed(TreeElement e, int changeFlags) {
+            Boolean wasAnswered = answered.get(e);
+            if (wasAnswered == null) {
+                // not a question, or one the walk hasn't reached yet
+                return;
+            }
+            if ((changeFlags & CHANGE_RELEVANT) != 0) {
+                int delta = e.isRelevant() ? 1 : -1;
+                total += delta;
+                if (wasAnswered) {
+                    completed += delta;
+                }
+            }
+            if ((changeFlags & CHANGE_DATA) != 0) {
+                boolean isAnswered = e.getValue() != null;
+                if (isAnswered != wasAnswered) {
+                    answered.put(e, isAnswered);
+                    if (e.isRelevant()) {
+                        completed += isAnswered ? 1 : -1;
+                    }
+                }
+            }
+        }
+    }
+
+    private FormEntryModel mModel;
+
+    // the counts shown, or null until the first walk has finished
+    private Count mCount;
+
+    // the walk in progress, or null when the counts are up to date
+    private FormIndex mScanIndex;
+    private Count mScan;
+
+
+    public FormProgressModel(FormEntryModel model) {
+        mModel = model;
+        invalidate();
+    }
+
+
+    /**
+     * @return the number of relevant questions in the form
+     */
+    public synchronized int getTotal() {
+        return mCount == null ? 0 : mCount.total;
+    }
+
+
+    /**
+     * @return the number of relevant questions that have an answer
+     */
+    public synchronized int getCompleted() {
+        return mCount == null ? 0 : Math.max(0, Math.min(mCount.completed, mCount.total));
+    }
+
+
+    /**
+     * @return true once the form has been counted at least once
+     */
+    public synchronized boolean isCounted() {
+        return mCount != null;
+    }
+
+
+    /**
+     * @return true if the counts are being recalculated
+     */
+    public synchronized boolean isScanning() {
+        return mScanIndex != null;
+    }
+
+
+    /**
+     * Starts a recount from the beginning of the form. The current counts are kept, and kept up
+     * to date, until it finishes.
+     */
+    public synchronized void invalidate() {
+        mScanIndex = FormIndex.createBeginningOfFormIndex();
+        mScan = new Count();
+    }
+
+
+    /**
+     * Counts the next few questions of the recount.
+     *
+     * @return true if the recount has finished and the counts were updated
+     */
+    public synchronized boolean scan() {
+        if (mScanIndex == null) {
+            return false;
+        }
+
+        FormDef form = mModel.getForm();
+        for (int i = 0; i < SCAN_STEP; i++) {
+            mScanIndex = form.incrementIndex(mScanIndex);
+            if (mScanIndex.isEndOfFormIndex() || !mScanIndex.isInForm()) {
+                mCount = mScan;
+                mScan = null;
+                mScanIndex = null;
+                return true;
+            }
+            if (mModel.getEvent(mScanIndex) == FormEntryController.EVENT_QUESTION) {
+                TreeElement e =
+                    form.getInstance().resolveReference(form.getChildInstanceRef(mScanIndex));
+                if (e != null) {
+                    e.registerStateObserver(this);
+                    mScan.add(e);
+                }
+            }
+        }
+        return false;
+    }
+
+
+    @Override
+    public synchronized void formElementStateChanged(TreeElement e, int changeFlags) {
+        if (mCount != null) {
+            mCount.changed(e, changeFlags);
+        }
+        if (mScan != null) {
+            mScan.changed(e, changeFlags);
+        }
+    }
+
+
+    @Override
+    public void formElementStateChanged(IFormElement e, int changeFlags) {
+        // only instance elements are observed
+    }
+}
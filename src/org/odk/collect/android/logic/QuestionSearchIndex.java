@@ -0,0 +1,257 @@
+/**
+ * Copyright (C) 2012 Grameen Foundation
+Licensed under the Apache License, Version 2.0 (the "License"); you may not
+use this file except in compliance with the License. You may obtain a copy of
+the License at http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations under
+the License.
+ */
+
+package org.odk.collect.android.logic;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Locale;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.javarosa.core.model.FormIndex;
+import org.javarosa.form.api.FormEntryController;
+import org.javarosa.form.api.FormEntryModel;
+import org.javarosa.form.api.FormEntryPrompt;
+
+/**
+ * An inverted index from the words in each question's label, hint and current answer to the
+ * questions, so a question can be found by typing part of it instead of scrolling the hierarchy.
+ * <p>
+ * The index is built a few questions at a time by {@link #scan()} while the screen is idle, like
+ * the progress counts. After that only the answer of a question that changed is read again; adding
+ * or deleting a repeat, or changing language, starts the build over.
+ * <p>
+ * Like the form model itself, this must only be used from the UI thread.
+ */
+public class QuestionSearchIndex {
+
+    // events handled per call to scan()
+    private static final int SCAN_STEP = 25;
+
+    private FormEntryModel mModel;
+
+    // the questions in form order; a question's number is its position here
+    private ArrayList<FormIndex> mQuestions = new ArrayList<FormIndex>();
+    // the words of each question's answer, to take it out of the index when the answer changes
+    private ArrayList<String[]> mAnswerWords = new ArrayList<String[]>();
+    // word -> numbers of the questions it appears in; sorted, so prefixes can be looked up
+    private TreeMap<String, BitSet> mWords = new TreeMap<String, BitSet>();
+
+    // the walk in progress, or null when the index is complete
+    private FormIndex mScanIndex;
+
+
+    public QuestionSearchIndex(FormEntryModel model) {
+        mModel = model;
+        structureChanged();
+    }
+
+
+    /**
+     * @return true if the index is being built, and a search may miss questions
+     */
+    public boolean isScanning() {
+        return mScanIndex != null;
+    }
+
+
+    /**
+     * Forgets the index and starts building it again, after a repeat was added or deleted or the
+     * language changed.
+     */
+    public void structureChanged() {
+        mQuestions.clear();
+        mAnswerWords.clear();
+        mWords.clear();
+        mScanIndex = FormIndex.createBeginningOfFormIndex();
+    }
+
+
+    /**
+     * Indexes the new answer of a question in place of its old one.
+     */
+    public void answerChanged(FormIndex index) {
+        int question = find(index);
+        if (question < 0) {
+            // not reached by the build yet, it'll read the new answer then
+            return;
+        }
+        for (String word : mAnswerWords.get(question)) {
+            removeWord(word, question);
+        }
+        String[] words = split(mModel.getQuestionPrompt(index).getAnswerText());
+        for (String word : words) {
+            addWord(word, question);
+        }
+        mAnswerWords.set(question, words);
+    }
+
+
+    /**
+     * Indexes the next few questions of the build.
+     *
+     * @return true if the build has finished
+     */
+    public boolean scan() {
+        if (mScanIndex == null) {
+            return false;
+        }
+
+        for (int i = 0; i < SCAN_STEP; i++) {
+            mScanIndex = mModel.getForm().incrementIndex(mScanIndex);
+            if (mScanIndex.isEndOfFormIndex() || !mScanIndex.isInForm()) {
+                mScanIndex = null;
+                return true;
+            }
+            if (mModel.getEvent(mScanIndex) != FormEntryController.EVENT_QUESTION) {
+                continue;
+            }
+
+            int question = mQuestions.size();
+            FormEntryPrompt fp = mModel.getQuestionPrompt(mScanIndex);
+            for (String word : split(fp.getLongText())) {
+                addWord(word, question);
+            }
+            for (String word : split(fp.getHelpText())) {
+                addWord(word, question);
+            }
+            String[] answer = split(fp.getAnswerText());
+            for (String word : answer) {
+                addWord(word, question);
+            }
+            mQuestions.add(mScanIndex);
+            mAnswerWords.add(answer);
+        }
+        return false;
+    }
+
+
+    /**
+     * Finds the relevant questions with a word starting with each word of the query, so that
+     * "hou mem" finds "Household members".
+     *
+     * @return the matching questions in form order
+     */
+    public ArrayList<FormIndex> search(String query) {
+        ArrayList<FormIndex> results = new ArrayList<FormIndex>();
+        String[] terms = split(query);
+        if (terms.length == 0) {
+            return results;
+        }
+
+        BitSet matches = null;
+        for (String term : terms) {
+            BitSet termMatches = new BitSet();
+            SortedMap<String, BitSet> words = mWords.subMap(term, term + Character.MAX_VALUE);
+            for (BitSet questions : words.values()) {
+                termMatches.or(questions);
+            }
+            if (matches == null) {
+                matches = termMatches;
+            } else {
+                matches.and(termMatches);
+            }
+        }
+
+        for (int i = matches.nextSetBit(0); i >= 0; i = matches.nextSetBit(i + 1)) {
+            FormIndex index = mQuestions.get(i);
+            if (mModel.isIndexRelevant(index)) {
+                results.add(index);
+            }
+        }
+        return results;
+    }
+
+
+    private void addWord(String word, int question) {
+        BitSet questions = mWords.get(word);
+        if (questions == null) {
+            questions = new BitSet();
+            mWords.put(word, questions);
+        }
+        questions.set(question);
+    }
+
+
+    private void removeWord(String word, int question) {
+        BitSet questions = mWords.get(word);
+        if (questions == null) {
+            return;
+        }
+        // the same word may also be in the label, so only forget it if it isn't
+        FormEntryPrompt fp = mModel.getQuestionPrompt(mQuestions.get(question));
+        if (contains(fp.getLongText(), word) || contains(fp.getHelpText(), word)) {
+            return;
+        }
+        questions.clear(question);
+        if (questions.isEmpty()) {
+            mWords.remove(word);
+        }
+    }
+
+
+    private static boolean contains(String text, String word) {
+        for (String w : split(text)) {
+            if (w.equals(word)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    /**
+     * @return the position of the question in mQuestions, or -1 if it isn't there
+     */
+    private int find(FormIndex index) {
+        // the questions are in form order, so a binary search will do
+        int low = 0;
+        int high = mQuestions.size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            FormIndex candidate = mQuestions.get(mid);
+            int c = candidate.compareTo(index);
+            if (c < 0) {
+                low = mid + 1;
+            } else if (c > 0) {
+                high = mid - 1;
+            } else {
+                return candidate.equals(index) ? mid : -1;
+            }
+        }
+        return -1;
+    }
+
+
+    /**
+     * @return the lower case words in the text, split at anything that isn't a letter or digit
+     */
+    private static String[] split(String text) {
+        if (text == null) {
+            return new String[0];
+        }
+        ArrayList<String> words = new ArrayList<String>();
+        String lower = text.toLowerCase(Locale.getDefault());
+        int start = -1;
+        for (int i = 0; i <= lower.length(); i++) {
+            boolean inWord = i < lower.length() && Character.isLetterOrDigit(lower.charAt(i));
+            if (inWord && start < 0) {
+                start = i;
+            } else if (!inWord && start >= 0) {
+                words.add(lower.substring(start, i));
+                start = -1;
+            }
+        }
+        return words.toArray(new String[words.size()]);
+    }
+}
@@ -0,0 +1,97 @@
+/**
+ * Copyright (C) 2012 Grameen Foundation
+Licensed under the Apache License, Version 2.0 (the "License"); you may not
+use this file except in compliance with the License. You may obtain a copy of
+the License at http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations under
+the License.
+ */
+
+package org.odk.collect.android.logic;
+
+import java.io.File;
+import java.util.HashMap;
+
+import org.javarosa.core.reference.InvalidReferenceException;
+import org.javarosa.core.reference.ReferenceManager;
+
+/**
+ * The local files that jr:// media references of the open form resolve to, and whether they
+ * exist, so each reference goes through the root translators and the file system only once per
+ * session instead of every time a question is shown or a button pressed.
+ * <p>
+ * Session translators are set up per form, so the session must be cleared through
+ * {@link #clearSession()} rather than on the ReferenceManager directly.
+ */
+public class ReferenceCache {
+
+    /**
+     * A reference resolved to a local file.
+     */
+    public static class Resolved {
+        private final File mFile;
+        private final boolean mExists;
+
+
+        Resolved(File file, boolean exists) {
+            mFile = file;
+            mExists = exists;
+        }
+
+
+        public File getFile() {
+            return mFile;
+        }
+
+
+        public String getPath() {
+            return mFile.getAbsolutePath();
+        }
+
+
+        /**
+         * @return whether the file existed when the reference was first resolved
+         */
+        public boolean exists() {
+            return mExists;
+        }
+    }
+
+    private static ReferenceCache sInstance;
+
+    private final HashMap<String, Resolved> mResolved = new HashMap<String, Resolved>();
+
+
+    public static synchronized ReferenceCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new ReferenceCache();
+        }
+        return sInstance;
+    }
+
+
+    /**
+     * Resolves a reference, or returns what it resolved to earlier in this session.
+     */
+    public synchronized Resolved resolve(String uri) throws InvalidReferenceException {
+        Resolved r = mResolved.get(uri);
+        if (r == null) {
+            File f = new File(ReferenceManager._().DeriveReference(uri).getLocalURI());
+            r = new Resolved(f, f.exists());
+            mResolved.put(uri, r);
+        }
+        return r;
+    }
+
+
+    /**
+     * Removes the session root translators, and with them everything resolved through them.
+     */
+    public synchronized void clearSession() {
+        ReferenceManager._().clearSession();
+        mResolved.clear();
+    }
+}
@@ -0,0 +1,174 @@
+/**
+ * Copyright (C) 2012 Grameen Foundation
+Licensed under the Apache License, Version 2.0 (the "License"); you may not
+use this file except in compliance with the License. You may obtain a copy of
+the License at http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations under
+the License.
+ */
+
+package org.odk.collect.android.logic;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.odk.collect.android.database.FileDbAdapter;
+
+import android.database.SQLException;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Times each swipe in form entry, from the gesture being recognised until the first frame of the
+ * next screen, and how much of that went on saving the answer and on building the screen.
+ * <p>
+ * Timings are held in memory and written to the metadata database by {@link #flush()} on a
+ * background thread, so recording a swipe costs nothing noticeable on the UI thread. Flushes run
+ * one after another on a single thread, so they never overlap.
+ */
+public class SwipeLatencyTracker {
+
+    private final static String t = "SwipeLatencyTracker";
+
+    private static class Sample {
+        final String form;
+        final String question;
+        final long total;
+        final long save;
+        final long build;
+        final long time;
+
+
+        Sample(String form, String question, long total, long save, long build, long time) {
+            this.form = form;
+            this.question = question;
+            this.total = total;
+            this.save = save;
+            this.build = build;
+            this.time = time;
+        }
+    }
+
+    // a single thread, so flushes from successive pauses don't write at the same time
+    private static final ExecutorService sFlushExecutor = Executors.newSingleThreadExecutor();
+
+    private String mForm;
+
+    // uptime of each stage of the swipe in progress; mStart is 0 when there is none
+    private long mStart;
+    private long mSaved;
+    private long mBuilt;
+
+    private ArrayList<Sample> mPending = new ArrayList<Sample>();
+
+
+    public SwipeLatencyTracker(String form) {
+        mForm = form;
+    }
+
+
+    /**
+     * Called when a swipe is recognised.
+     */
+    public void start() {
+        mStart = SystemClock.uptimeMillis();
+        mSaved = mStart;
+        mBuilt = mStart;
+    }
+
+
+    /**
+     * Called once the answer has been saved and its constraints checked.
+     */
+    public void saved() {
+        if (mStart != 0) {
+            mSaved = SystemClock.uptimeMillis();
+            mBuilt = mSaved;
+        }
+    }
+
+
+    /**
+     * Called once the view for the next screen is ready.
+     */
+    public void built() {
+        if (mStart != 0) {
+            mBuilt = SystemClock.uptimeMillis();
+        }
+    }
+
+
+    /**
+     * Called when the swipe didn't lead to a new screen, e.g. because of a constraint.
+     */
+    public void cancel() {
+        mStart = 0;
+    }
+
+
+    /**
+     * Called when the first frame of the next screen is drawn.
+     *
+     * @param question what the new screen shows
+     */
+    public void finish(String question) {
+        if (mStart == 0) {
+            return;
+        }
+        long now = SystemClock.uptimeMillis();
+        synchronized (mPending) {
+            mPending.add(new Sample(mForm, question, now - mStart, mSaved - mStart, mBuilt
+                    - mSaved, System.currentTimeMillis()));
+        }
+        mStart = 0;
+    }
+
+
+    /**
+     * Writes the recorded swipes to the database on a background thread.
+     */
+    public void flush() {
+        final ArrayList<Sample> samples;
+        synchronized (mPending) {
+            if (mPending.isEmpty()) {
+                return;
+            }
+            samples = new ArrayList<Sample>(mPending);
+            mPending.clear();
+        }
+
+        sFlushExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                FileDbAdapter fda = new FileDbAdapter();
+                try {
+                    fda.open();
+                } catch (SQLException e) {
+                    Log.e(t, "Could not record swipe latencies: " + e.getMessage());
+                    return;
+                }
+                try {
+                    // one transaction, so the batch costs one journal write
+                    fda.beginTransaction();
+                    try {
+                        for (Sample s : samples) {
+                            fda.addLatency(s.form, s.question, s.total, s.save, s.build, s.time);
+                        }
+                        fda.trimLatencies();
+                        fda.setTransactionSuccessful();
+                    } finally {
+                        fda.endTransaction();
+                    }
+                } catch (SQLException e) {
+                    Log.e(t, "Could not record swipe latencies: " + e.getMessage());
+                } finally {
+                    fda.close();
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,251 @@
+/**
+ * Copyright (C) 2012 Grameen Foundation
+Licensed under the Apache License, Version 2.0 (the "License"); you may not
+use this file except in compliance with the License. You may obtain a copy of
+the License at http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations under
+the License.
+ */
+
+package org.odk.collect.android.tasks;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.odk.collect.android.database.FileDbAdapter;
+import org.odk.collect.android.listeners.DiagnosticsListener;
+import org.odk.collect.android.utilities.FileUtils;
+
+import android.database.Cursor;
+import android.os.AsyncTask;
+
+/**
+ * Background task for the diagnostics screen: reads the recorded swipe latencies and builds the
+ * report, exports them to a CSV file, or clears them.
+ */
+public class DiagnosticsTask extends AsyncTask<Integer, Void, Object> {
+
+    // what to do, passed to execute()
+    public static final int REPORT = 0;
+    public static final int EXPORT = 1;
+    public static final int CLEAR = 2;
+
+    // slowest questions listed per form
+    private static final int SLOWEST_COUNT = 5;
+
+    private DiagnosticsListener mListener;
+    private int mAction;
+
+
+    /**
+     * @return the report after REPORT or CLEAR, or the file written after EXPORT
+     */
+    @Override
+    protected Object doInBackground(Integer... actions) {
+        mAction = actions[0];
+        if (mAction == EXPORT) {
+            return exportLatencies();
+        }
+        if (mAction == CLEAR) {
+            FileDbAdapter fda = new FileDbAdapter();
+            fda.open();
+            fda.deleteLatencies();
+            fda.close();
+        }
+        return buildReport();
+    }
+
+
+    /**
+     * @return the 50th, 95th and 99th percentile of each form, and its slowest questions, or null
+     *         if nothing has been recorded
+     */
+    private String buildReport() {
+        // totals for each form, and for each question within a form
+        LinkedHashMap<String, ArrayList<Long>> forms = new LinkedHashMap<String, ArrayList<Long>>();
+        LinkedHashMap<String, LinkedHashMap<String, ArrayList<Long>>> questions =
+                new LinkedHashMap<String, LinkedHashMap<String, ArrayList<Long>>>();
+
+        FileDbAdapter fda = new FileDbAdapter();
+        fda.open();
+        Cursor c = fda.fetchLatencies();
+        if (c != null) {
+            while (c.moveToNext()) {
+                String form = c.getString(c.getColumnIndex(FileDbAdapter.KEY_FORM));
+                String question = c.getString(c.getColumnIndex(FileDbAdapter.KEY_QUESTION));
+                long total = c.getLong(c.getColumnIndex(FileDbAdapter.KEY_TOTAL));
+
+                ArrayList<Long> formTotals = forms.get(form);
+                if (formTotals == null) {
+                    formTotals = new ArrayList<Long>();
+                    forms.put(form, formTotals);
+                    questions.put(form, new LinkedHashMap<String, ArrayList<Long>>());
+                }
+                formTotals.add(total);
+
+                ArrayList<Long> questionTotals = questions.get(form).get(question);
+                if (questionTotals == null) {
+                    questionTotals = new ArrayList<Long>();
+                    questions.get(form).put(question, questionTotals);
+                }
+                questionTotals.add(total);
+            }
+            c.close();
+        }
+        fda.close();
+
+        if (forms.isEmpty()) {
+            return null;
+        }
+
+        StringBuilder report = new StringBuilder();
+        for (Map.Entry<String, ArrayList<Long>> form : forms.entrySet()) {
+            long[] totals = sort(form.getValue());
+            report.append(form.getKey()).append('\n');
+            report.append("  swipes ").append(totals.length).append('\n');
+            report.append("  p50 ").append(percentile(totals, 50)).append(" ms\n");
+            report.append("  p95 ").append(percentile(totals, 95)).append(" ms\n");
+            report.append("  p99 ").append(percentile(totals, 99)).append(" ms\n");
+
+            // rank questions by their median
+            final LinkedHashMap<String, Long> medians = new LinkedHashMap<String, Long>();
+            for (Map.Entry<String, ArrayList<Long>> question : questions.get(form.getKey())
+                    .entrySet()) {
+                medians.put(question.getKey(), percentile(sort(question.getValue()), 50));
+            }
+            ArrayList<String> slowest = new ArrayList<String>(medians.keySet());
+            Collections.sort(slowest, new Comparator<String>() {
+                @Override
+                public int compare(String a, String b) {
+                    return medians.get(b).compareTo(medians.get(a));
+                }
+            });
+            report.append("  slowest questions (median)\n");
+            for (int i = 0; i < slowest.size() && i < SLOWEST_COUNT; i++) {
+                String question = slowest.get(i);
+                report.append("    ").append(medians.get(question)).append(" ms ")
+                        .append(question).append('\n');
+            }
+            report.append('\n');
+        }
+        return report.toString();
+    }
+
+
+    private static long[] sort(ArrayList<Long> values) {
+        long[] sorted = new long[values.size()];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = values.get(i);
+        }
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+
+    /**
+     * @return the nearest-rank percentile of sorted values
+     */
+    private static long percentile(long[] sorted, int p) {
+        int rank = (int) Math.ceil(p / 100.0 * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+
+    /**
+     * Writes every recorded swipe to a CSV file on the sd card.
+     *
+     * @return the file written, or null if it could not be
+     */
+    private File exportLatencies() {
+        if (!FileUtils.createFolder(FileUtils.DIAGNOSTICS_PATH)) {
+            return null;
+        }
+        String time = new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss").format(Calendar.getInstance()
+                .getTime());
+        File f = new File(FileUtils.DIAGNOSTICS_PATH + "latency_" + time + ".csv");
+
+        FileDbAdapter fda = new FileDbAdapter();
+        fda.open();
+        Cursor c = fda.fetchLatencies();
+        BufferedWriter w = null;
+        try {
+            w = new BufferedWriter(new FileWriter(f));
+            w.write("form,question,total_ms,save_ms,build_ms,time\n");
+            if (c != null) {
+                while (c.moveToNext()) {
+                    w.write(quote(c.getString(c.getColumnIndex(FileDbAdapter.KEY_FORM))));
+                    w.write(',');
+                    w.write(quote(c.getString(c.getColumnIndex(FileDbAdapter.KEY_QUESTION))));
+                    w.write(',');
+                    w.write(String.valueOf(c.getLong(c.getColumnIndex(FileDbAdapter.KEY_TOTAL))));
+                    w.write(',');
+                    w.write(String.valueOf(c.getLong(c.getColumnIndex(FileDbAdapter.KEY_SAVE))));
+                    w.write(',');
+                    w.write(String.valueOf(c.getLong(c.getColumnIndex(FileDbAdapter.KEY_BUILD))));
+                    w.write(',');
+                    w.write(String.valueOf(c.getLong(c.getColumnIndex(FileDbAdapter.KEY_TIME))));
+                    w.write('\n');
+                }
+            }
+            // the buffered rows are only on disk once this succeeds
+            w.close();
+            w = null;
+            return f;
+        } catch (IOException e) {
+            e.printStackTrace();
+            f.delete();
+            return null;
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+            fda.close();
+            if (w != null) {
+                try {
+                    w.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+
+    private static String quote(String s) {
+        return "\"" + s.replace("\"", "\"\"") + "\"";
+    }
+
+
+    @Override
+    protected void onPostExecute(Object result) {
+        synchronized (this) {
+            if (mListener != null) {
+                if (mAction == EXPORT) {
+                    mListener.exportComplete((File) result);
+                } else {
+                    mListener.reportReady((String) result);
+                }
+            }
+        }
+    }
+
+
+    public void setDiagnosticsListener(DiagnosticsListener dl) {
+        synchronized (this) {
+            mListener = dl;
+        }
+    }
+}
@@ -15,34 +15,40 @@
 package org.odk.collect.android.tasks;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.MalformedURLException;
 import java.net.SocketTimeoutException;
-import java.net.URL;
 import java.net.URLConnection;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
-
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.odk.collect.android.activities.FormDownloadList;
 import org.odk.collect.android.activities.FormManagerList;
 import org.odk.collect.android.database.FileDbAdapter;
 import org.odk.collect.android.listeners.FormDownloaderListener;
 import org.odk.collect.android.utilities.FileUtils;
-import org.w3c.dom.Document;
-import org.w3c.dom.NamedNodeMap;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
+import org.odk.collect.android.utilities.FormListParser;
+import org.odk.collect.android.utilities.HttpDownloader;
+import org.odk.collect.android.utilities.MediaManifestParser;
+import org.xmlpull.v1.XmlPullParserException;
 
-import android.database.Cursor;
 import android.os.AsyncTask;
-import applab.client.HttpHelpers;
+import android.util.Log;
 
 /**
  * Background task for downloading forms from urls or a formlist from a url. We overload this task a
@@ -65,10 +71,28 @@ public class DownloadFormsTask extends
     // form list.
     public static final String DL_FORMS = "dlforms";
 
-    private static final int CONNECTION_TIMEOUT = 30000;
+    // marks a progress update carrying a form found in the form list
+    private static final String FORM_FOUND = "formfound";
+
+    // marks a progress update dropping the forms found so far
+    private static final String FORM_LIST_RESET = "formlistreset";
+
+    // forms downloaded at the same time
+    private static final int MAX_PARALLEL_DOWNLOADS = 3;
+
+    // how long a cached form list is shown without asking the server
+    private static final long FORM_LIST_TTL = 15 * 60 * 1000;
+
+    // prefix of md5 hashes in media manifests
+    private static final String MD5_PREFIX = "md5:";
+
+    private static final String t = "DownloadFormsTask";
 
     private FormDownloaderListener mStateListener;
 
+    // what was transferred during this sync
+    private final HttpDownloader.TransferStats mStats = new HttpDownloader.TransferStats();
+
 
     @Override
     protected HashMap<String, String> doInBackground(HashMap<String, String>... values) {
@@ -76,128 +100,135 @@ public class DownloadFormsTask extends
         if (values != null && values[0].containsKey(FormDownloadList.LIST_URL)) {
             // This gets a list of available forms from the specified server.
             HashMap<String, String> formList = new HashMap<String, String>();
-            URL u = null;
-            try {
-                u = new URL(values[0].get(FormDownloadList.LIST_URL));
-            } catch (MalformedURLException e) {
-                formList.put(DL_ERROR_MSG, e.getLocalizedMessage());
-                e.printStackTrace();
-            }
-
+            fda = new FileDbAdapter();
+            fda.open();
             try {
-                // prevent deadlock when connection is invalid
-                URLConnection c = u.openConnection();
-                c.setConnectTimeout(CONNECTION_TIMEOUT);
-                c.setReadTimeout(CONNECTION_TIMEOUT);
-                HttpHelpers.addCommonHeaders(c);
-
-                // write connection to file
-                InputStream is = c.getInputStream();
-
-                Document doc = null;
-                try {
-                    DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-                    DocumentBuilder db = dbf.newDocumentBuilder();
-                    doc = db.parse(is);
-                } catch (Exception e) {
-                    formList.put(DL_ERROR_MSG,
-                        "DocumentBuilderFactory error: " + e.getLocalizedMessage());
-                    e.printStackTrace();
-                }
-
-                // populate HashMap with form names and urls
-                int formCount = 0;
-                if (doc != null) {
-                    NodeList formElements = doc.getElementsByTagName("form");
-                    formCount = formElements.getLength();
-                    Node n;
-                    NodeList childList;
-                    NamedNodeMap attrMap;
-                    for (int i = 0; i < formCount; i++) {
-                        n = formElements.item(i);
-                        childList = n.getChildNodes();
-                        attrMap = n.getAttributes();
-                        if (childList.getLength() > 0 && attrMap.getLength() > 0) {
-                            formList.put(childList.item(0).getNodeValue() + ".xml", attrMap.item(0)
-                                    .getNodeValue());
-                        }
-
-                    }
-                }
-            } catch (IOException e) {
-                formList.put(DL_ERROR_MSG, e.getLocalizedMessage());
-                e.printStackTrace();
+                downloadFormList(values[0].get(FormDownloadList.LIST_URL),
+                    values[0].containsKey(FormDownloadList.FORCE_REFRESH), formList, fda);
+            } finally {
+                fda.close();
             }
+            logTransferStats();
             return formList;
 
         } else if (values != null) {
             // This downloads the selected forms.
             HashMap<String, String> toDownload = values[0];
+            // hashes advertised in the form list, if the caller has them
+            HashMap<String, String> hashes =
+                values.length > 1 ? values[1] : new HashMap<String, String>();
+            // media manifests of the forms that have media
+            HashMap<String, String> manifests =
+                values.length > 2 ? values[2] : new HashMap<String, String>();
             HashMap<String, String> result = new HashMap<String, String>();
             result.put(DL_FORMS, DL_FORMS); // indicate that we're trying to download forms.
             ArrayList<String> formNames = new ArrayList<String>(toDownload.keySet());
 
             //Get a list of form definition files that have instance data.
             List<String> instanceFormDefs = FormManagerList.getInstanceFormDefs();
-            
-            // boolean error = false;
-            int total = formNames.size();
-            int count = 1;
+
             fda = new FileDbAdapter();
             fda.open();
 
-            for (int i = 0; i < total; i++) {
-                String form = formNames.get(i);
-                publishProgress(form, Integer.valueOf(count).toString(), Integer.valueOf(total)
-                        .toString());
-                try {
-                    
-                    //Check if form has un uploaded data.
-                    if(instanceFormDefs.contains(FileUtils.FORMS_PATH + form)){
-                        result.put(DL_FORM, form);
-                        result.put(DL_ERROR_MSG, "Because it has un uploaded data and so can't be overwritten");
-                        break;
-                    }
-                    
-                    File dl = downloadFile(form, toDownload.get(form));
-
-                    // if the file already existed, the name will be changed to formname_#
-                    if (form.compareTo(dl.getName()) != 0) {
-                        // hash of raw form
-                        String hash = FileUtils.getMd5Hash(dl);
-
-                        Cursor c = fda.fetchFilesByPath(null, hash);
-                        if (c.getCount() > 0) {
-                            // db has the hash and this is a duplicate. the dupliate will be
-                            // discarded.
-                        } else {
-                            // the form is new, but the file name was the same.
-                            // tell the user we renamed the form.
-                            result.put(form, dl.getName());
+            // download a few forms at a time. Only this thread touches the database.
+            int total = formNames.size();
+            AtomicInteger started = new AtomicInteger(0);
+            ExecutorService pool = Executors.newFixedThreadPool(MAX_PARALLEL_DOWNLOADS);
+            CompletionService<FormDownload> downloads =
+                new ExecutorCompletionService<FormDownload>(pool);
+            ArrayList<Future<FormDownload>> submitted = new ArrayList<Future<FormDownload>>();
+            ArrayList<String> downloaded = new ArrayList<String>();
+            for (String form : formNames) {
+                //Check if form has un uploaded data.
+                if (instanceFormDefs.contains(FileUtils.FORMS_PATH + form)) {
+                    result.put(DL_FORM, form);
+                    result.put(DL_ERROR_MSG,
+                        "Because it has un uploaded data and so can't be overwritten");
+                    break;
+                }
+                String url = toDownload.get(form);
+                File f = new File(FileUtils.FORMS_PATH + form);
+                // only send validators if we still have the form they describe, and ask for
+                // changes against it rather than the whole form
+                String[] validators = f.exists() ? fda.getValidators(url) : null;
+                String baseHash = f.exists() ? fda.getCachedMd5Hash(f) : null;
+                submitted.add(downloads.submit(new FormDownload(form, url, validators, baseHash,
+                    hashes.get(form), started, total)));
+            }
+
+            try {
+                for (int i = 0; i < submitted.size(); i++) {
+                    FormDownload dl;
+                    try {
+                        dl = downloads.take().get();
+                    } catch (CancellationException e) {
+                        continue;
+                    } catch (ExecutionException e) {
+                        // stop the remaining downloads at the first failure
+                        for (Future<FormDownload> f : submitted) {
+                            f.cancel(true);
+                        }
+                        Throwable cause = e.getCause();
+                        cause.printStackTrace();
+                        if (!result.containsKey(DL_ERROR_MSG)) {
+                            if (cause instanceof FormDownloadException) {
+                                result.put(DL_FORM, ((FormDownloadException) cause).form);
+                                cause = cause.getCause();
+                            }
+                            result.put(DL_ERROR_MSG,
+                                cause instanceof SocketTimeoutException
+                                        ? "Unknown timeout exception"
+                                        : cause.getLocalizedMessage());
                         }
-                        c.close();
+                        continue;
                     }
 
-                } catch (SocketTimeoutException se) {
-                    se.printStackTrace();
-                    result.put(DL_FORM, form);
-                    result.put(DL_ERROR_MSG, "Unknown timeout exception");
-                    break;
-                } catch (Exception e) {
+                    downloaded.add(dl.name);
+                    if (dl.hash == null) {
+                        // not modified, so there is nothing new to record
+                        continue;
+                    }
+                    fda.updateValidators(dl.url, dl.etag, dl.lastModified);
+                    // addOrphanForms picks this up rather than reading the form again
+                    fda.cacheMd5Hash(dl.file, dl.hash);
+                }
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+                result.put(DL_ERROR_MSG, e.getLocalizedMessage());
+            } finally {
+                // let cancelled downloads clean up their temporary files
+                pool.shutdownNow();
+                try {
+                    pool.awaitTermination(HttpDownloader.CONNECTION_TIMEOUT,
+                        TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
                     e.printStackTrace();
-                    result.put(DL_FORM, form);
-                    result.put(DL_ERROR_MSG, e.getLocalizedMessage());
-                    break;
                 }
-                count++;
             }
 
-            if (fda != null) {
-                // addOrphanForms will remove duplicates, and add new forms to the database
-                fda.addOrphanForms();
-                fda.close();
+            // bring the media of each form up to date
+            if (!result.containsKey(DL_ERROR_MSG)) {
+                for (String form : downloaded) {
+                    if (manifests.get(form) == null) {
+                        continue;
+                    }
+                    try {
+                        downloadMedia(form, manifests.get(form), fda);
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                        result.put(DL_FORM, form);
+                        result.put(DL_ERROR_MSG, e instanceof SocketTimeoutException
+                                ? "Unknown timeout exception" : e.getLocalizedMessage());
+                        break;
+                    }
+                }
             }
 
+            // addOrphanForms will remove duplicates, and add new forms to the database
+            fda.addOrphanForms();
+            fda.close();
+
+            logTransferStats();
             return result;
         }
 
@@ -205,64 +236,412 @@ public class DownloadFormsTask extends
     }
 
 
-    private File downloadFile(String name, String url) throws IOException {
-        // create url
-        URL u = null;
-        File f = new File(FileUtils.FORMS_PATH + name);
+    private void logTransferStats() {
+        if (mStats.getWireBytes() > 0) {
+            Log.i(t, "Received " + mStats.getWireBytes() + " bytes for "
+                    + mStats.getDecodedBytes() + " bytes of content, compression saved "
+                    + mStats.getSavedBytes() + " bytes");
+        }
+    }
+
+
+    /**
+     * Fetches the form list, answering from the cached copy when it is still fresh, when the
+     * server says it hasn't changed, or when the server can't be reached. Forms are passed on to
+     * the listener as they are parsed.
+     */
+    private void downloadFormList(String url, boolean force, HashMap<String, String> formList,
+            FileDbAdapter fda) {
+        // one cached list per server, in case the server preference changes. The leading dot
+        // keeps removeOrphanFormDefs() from treating it as a stale formdef.
+        File cache =
+            new File(FileUtils.CACHE_PATH + ".formlist-" + Integer.toHexString(url.hashCode())
+                    + ".xml");
+        if (!force && cache.exists()
+                && System.currentTimeMillis() - cache.lastModified() < FORM_LIST_TTL) {
+            Log.i(t, "Using cached form list");
+            parseFormList(cache, formList);
+            return;
+        }
+
+        File tmp = new File(cache.getPath() + ".tmp");
         try {
-            u = new URL(url);
-        } catch (MalformedURLException e) {
+            URLConnection c =
+                HttpDownloader.openConnection(url, cache.exists() ? fda.getValidators(url) : null);
+            if (HttpDownloader.isNotModified(c)) {
+                Log.i(t, "Form list not modified, using cached form list");
+                cache.setLastModified(System.currentTimeMillis());
+                parseFormList(cache, formList);
+                return;
+            }
+
+            // parse the list as it arrives, copying it to the cache on the way through
+            OutputStream os = new FileOutputStream(tmp);
+            InputStream is = new TeeInputStream(HttpDownloader.getInputStream(c, mStats), os);
+            try {
+                FormListParser.parse(is, new FormListCollector(formList));
+                byte buf[] = new byte[1024];
+                while (is.read(buf) > 0) {
+                    // copy anything after the closing tag so the cache is complete
+                }
+            } finally {
+                is.close();
+                os.close();
+            }
+
+            if (!tmp.renameTo(cache)) {
+                throw new IOException("Failed to rename " + tmp.getAbsolutePath());
+            }
+            fda.updateValidators(url, c.getHeaderField("ETag"), c.getHeaderField("Last-Modified"));
+        } catch (XmlPullParserException e) {
+            tmp.delete();
+            formList.put(DL_ERROR_MSG, "Form list parse error: " + e.getLocalizedMessage());
             e.printStackTrace();
-            throw e;
+        } catch (IOException e) {
+            tmp.delete();
+            e.printStackTrace();
+            if (cache.exists()) {
+                // offline, so show the last list we saw
+                Log.w(t, "Could not fetch form list, using cached form list");
+                // take back the part of the live list that was already shown
+                publishProgress(FORM_LIST_RESET);
+                formList.clear();
+                parseFormList(cache, formList);
+            } else {
+                formList.put(DL_ERROR_MSG, e.getLocalizedMessage());
+            }
         }
+    }
+
 
+    private void parseFormList(File cache, HashMap<String, String> formList) {
+        InputStream is = null;
         try {
-            // prevent deadlock when connection is invalid
-            URLConnection c = u.openConnection();
-            c.setConnectTimeout(CONNECTION_TIMEOUT);
-            c.setReadTimeout(CONNECTION_TIMEOUT);
-            HttpHelpers.addCommonHeaders(c);
-
-            // write connection to file
-            InputStream is = c.getInputStream();
-
-            //The code below is commented out such that if a form already exists,
-            //we do not create a new one and append an incrementing number to it
-            //(e.g Form_2, Form_3, etc). If the file hash is the same, and this code is not commented out,
-            //FileDbAdapeter.addOrphanForms() would delete this duplicate resulting
-            //into the desired behavior. But if the file hash is different, we shall
-            //end up with such form names that have incrementing numbers appended
-            //at the end, hence confusing the user as in which form to fill.
-            
-            /*String path = FileUtils.FORMS_PATH + name;
-            int i = 2;
-            int slash = path.lastIndexOf("/") + 1;
-            int period = path.lastIndexOf(".") + 1;
-            String base = path.substring(0, slash - 1);
-            String filename = path.substring(slash, period - 1);
-            String ext = path.substring(period);
-            f = new File(path);
-            while (f.exists()) {
-                f = new File(base + "/" + filename + "_" + i + "." + ext);
-                i++;
-            }*/
-
-            OutputStream os = new FileOutputStream(f);
-            byte buf[] = new byte[1024];
-            int len;
-            while ((len = is.read(buf)) > 0) {
-                os.write(buf, 0, len);
+            is = new FileInputStream(cache);
+            FormListParser.parse(is, new FormListCollector(formList));
+        } catch (XmlPullParserException e) {
+            formList.put(DL_ERROR_MSG, "Form list parse error: " + e.getLocalizedMessage());
+            e.printStackTrace();
+        } catch (IOException e) {
+            formList.put(DL_ERROR_MSG, e.getLocalizedMessage());
+            e.printStackTrace();
+        } finally {
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Adds each parsed form to the result and hands it to the listener straight away.
+     */
+    private class FormListCollector implements FormListParser.FormListHandler {
+        private final HashMap<String, String> mFormList;
+
+
+        FormListCollector(HashMap<String, String> formList) {
+            mFormList = formList;
+        }
+
+
+        @Override
+        public void formFound(String name, String url, String hash, String version,
+                String manifestUrl) {
+            String form = name + ".xml";
+            mFormList.put(form, url);
+            publishProgress(FORM_FOUND, form, url, hash, version, manifestUrl);
+        }
+    }
+
+
+    /**
+     * Copies everything read from the wrapped stream to an output stream.
+     */
+    private static class TeeInputStream extends FilterInputStream {
+        private final OutputStream mCopy;
+
+
+        TeeInputStream(InputStream in, OutputStream copy) {
+            super(in);
+            mCopy = copy;
+        }
+
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                mCopy.write(b);
             }
-            os.flush();
-            os.close();
+            return b;
+        }
+
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                mCopy.write(b, off, n);
+            }
+            return n;
+        }
+
+
+        @Override
+        public long skip(long n) throws IOException {
+            // read rather than skip so the copy stays complete
+            byte buf[] = new byte[(int) Math.min(n, 1024)];
+            int read = read(buf, 0, buf.length);
+            return read < 0 ? 0 : read;
+        }
+
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+
+    /**
+     * Brings the media folder of a form in line with its manifest. Files that are missing or have
+     * changed are downloaded in parallel into a staging folder, unchanged files are copied across,
+     * and the staging folder then replaces the media folder. The media folder is only touched by
+     * that final swap, so if anything fails before it the media folder is left as it was.
+     */
+    private void downloadMedia(String form, String manifestUrl, FileDbAdapter fda)
+            throws IOException, XmlPullParserException, InterruptedException {
+        String base = form.substring(0, form.lastIndexOf("."));
+        File mediaDir = new File(FileUtils.FORMS_PATH + base + "-media");
+        File staging = new File(FileUtils.FORMS_PATH + "." + base + "-media.new");
+        File old = new File(FileUtils.FORMS_PATH + "." + base + "-media.old");
+
+        // finish a swap that was interrupted
+        if (!mediaDir.exists() && old.exists()) {
+            old.renameTo(mediaDir);
+        }
+
+        URLConnection c =
+            HttpDownloader.openConnection(manifestUrl, mediaDir.exists() ? fda
+                    .getValidators(manifestUrl) : null);
+        if (HttpDownloader.isNotModified(c)) {
+            Log.i(t, "Media manifest for " + form + " not modified");
+            return;
+        }
+        ArrayList<MediaManifestParser.MediaFile> files;
+        InputStream is = HttpDownloader.getInputStream(c, mStats);
+        try {
+            files = MediaManifestParser.parse(is);
+        } finally {
             is.close();
+        }
+
+        // work out what has to be fetched
+        ArrayList<MediaManifestParser.MediaFile> changed =
+            new ArrayList<MediaManifestParser.MediaFile>();
+        // hashes of the files that are kept, by name
+        HashMap<String, String> unchanged = new HashMap<String, String>();
+        for (MediaManifestParser.MediaFile mf : files) {
+            File existing = new File(mediaDir, mf.filename);
+            if (!existing.exists() || mf.hash == null
+                    || (mf.size >= 0 && mf.size != existing.length())) {
+                changed.add(mf);
+                continue;
+            }
+            // a hash we can't check counts as changed
+            String expectedHash = getMd5(mf.hash);
+            String hash = expectedHash == null ? null : fda.getCachedMd5Hash(existing);
+            if (hash == null || !hash.equals(expectedHash)) {
+                changed.add(mf);
+            } else {
+                unchanged.put(mf.filename, hash);
+            }
+        }
 
+        FileUtils.deleteFolder(staging.getAbsolutePath());
+        if (!staging.mkdirs()) {
+            throw new IOException("Failed to create " + staging.getAbsolutePath());
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(MAX_PARALLEL_DOWNLOADS);
+        ArrayList<Future<String>> hashes = new ArrayList<Future<String>>();
+        AtomicInteger started = new AtomicInteger(0);
+        try {
+            for (MediaManifestParser.MediaFile mf : changed) {
+                hashes.add(pool.submit(new MediaDownload(mf, staging, started, changed.size())));
+            }
+            for (Future<String> f : hashes) {
+                f.get();
+            }
+        } catch (ExecutionException e) {
+            FileUtils.deleteFolder(staging.getAbsolutePath());
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause.getMessage());
+        } finally {
+            pool.shutdownNow();
+            pool.awaitTermination(HttpDownloader.CONNECTION_TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+
+        // copy unchanged files across rather than moving them, so a failure here leaves the
+        // media folder whole, then swap the folders
+        try {
+            for (String filename : unchanged.keySet()) {
+                FileUtils.copyFile(new File(mediaDir, filename), new File(staging, filename));
+            }
         } catch (IOException e) {
-            e.printStackTrace();
+            FileUtils.deleteFolder(staging.getAbsolutePath());
             throw e;
         }
+        FileUtils.deleteFolder(old.getAbsolutePath());
+        if (mediaDir.exists() && !mediaDir.renameTo(old)) {
+            throw new IOException("Failed to replace " + mediaDir.getAbsolutePath());
+        }
+        if (!staging.renameTo(mediaDir)) {
+            old.renameTo(mediaDir);
+            throw new IOException("Failed to replace " + mediaDir.getAbsolutePath());
+        }
+        FileUtils.deleteFolder(old.getAbsolutePath());
+
+        // renaming keeps the date modified, so the hashes are still good at the new paths
+        for (int i = 0; i < changed.size(); i++) {
+            fda.cacheMd5Hash(new File(mediaDir, changed.get(i).filename), hashes.get(i).get());
+        }
+        // the copies have a new date modified, but the same content
+        for (String filename : unchanged.keySet()) {
+            fda.cacheMd5Hash(new File(mediaDir, filename), unchanged.get(filename));
+        }
+        fda.updateValidators(manifestUrl, c.getHeaderField("ETag"), c
+                .getHeaderField("Last-Modified"));
+    }
+
+
+    /**
+     * Downloads one media file into the staging folder on a pool thread, returning its hash.
+     */
+    private class MediaDownload implements Callable<String> {
+        private final MediaManifestParser.MediaFile mFile;
+        private final File mStaging;
+        private final AtomicInteger mStarted;
+        private final int mTotal;
+
+
+        MediaDownload(MediaManifestParser.MediaFile file, File staging, AtomicInteger started,
+                int total) {
+            mFile = file;
+            mStaging = staging;
+            mStarted = started;
+            mTotal = total;
+        }
+
 
-        return f;
+        @Override
+        public String call() throws IOException {
+            publishProgress(mFile.filename, Integer.valueOf(mStarted.incrementAndGet())
+                    .toString(), Integer.valueOf(mTotal).toString());
+            return HttpDownloader.download(mFile.downloadUrl, new File(mStaging, mFile.filename),
+                null, getMd5(mFile.hash), null, mStats).hash;
+        }
+    }
+
+
+    /**
+     * @return the md5 hash in a media manifest hash, without its "md5:" prefix, or null if there
+     *         is none or the hash uses another algorithm
+     */
+    private static String getMd5(String manifestHash) {
+        if (manifestHash == null) {
+            return null;
+        }
+        String hash = manifestHash.toLowerCase();
+        if (hash.startsWith(MD5_PREFIX)) {
+            return hash.substring(MD5_PREFIX.length());
+        }
+        return hash.indexOf(':') == -1 ? hash : null;
+    }
+
+
+    /**
+     * Downloads one form on a pool thread. The form is only installed once it is complete and
+     * matches the hash from the form list. An interrupted download is resumed the next time, and
+     * a form we already have is patched if the server can send just the changes.
+     */
+    private class FormDownload implements Callable<FormDownload> {
+        final String name;
+        final String url;
+        private final String[] mValidators;
+        private final String mBaseHash;
+        private final String mExpectedHash;
+        private final AtomicInteger mStarted;
+        private final int mTotal;
+
+        // set once the download is done. hash stays null if the form was not modified.
+        File file;
+        String hash;
+        String etag;
+        String lastModified;
+
+
+        FormDownload(String name, String url, String[] validators, String baseHash,
+                String expectedHash, AtomicInteger started, int total) {
+            this.name = name;
+            this.url = url;
+            mValidators = validators;
+            mBaseHash = baseHash;
+            mExpectedHash = expectedHash;
+            mStarted = started;
+            mTotal = total;
+        }
+
+
+        @Override
+        public FormDownload call() throws FormDownloadException {
+            publishProgress(name, Integer.valueOf(mStarted.incrementAndGet()).toString(), Integer
+                    .valueOf(mTotal).toString());
+
+            //The form is always saved under its own name. Appending an incrementing number
+            //(e.g Form_2, Form_3, etc) when a form already exists confused users as to which
+            //form to fill, so it was dropped.
+            file = new File(FileUtils.FORMS_PATH + name);
+            try {
+                HttpDownloader.Result r =
+                    HttpDownloader.download(url, file, mValidators, mExpectedHash, mBaseHash,
+                        mStats);
+                if (r.notModified) {
+                    Log.i(t, "Form " + name + " not modified, keeping " + file.getAbsolutePath());
+                    return this;
+                }
+                hash = r.hash;
+                etag = r.etag;
+                lastModified = r.lastModified;
+                return this;
+            } catch (IOException e) {
+                throw new FormDownloadException(name, e);
+            }
+        }
+    }
+
+
+    /**
+     * Carries the name of the form whose download failed.
+     */
+    private static class FormDownloadException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        final String form;
+
+
+        FormDownloadException(String form, Throwable cause) {
+            super(cause);
+            this.form = form;
+        }
     }
 
 
@@ -280,9 +659,16 @@ public class DownloadFormsTask extends
     protected void onProgressUpdate(String... values) {
         synchronized (this) {
             if (mStateListener != null) {
-                // update progress and total
-                mStateListener.progressUpdate(values[0], new Integer(values[1]).intValue(),
-                    new Integer(values[2]).intValue());
+                if (FORM_FOUND.equals(values[0])) {
+                    mStateListener.formFound(values[1], values[2], values[3], values[4],
+                        values[5]);
+                } else if (FORM_LIST_RESET.equals(values[0])) {
+                    mStateListener.formListReset();
+                } else {
+                    // update progress and total
+                    mStateListener.progressUpdate(values[0], new Integer(values[1]).intValue(),
+                        new Integer(values[2]).intValue());
+                }
             }
         }
 
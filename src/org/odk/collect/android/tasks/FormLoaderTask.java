@@ -15,23 +15,30 @@
 package org.odk.collect.android.tasks;
 
 import org.javarosa.core.model.FormDef;
+import org.javarosa.core.model.FormIndex;
+import org.javarosa.core.model.SelectChoice;
 import org.javarosa.core.model.condition.EvaluationContext;
 import org.javarosa.core.model.instance.TreeElement;
 import org.javarosa.core.model.instance.TreeReference;
+import org.javarosa.core.reference.InvalidReferenceException;
 import org.javarosa.core.reference.ReferenceManager;
 import org.javarosa.core.reference.RootTranslator;
 import org.javarosa.core.services.PrototypeManager;
 import org.javarosa.core.util.externalizable.DeserializationException;
 import org.javarosa.core.util.externalizable.ExtUtil;
+import org.javarosa.form.api.FormEntryCaption;
 import org.javarosa.form.api.FormEntryController;
 import org.javarosa.form.api.FormEntryModel;
+import org.javarosa.form.api.FormEntryPrompt;
 import org.javarosa.xform.parse.XFormParseException;
 import org.javarosa.xform.parse.XFormParser;
 import org.javarosa.xform.util.XFormUtils;
 import org.odk.collect.android.database.FileDbAdapter;
 import org.odk.collect.android.listeners.FormLoaderListener;
 import org.odk.collect.android.logic.FileReferenceFactory;
+import org.odk.collect.android.logic.ReferenceCache;
 import org.odk.collect.android.utilities.FileUtils;
+import org.odk.collect.android.widgets.WidgetFactory;
 
 import android.database.Cursor;
 import android.os.AsyncTask;
@@ -45,6 +52,9 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Vector;
 
 /**
  * Background task for loading a form.
@@ -80,9 +90,16 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
             "org.javarosa.xpath.expr.XPathVariableReference"
     };
 
+    // questions whose images are decoded ahead of being shown
+    private static final int PREFETCH_SCREENS = 5;
+
     FormLoaderListener mStateListener;
     String mErrorMsg;
 
+    // found by prefetchMedia()
+    ArrayList<String> mMissingMedia = new ArrayList<String>();
+    ArrayList<File> mPrefetchImages = new ArrayList<File>();
+
     protected class FECWrapper {
         FormEntryController controller;
 
@@ -210,7 +227,7 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
         String formFileName = formXml.getName().substring(0, formXml.getName().lastIndexOf("."));
 
         // Remove previous forms
-        ReferenceManager._().clearSession();
+        ReferenceCache.getInstance().clearSession();
 
         // This should get moved to the Application Class
         if (ReferenceManager._().getFactories().length == 0) {
@@ -227,6 +244,8 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
         ReferenceManager._().addSessionRootTranslator(
             new RootTranslator("jr://video/", "jr://file/forms/" + formFileName + "-media/"));
 
+        prefetchMedia(fem);
+
         // clean up vars
         fis = null;
         fd = null;
@@ -241,6 +260,90 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
     }
 
 
+    /**
+     * Walks the questions in order, resolving every image, audio and video reference once to check
+     * the file is there, so missing media can be reported now rather than question by question.
+     * The images of the first few questions are listed to be decoded before they are needed.
+     */
+    private void prefetchMedia(FormEntryModel fem) {
+        HashSet<String> seen = new HashSet<String>();
+        int screens = 0;
+        FormIndex index = FormIndex.createBeginningOfFormIndex();
+        while (true) {
+            index = fem.getForm().incrementIndex(index);
+            if (!index.isInForm()) {
+                break;
+            }
+            if (fem.getEvent(index) != FormEntryController.EVENT_QUESTION) {
+                continue;
+            }
+
+            screens++;
+            boolean early = screens <= PREFETCH_SCREENS;
+            FormEntryPrompt fp = fem.getQuestionPrompt(index);
+            checkMedia(fp.getImageText(), early, seen);
+            checkMedia(fp.getAudioText(), false, seen);
+            checkMedia(fp.getSpecialFormQuestionText("video"), false, seen);
+            checkMedia(fp.getSpecialFormQuestionText("big-image"), false, seen);
+
+            Vector<SelectChoice> choices = fp.getSelectChoices();
+            if (choices == null) {
+                continue;
+            }
+            // long choice lists are shown as text only
+            boolean choiceImages = early && !WidgetFactory.isLargeSelect(fp);
+            for (SelectChoice sc : choices) {
+                checkMedia(fp.getSpecialFormSelectChoiceText(sc, FormEntryCaption.TEXT_FORM_IMAGE),
+                    choiceImages, seen);
+                checkMedia(fp.getSpecialFormSelectChoiceText(sc, FormEntryCaption.TEXT_FORM_AUDIO),
+                    false, seen);
+                checkMedia(fp.getSpecialFormSelectChoiceText(sc, "video"), false, seen);
+                checkMedia(fp.getSpecialFormSelectChoiceText(sc, "big-image"), false, seen);
+            }
+        }
+        if (!mMissingMedia.isEmpty()) {
+            Log.w(t, "Missing media: " + mMissingMedia);
+        }
+    }
+
+
+    private void checkMedia(String uri, boolean prefetch, HashSet<String> seen) {
+        if (uri == null || !seen.add(uri)) {
+            return;
+        }
+        ReferenceCache.Resolved r;
+        try {
+            // resolved for the rest of the session too
+            r = ReferenceCache.getInstance().resolve(uri);
+        } catch (InvalidReferenceException e) {
+            Log.e(t, "Invalid media reference " + uri);
+            mMissingMedia.add(uri);
+            return;
+        }
+        if (!r.exists()) {
+            mMissingMedia.add(r.getFile().getName());
+        } else if (prefetch) {
+            mPrefetchImages.add(r.getFile());
+        }
+    }
+
+
+    /**
+     * @return the names of media files the form refers to that aren't on the sd card
+     */
+    public ArrayList<String> getMissingMedia() {
+        return mMissingMedia;
+    }
+
+
+    /**
+     * @return the images of the first questions, to be decoded before they are shown
+     */
+    public ArrayList<File> getPrefetchImages() {
+        return mPrefetchImages;
+    }
+
+
     public boolean importData(String filePath, FormEntryController fec) {
         // convert files into a byte array
         byte[] fileBytes = FileUtils.getFileAsBytes(new File(filePath));
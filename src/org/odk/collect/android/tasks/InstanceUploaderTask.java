@@ -14,22 +14,36 @@
 
 package org.odk.collect.android.tasks;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.apache.http.Header;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.params.HttpClientParams;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.entity.StringEntity;
 import org.apache.http.entity.mime.MultipartEntity;
 import org.apache.http.entity.mime.content.FileBody;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
 import org.apache.http.params.BasicHttpParams;
 import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpParams;
 import org.odk.collect.android.activities.InstanceUploaderList;
+import org.odk.collect.android.database.FileDbAdapter;
 import org.odk.collect.android.listeners.InstanceUploaderListener;
 
 import android.os.AsyncTask;
@@ -49,38 +63,122 @@ public class InstanceUploaderTask extends AsyncTask<String, Integer, ArrayList<S
     InstanceUploaderListener mStateListener;
     String mUrl;
     private static final int CONNECTION_TIMEOUT = 30000;
+    // how long to wait for a pooled connection
+    private static final long CONNECTION_MANAGER_TIMEOUT = 30000;
 
     public static final String SURVEY_LOCATION_HEADER = "x-applab-survey-location";
     public static final String INTERVIEWEEID_HEADER = "x-applab-interviewee-id";
 
+    // appended to the submission url to ask the server which attachments it still needs
+    private static final String MANIFEST_SUFFIX = "Manifest";
+    // set by servers that understood the manifest; any other reply means send everything. Servers
+    // also set it on submission replies to say they take manifests.
+    public static final String MANIFEST_HEADER = "x-applab-manifest";
+    private static final String MANIFEST_CONTENT_TYPE = "text/plain";
+
+    // instances whose last upload failed, so the server may hold some of their attachments
+    private static final HashSet<String> sFailedInstances = new HashSet<String>();
+    // submission urls whose replies said they take manifests
+    private static final HashSet<String> sManifestServers = new HashSet<String>();
+
+    // progress values reported for the farmer registration pipeline
+    private static final int REGISTRATION_PROGRESS = -1;
+    public static final int REGISTRATION_STARTED = 0;
+    public static final int REGISTRATION_COMPLETE = 1;
+    public static final int REGISTRATION_FAILED = 2;
+
+    // a single thread, so overlapping syncs never post the same registrations twice
+    private static final ExecutorService sRegistrationExecutor =
+        Executors.newSingleThreadExecutor();
+    // set once the uploads are done; registration updates after that are dropped
+    private volatile boolean mFinished;
+
     public void setUploadServer(String newServer) {
         mUrl = newServer;
     }
 
     @Override
     protected ArrayList<String> doInBackground(String... values) {
-        // First post any pending farmerRegistrations
-        FarmerRegistrationController farmerRegController = new FarmerRegistrationController();
-        farmerRegController.postFarmerRegistrationData(mUrl.replace("/submission", "")); // TODO: Need better way of
-                                                                                         // getting/setting the URL.
-                                                                                         // Can't
-                                                                                         // FarmerRegistrationController
-                                                                                         // take care of it?
+        // Post any pending farmerRegistrations alongside the instances rather than before them,
+        // so a slow registration endpoint doesn't hold up the survey sync.
+        postFarmerRegistrations();
+
+        // One client for the whole sync, so instances reuse pooled connections.
+        DefaultHttpClient httpclient = createHttpClient();
+        try {
+            return uploadInstances(httpclient, values);
+        } finally {
+            httpclient.getConnectionManager().shutdown();
+        }
+    }
+
+
+    /**
+     * Queues the farmer registration post on its own single thread. Failures are logged and
+     * reported through the listener, but never affect the instance uploads.
+     */
+    private void postFarmerRegistrations() {
+        // TODO: Need better way of getting/setting the URL. Can't FarmerRegistrationController
+        // take care of it?
+        final String registrationUrl = mUrl.replace("/submission", "");
+        sRegistrationExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                publishRegistrationProgress(REGISTRATION_STARTED);
+                try {
+                    FarmerRegistrationController farmerRegController =
+                        new FarmerRegistrationController();
+                    farmerRegController.postFarmerRegistrationData(registrationUrl);
+                    publishRegistrationProgress(REGISTRATION_COMPLETE);
+                } catch (Exception e) {
+                    Log.e(t, "Posting farmer registrations failed", e);
+                    publishRegistrationProgress(REGISTRATION_FAILED);
+                }
+            }
+        });
+    }
+
+
+    /**
+     * Reports the registration state, unless the task has finished and no one is listening for it
+     * any more.
+     */
+    private void publishRegistrationProgress(int state) {
+        if (!mFinished) {
+            publishProgress(REGISTRATION_PROGRESS, state);
+        }
+    }
+
+
+    private DefaultHttpClient createHttpClient() {
+        HttpParams params = new BasicHttpParams();
+        HttpConnectionParams.setConnectionTimeout(params, CONNECTION_TIMEOUT);
+        HttpConnectionParams.setSoTimeout(params, CONNECTION_TIMEOUT);
+        HttpClientParams.setRedirecting(params, false);
+        ConnManagerParams.setTimeout(params, CONNECTION_MANAGER_TIMEOUT);
 
+        SchemeRegistry registry = new SchemeRegistry();
+        registry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+        registry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+        ClientConnectionManager manager = new ThreadSafeClientConnManager(params, registry);
+
+        return new DefaultHttpClient(manager, params);
+    }
+
+
+    private ArrayList<String> uploadInstances(DefaultHttpClient httpclient, String... values) {
         ArrayList<String> uploadedIntances = new ArrayList<String>();
         int instanceCount = values.length;
 
         for (int i = 0; i < instanceCount; i++) {
             publishProgress(i + 1, instanceCount);
 
-            // Configure connection
+            // Configure request
             HttpParams params = new BasicHttpParams();
             HttpConnectionParams.setConnectionTimeout(params, CONNECTION_TIMEOUT);
             HttpConnectionParams.setSoTimeout(params, CONNECTION_TIMEOUT);
             HttpClientParams.setRedirecting(params, false);
 
-            // Setup client
-            DefaultHttpClient httpclient = new DefaultHttpClient(params);
             HttpPost httppost = new HttpPost(mUrl);
             HttpHelpers.addCommonHeaders(httppost);
 
@@ -114,11 +212,24 @@ public class InstanceUploaderTask extends AsyncTask<String, Integer, ArrayList<S
             // Restore the path
             values[i] = path;
 
+            // On a retry after a failure, ask the server which attachments it is missing, so they
+            // aren't all sent again. Servers that take manifests are always asked. null means send
+            // them all.
+            HashSet<String> missing = null;
+            if (isRetry(path) || takesManifests(mUrl)) {
+                missing = getMissingAttachments(httpclient, files, location, intervieweeId);
+            }
+
             // Mime post
             MultipartEntity entity = new MultipartEntity();
             for (int j = 0; j < files.length; j++) {
                 File f = files[j];
                 FileBody fb;
+                if (missing != null && !f.getName().endsWith(".xml")
+                        && !missing.contains(f.getName())) {
+                    Log.i(t, "server already has file " + f.getName());
+                    continue;
+                }
                 if (f.getName().endsWith(".xml")) {
                     fb = new FileBody(f, "text/xml");
                     entity.addPart("xml_submission_file", fb);
@@ -161,14 +272,17 @@ public class InstanceUploaderTask extends AsyncTask<String, Integer, ArrayList<S
             }
             catch (ClientProtocolException e) {
                 e.printStackTrace();
+                setFailed(path, true);
                 return uploadedIntances;
             }
             catch (IOException e) {
                 e.printStackTrace();
+                setFailed(path, true);
                 return uploadedIntances;
             }
             catch (IllegalStateException e) {
                 e.printStackTrace();
+                setFailed(path, true);
                 return uploadedIntances;
             }
 
@@ -185,10 +299,25 @@ public class InstanceUploaderTask extends AsyncTask<String, Integer, ArrayList<S
             }
             int responseCode = response.getStatusLine().getStatusCode();
             Log.e(t, "Response code:" + responseCode);
+            if (response.getFirstHeader(MANIFEST_HEADER) != null) {
+                setTakesManifests(mUrl);
+            }
+
+            // the body isn't used, but the pooled connection is only freed once it's read
+            if (response.getEntity() != null) {
+                try {
+                    response.getEntity().consumeContent();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
 
             // verify that your response came from a known server
             if (serverLocation != null && mUrl.contains(serverLocation) && responseCode == 201) {
                 uploadedIntances.add(values[i]);
+                setFailed(path, false);
+            } else {
+                setFailed(path, true);
             }
 
         }
@@ -196,8 +325,137 @@ public class InstanceUploaderTask extends AsyncTask<String, Integer, ArrayList<S
         return uploadedIntances;
     }
 
+    private static boolean isRetry(String path) {
+        synchronized (sFailedInstances) {
+            return sFailedInstances.contains(path);
+        }
+    }
+
+
+    private static void setFailed(String path, boolean failed) {
+        synchronized (sFailedInstances) {
+            if (failed) {
+                sFailedInstances.add(path);
+            } else {
+                sFailedInstances.remove(path);
+            }
+        }
+    }
+
+
+    private static boolean takesManifests(String url) {
+        synchronized (sManifestServers) {
+            return sManifestServers.contains(url);
+        }
+    }
+
+
+    private static void setTakesManifests(String url) {
+        synchronized (sManifestServers) {
+            sManifestServers.add(url);
+        }
+    }
+
+
+    /**
+     * Posts a manifest of "hash name" lines for the attachments in an instance folder and reads
+     * back the names of the attachments the server has not stored yet. The reply only counts if it
+     * is text/plain and carries the {@link #MANIFEST_HEADER} header, and names not in the manifest
+     * are ignored.
+     * 
+     * @return names of the missing attachments, or null if the server doesn't support manifests
+     *         or the reply wasn't recognized, and everything has to be sent
+     */
+    private HashSet<String> getMissingAttachments(DefaultHttpClient httpclient, File[] files,
+            String location, String intervieweeId) {
+        StringBuffer manifest = new StringBuffer();
+        String submissionName = null;
+        HashSet<String> names = new HashSet<String>();
+
+        FileDbAdapter fda = new FileDbAdapter();
+        fda.open();
+        try {
+            for (File f : files) {
+                if (f.getName().endsWith(".xml")) {
+                    submissionName = f.getName();
+                    continue;
+                }
+                String hash = fda.getCachedMd5Hash(f);
+                if (hash == null) {
+                    // can't vouch for this file, so send everything
+                    return null;
+                }
+                manifest.append(hash).append(' ').append(f.getName()).append('\n');
+                names.add(f.getName());
+            }
+        } finally {
+            fda.close();
+        }
+
+        if (names.isEmpty() || submissionName == null) {
+            // nothing to deduplicate
+            return null;
+        }
+
+        HttpPost httppost = new HttpPost(mUrl + MANIFEST_SUFFIX);
+        HttpHelpers.addCommonHeaders(httppost);
+        httppost.addHeader(SURVEY_LOCATION_HEADER, location);
+        httppost.addHeader(INTERVIEWEEID_HEADER, intervieweeId);
+
+        HashSet<String> missing = new HashSet<String>();
+        try {
+            StringEntity body = new StringEntity(submissionName + "\n" + manifest, "UTF-8");
+            body.setContentType("text/plain");
+            httppost.setEntity(body);
+
+            HttpResponse response = httpclient.execute(httppost);
+            try {
+                // a proxy or captive portal can answer 200 with a page of its own, so only
+                // trust a reply that says it is a manifest response
+                int responseCode = response.getStatusLine().getStatusCode();
+                Header contentType =
+                    response.getEntity() == null ? null : response.getEntity().getContentType();
+                if (responseCode != 200 || response.getFirstHeader(MANIFEST_HEADER) == null
+                        || contentType == null
+                        || !contentType.getValue().startsWith(MANIFEST_CONTENT_TYPE)) {
+                    Log.i(t, "Manifest not accepted, response code:" + responseCode);
+                    return null;
+                }
+                setTakesManifests(mUrl);
+
+                BufferedReader reader =
+                    new BufferedReader(new InputStreamReader(response.getEntity().getContent(),
+                            "UTF-8"));
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    line = line.trim();
+                    if (names.contains(line)) {
+                        missing.add(line);
+                    } else if (line.length() > 0) {
+                        Log.w(t, "Manifest response names unknown attachment " + line);
+                    }
+                }
+            } finally {
+                if (response.getEntity() != null) {
+                    response.getEntity().consumeContent();
+                }
+            }
+        } catch (ClientProtocolException e) {
+            e.printStackTrace();
+            return null;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+
+        Log.i(t, "server is missing " + missing.size() + " of " + names.size() + " attachments");
+        return missing;
+    }
+
+
     @Override
     protected void onPostExecute(ArrayList<String> value) {
+        mFinished = true;
         synchronized (this) {
             if (mStateListener != null) {
                 mStateListener.uploadingComplete(value);
@@ -209,8 +467,15 @@ public class InstanceUploaderTask extends AsyncTask<String, Integer, ArrayList<S
     protected void onProgressUpdate(Integer... values) {
         synchronized (this) {
             if (mStateListener != null) {
-                // update progress and total
-                mStateListener.progressUpdate(values[0].intValue(), values[1].intValue());
+                if (values[0].intValue() == REGISTRATION_PROGRESS) {
+                    // posted before the task finished, but arrived after
+                    if (!mFinished) {
+                        mStateListener.registrationUpdate(values[1].intValue());
+                    }
+                } else {
+                    // update progress and total
+                    mStateListener.progressUpdate(values[0].intValue(), values[1].intValue());
+                }
             }
         }
     }
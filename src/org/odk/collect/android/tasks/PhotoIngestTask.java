@@ -0,0 +1,192 @@
+/**
+ * Copyright (C) 2012 Grameen Foundation
+Licensed under the Apache License, Version 2.0 (the "License"); you may not
+use this file except in compliance with the License. You may obtain a copy of
+the License at http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations under
+the License.
+ */
+
+package org.odk.collect.android.tasks;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.odk.collect.android.listeners.PhotoIngestListener;
+import org.odk.collect.android.utilities.BitmapCache;
+import org.odk.collect.android.utilities.FileUtils;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.provider.MediaStore.Images;
+import android.util.Log;
+
+/**
+ * Background task for storing a photo the camera has just taken: moves it from the temp file into
+ * the instance folder, adds it to the Media content provider, and decodes the thumbnail the image
+ * widget shows into the {@link BitmapCache}, so none of it holds up the screen when the camera
+ * returns.
+ * <p>
+ * Photos can also be recompressed to a smaller size with {@link #setMaxDimension(int)}; by default
+ * they are kept as taken.
+ */
+public class PhotoIngestTask extends AsyncTask<Void, Void, Boolean> {
+    private final static String t = "PhotoIngestTask";
+
+    // quality photos are recompressed at
+    private static final int JPEG_QUALITY = 85;
+
+    private PhotoIngestListener mListener;
+
+    private final ContentResolver mResolver;
+    private final File mSource;
+    private final File mPhoto;
+    private final int mThumbnailWidth;
+    private final int mThumbnailHeight;
+    private int mMaxDimension;
+    private boolean mStored;
+
+
+    /**
+     * @param source the file the camera wrote
+     * @param photo where the photo is kept
+     * @param thumbnailWidth the size the image widget shows it at
+     */
+    public PhotoIngestTask(ContentResolver resolver, File source, File photo, int thumbnailWidth,
+            int thumbnailHeight) {
+        mResolver = resolver;
+        mSource = source;
+        mPhoto = photo;
+        mThumbnailWidth = thumbnailWidth;
+        mThumbnailHeight = thumbnailHeight;
+    }
+
+
+    /**
+     * @param maxDimension the longest side photos are reduced to, or 0 to keep them as taken
+     */
+    public void setMaxDimension(int maxDimension) {
+        mMaxDimension = maxDimension;
+    }
+
+
+    @Override
+    protected Boolean doInBackground(Void... params) {
+        if (!mSource.renameTo(mPhoto)) {
+            Log.e(t, "Failed to rename " + mSource.getAbsolutePath());
+            return false;
+        }
+        Log.i(t, "renamed " + mSource.getAbsolutePath() + " to " + mPhoto.getAbsolutePath());
+
+        if (mMaxDimension > 0) {
+            recompress();
+        }
+
+        // Add the new image to the Media content provider so that the
+        // viewing is fast in Android 2.0+
+        ContentValues values = new ContentValues(6);
+        values.put(Images.Media.TITLE, mPhoto.getName());
+        values.put(Images.Media.DISPLAY_NAME, mPhoto.getName());
+        values.put(Images.Media.DATE_TAKEN, System.currentTimeMillis());
+        values.put(Images.Media.MIME_TYPE, "image/jpeg");
+        values.put(Images.Media.DATA, mPhoto.getAbsolutePath());
+        Uri imageuri = mResolver.insert(Images.Media.EXTERNAL_CONTENT_URI, values);
+        Log.i(t, "Inserting image returned uri = " + imageuri);
+
+        try {
+            Bitmap thumbnail =
+                FileUtils.getBitmapScaledToDisplay(mPhoto, mThumbnailHeight, mThumbnailWidth);
+            if (thumbnail != null) {
+                BitmapCache.getInstance().put(mPhoto, mThumbnailWidth, mThumbnailHeight,
+                    thumbnail);
+            }
+        } catch (OutOfMemoryError e) {
+            // the widget will decode it itself
+            Log.e(t, "Out of memory making thumbnail: " + e.getMessage());
+        }
+        return true;
+    }
+
+
+    /**
+     * Writes the photo again at no more than mMaxDimension on its longest side.
+     */
+    private void recompress() {
+        Bitmap b;
+        try {
+            b = FileUtils.getBitmapScaledToDisplay(mPhoto, mMaxDimension, mMaxDimension);
+        } catch (OutOfMemoryError e) {
+            Log.e(t, "Out of memory recompressing: " + e.getMessage());
+            return;
+        }
+        if (b == null) {
+            return;
+        }
+
+        File tmp = new File(mPhoto.getAbsolutePath() + ".tmp");
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(tmp);
+            b.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, fos);
+            fos.close();
+            fos = null;
+            if (!tmp.renameTo(mPhoto)) {
+                Log.e(t, "Failed to replace " + mPhoto.getAbsolutePath());
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            b.recycle();
+            if (fos != null) {
+                try {
+                    fos.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            tmp.delete();
+        }
+    }
+
+
+    /**
+     * @return where the photo is kept
+     */
+    public File getPhoto() {
+        return mPhoto;
+    }
+
+
+    /**
+     * @return true if the task has finished and the photo was stored, for a listener set after
+     *         it finished
+     */
+    public boolean isStored() {
+        return mStored;
+    }
+
+
+    @Override
+    protected void onPostExecute(Boolean ok) {
+        mStored = ok;
+        synchronized (this) {
+            if (mListener != null) {
+                mListener.photoIngested(mPhoto, ok);
+            }
+        }
+    }
+
+
+    public void setPhotoIngestListener(PhotoIngestListener pil) {
+        synchronized (this) {
+            mListener = pil;
+        }
+    }
+}
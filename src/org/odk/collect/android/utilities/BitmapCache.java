@@ -0,0 +1,206 @@
+/**
+ * Copyright (C) 2012 Grameen Foundation
+Licensed under the Apache License, Version 2.0 (the "License"); you may not
+use this file except in compliance with the License. You may obtain a copy of
+the License at http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations under
+the License.
+ */
+
+package org.odk.collect.android.utilities;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * Decoded form images, kept so that going back and forth between questions doesn't decode the
+ * same files again. Images are decoded on a background thread and handed to the UI thread, and
+ * the least recently used are dropped once the cache holds more than a share of the heap.
+ * <p>
+ * Entries are keyed by file and the size the image was scaled for. Activities showing images
+ * should call {@link #clear()} when told memory is low.
+ */
+public class BitmapCache {
+
+    private final static String t = "BitmapCache";
+
+    // the share of the heap the cache may use
+    private static final int HEAP_FRACTION = 8;
+
+    public interface BitmapListener {
+        /**
+         * Called on the UI thread once an image has been decoded.
+         *
+         * @param b the image, or null if the file couldn't be decoded
+         */
+        void bitmapLoaded(File f, Bitmap b);
+    }
+
+    private static BitmapCache sInstance;
+
+    private final long mMaxBytes;
+    private long mBytes;
+    // in access order, so the first entry is the least recently used
+    private final LinkedHashMap<String, Bitmap> mBitmaps =
+        new LinkedHashMap<String, Bitmap>(16, 0.75f, true);
+    // listeners waiting for images being decoded
+    private final HashMap<String, ArrayList<BitmapListener>> mPending =
+        new HashMap<String, ArrayList<BitmapListener>>();
+
+    private final ExecutorService mExecutor;
+    private final Handler mHandler;
+
+
+    public static synchronized BitmapCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new BitmapCache();
+        }
+        return sInstance;
+    }
+
+
+    private BitmapCache() {
+        mMaxBytes = Runtime.getRuntime().maxMemory() / HEAP_FRACTION;
+        mHandler = new Handler(Looper.getMainLooper());
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, t);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+    }
+
+
+    /**
+     * @return the image if it has already been decoded at this size, or null
+     */
+    public synchronized Bitmap get(File f, int width, int height) {
+        return mBitmaps.get(getKey(f, width, height));
+    }
+
+
+    /**
+     * Decodes an image in the background, scaled to fit within the size, unless it is already in
+     * the cache. Must be called on the UI thread.
+     *
+     * @param listener called with the image, or null to only fill the cache
+     */
+    public void load(final File f, final int width, final int height, BitmapListener listener) {
+        final String key = getKey(f, width, height);
+        Bitmap b = get(f, width, height);
+        if (b != null) {
+            if (listener != null) {
+                listener.bitmapLoaded(f, b);
+            }
+            return;
+        }
+
+        ArrayList<BitmapListener> listeners = mPending.get(key);
+        if (listeners != null) {
+            // already being decoded
+            if (listener != null) {
+                listeners.add(listener);
+            }
+            return;
+        }
+        listeners = new ArrayList<BitmapListener>();
+        if (listener != null) {
+            listeners.add(listener);
+        }
+        mPending.put(key, listeners);
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Bitmap decoded = null;
+                try {
+                    decoded = FileUtils.getBitmapScaledToDisplay(f, height, width);
+                } catch (OutOfMemoryError e) {
+                    Log.e(t, "Out of memory decoding " + f + ": " + e.getMessage());
+                    clear();
+                }
+                if (decoded != null) {
+                    put(key, decoded);
+                }
+
+                final Bitmap result = decoded;
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        ArrayList<BitmapListener> waiting = mPending.remove(key);
+                        if (waiting != null) {
+                            for (BitmapListener l : waiting) {
+                                l.bitmapLoaded(f, result);
+                            }
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+
+    /**
+     * Drops every image, e.g. when memory is low. Images on screen are not affected.
+     */
+    public synchronized void clear() {
+        mBitmaps.clear();
+        mBytes = 0;
+    }
+
+
+    /**
+     * Adds an image decoded elsewhere, such as a thumbnail made as a photo is saved. May be called
+     * from any thread.
+     */
+    public void put(File f, int width, int height, Bitmap b) {
+        put(getKey(f, width, height), b);
+    }
+
+
+    private synchronized void put(String key, Bitmap b) {
+        Bitmap old = mBitmaps.put(key, b);
+        if (old != null) {
+            mBytes -= getBytes(old);
+        }
+        mBytes += getBytes(b);
+
+        Iterator<Map.Entry<String, Bitmap>> i = mBitmaps.entrySet().iterator();
+        while (mBytes > mMaxBytes && i.hasNext()) {
+            Map.Entry<String, Bitmap> eldest = i.next();
+            if (eldest.getValue() == b) {
+                // too big to keep with anything else, but keep it until the next one
+                continue;
+            }
+            mBytes -= getBytes(eldest.getValue());
+            i.remove();
+        }
+    }
+
+
+    private static long getBytes(Bitmap b) {
+        return (long) b.getRowBytes() * b.getHeight();
+    }
+
+
+    private static String getKey(File f, int width, int height) {
+        return f.getAbsolutePath() + "@" + width + "x" + height;
+    }
+}
@@ -0,0 +1,208 @@
+/**
+ * Copyright (C) 2012 Grameen Foundation
+Licensed under the Apache License, Version 2.0 (the "License"); you may not
+use this file except in compliance with the License. You may obtain a copy of
+the License at http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations under
+the License.
+ */
+
+package org.odk.collect.android.utilities;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Applies a "diffe" delta (the output of diff -e, as registered for RFC 3229 delta encoding) to a
+ * text file. The script is a list of ed commands working from the end of the file towards the
+ * start, so each command's line numbers still refer to the original file:
+ * 
+ * <pre>
+ * 12,14c      replace lines 12 to 14 with the text that follows
+ * 9d          delete line 9
+ * 3a          add the text that follows after line 3
+ * </pre>
+ * 
+ * The text for a and c commands ends with a line holding a single ".". A text line that is itself
+ * "." is sent as "..", followed by the end of the text, "s/.//" to take the extra dot off the line
+ * just added, and "a" to go on adding after it. Lines keep the terminators they have in the script,
+ * so a delta of a file with CRLF line ends gives back CRLF lines.
+ */
+public class DeltaPatcher {
+
+    // the instance manipulation named in A-IM and IM headers
+    public static final String DIFFE = "diffe";
+
+    private static final Pattern COMMAND = Pattern.compile("(\\d+)(?:,(\\d+))?([acd])");
+    private static final String END_OF_TEXT = ".";
+    // drops the dot that escapes a "." line
+    private static final String UNESCAPE = "s/.//";
+    // adds more text after the current line
+    private static final String APPEND = "a";
+
+
+    /**
+     * Applies the delta to base and writes the result to out. Neither stream is closed.
+     * 
+     * @throws IOException if the delta can't be read or doesn't fit the base file
+     */
+    public static void apply(File base, InputStream delta, OutputStream out) throws IOException {
+        List<String> lines = readLines(new InputStreamReader(new FileInputStream(base), "UTF-8"));
+        Reader script = new BufferedReader(new InputStreamReader(delta, "UTF-8"));
+
+        // the last line added, as ed keeps it, or 0 before anything has been added
+        int current = 0;
+        String line;
+        while ((line = readLine(script)) != null) {
+            String command = stripTerminator(line);
+            if (command.length() == 0) {
+                continue;
+            }
+            if (UNESCAPE.equals(command)) {
+                String escaped = current > 0 ? lines.get(current - 1) : "";
+                if (!escaped.startsWith(".")) {
+                    throw new IOException("Bad delta command: " + command);
+                }
+                lines.set(current - 1, escaped.substring(1));
+                continue;
+            }
+
+            int first;
+            int last;
+            char op;
+            if (APPEND.equals(command)) {
+                if (current == 0) {
+                    throw new IOException("Bad delta command: " + command);
+                }
+                first = last = current;
+                op = 'a';
+            } else {
+                Matcher m = COMMAND.matcher(command);
+                if (!m.matches()) {
+                    throw new IOException("Bad delta command: " + command);
+                }
+                first = Integer.parseInt(m.group(1));
+                last = m.group(2) == null ? first : Integer.parseInt(m.group(2));
+                op = m.group(3).charAt(0);
+            }
+
+            if (op != 'a' && (first < 1 || last < first || last > lines.size())) {
+                throw new IOException("Delta command out of range: " + command);
+            }
+            if (op == 'a' && first > lines.size()) {
+                throw new IOException("Delta command out of range: " + command);
+            }
+
+            if (op != 'a') {
+                // c and d both remove the lines first
+                lines.subList(first - 1, last).clear();
+                current = 0;
+            }
+            if (op != 'd') {
+                // c inserts where the removed lines were, a inserts after the line
+                int at = op == 'a' ? first : first - 1;
+                List<String> text = readText(script);
+                lines.addAll(at, text);
+                current = at + text.size();
+            }
+        }
+
+        Writer w = new OutputStreamWriter(out, "UTF-8");
+        for (String l : lines) {
+            w.write(l);
+        }
+        w.flush();
+    }
+
+
+    /**
+     * Reads the text of an a or c command.
+     */
+    private static List<String> readText(Reader script) throws IOException {
+        ArrayList<String> text = new ArrayList<String>();
+        String line;
+        while ((line = readLine(script)) != null) {
+            if (END_OF_TEXT.equals(stripTerminator(line))) {
+                return text;
+            }
+            if (!line.endsWith("\n")) {
+                // the delta was cut off in the middle of a line
+                break;
+            }
+            text.add(line);
+        }
+        throw new IOException("Delta ended in the middle of a command");
+    }
+
+
+    /**
+     * @return the next line including its terminator, or null at the end of the stream
+     */
+    private static String readLine(Reader r) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = r.read()) != -1) {
+            line.append((char) c);
+            if (c == '\n') {
+                break;
+            }
+        }
+        return line.length() == 0 ? null : line.toString();
+    }
+
+
+    private static String stripTerminator(String line) {
+        int end = line.length();
+        if (end > 0 && line.charAt(end - 1) == '\n') {
+            end--;
+            if (end > 0 && line.charAt(end - 1) == '\r') {
+                end--;
+            }
+        }
+        return line.substring(0, end);
+    }
+
+
+    /**
+     * Splits the file into lines, keeping each line's terminator so the file can be written back
+     * byte for byte.
+     */
+    private static List<String> readLines(Reader r) throws IOException {
+        ArrayList<String> lines = new ArrayList<String>();
+        try {
+            StringBuilder line = new StringBuilder();
+            char buf[] = new char[8192];
+            int len;
+            while ((len = r.read(buf)) > 0) {
+                for (int i = 0; i < len; i++) {
+                    line.append(buf[i]);
+                    if (buf[i] == '\n') {
+                        lines.add(line.toString());
+                        line.setLength(0);
+                    }
+                }
+            }
+            if (line.length() > 0) {
+                lines.add(line.toString());
+            }
+        } finally {
+            r.close();
+        }
+        return lines;
+    }
+}
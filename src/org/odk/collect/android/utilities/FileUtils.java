@@ -22,8 +22,10 @@ import android.util.Log;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.math.BigInteger;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -48,6 +50,8 @@ public class FileUtils {
     public static final String CACHE_PATH = Environment.getExternalStorageDirectory()
             + "/odk/.cache/";
     public static final String TMPFILE_PATH = CACHE_PATH + "tmp.jpg";
+    public static final String DIAGNOSTICS_PATH = Environment.getExternalStorageDirectory()
+            + "/odk/diagnostics/";
 
 
     public static ArrayList<String> getValidFormsAsArrayList(String path) {
@@ -201,6 +205,28 @@ public class FileUtils {
     }
 
 
+    /**
+     * Copies a file, replacing the destination if it exists.
+     */
+    public static void copyFile(File source, File dest) throws IOException {
+        InputStream is = new FileInputStream(source);
+        try {
+            OutputStream os = new FileOutputStream(dest);
+            try {
+                byte[] buf = new byte[8192];
+                int n;
+                while ((n = is.read(buf)) > 0) {
+                    os.write(buf, 0, n);
+                }
+            } finally {
+                os.close();
+            }
+        } finally {
+            is.close();
+        }
+    }
+
+
     public static boolean storageReady() {
         String cardstatus = Environment.getExternalStorageState();
         if (cardstatus.equals(Environment.MEDIA_REMOVED)
@@ -246,14 +272,8 @@ public class FileUtils {
                 is.read(chunk, 0, remaining);
                 md.update(chunk, 0, remaining);
             }
-            byte[] messageDigest = md.digest();
-
-            BigInteger number = new BigInteger(1, messageDigest);
-            String md5 = number.toString(16);
-            while (md5.length() < 32)
-                md5 = "0" + md5;
             is.close();
-            return md5;
+            return getMd5String(md.digest());
 
         } catch (NoSuchAlgorithmException e) {
             Log.e("MD5", e.getMessage());
@@ -270,6 +290,19 @@ public class FileUtils {
     }
 
 
+    /**
+     * Formats an md5 digest the same way as getMd5Hash, so digests computed while a file is
+     * written can be compared with hashes of files on disk.
+     */
+    public static String getMd5String(byte[] messageDigest) {
+        BigInteger number = new BigInteger(1, messageDigest);
+        String md5 = number.toString(16);
+        while (md5.length() < 32)
+            md5 = "0" + md5;
+        return md5;
+    }
+
+
     public static Bitmap getBitmapScaledToDisplay(File f, int screenHeight, int screenWidth) {
         // Determine image size of f
         BitmapFactory.Options o = new BitmapFactory.Options();
@@ -279,14 +312,20 @@ public class FileUtils {
         int heightScale = o.outHeight / screenHeight;
         int widthScale = o.outWidth / screenWidth;
 
-        // Powers of 2 work faster, sometimes, according to the doc.
-        // We're just doing closest size that still fills the screen.
-        int scale = Math.max(widthScale, heightScale);
+        // The decoder rounds down to a power of 2 anyway, so we do it here to know the real scale.
+        // This is the closest size that still fills the screen.
+        int scale = 1;
+        while (scale * 2 <= Math.max(widthScale, heightScale)) {
+            scale *= 2;
+        }
 
-        // get bitmap with scale ( < 1 is the same as 1)
         BitmapFactory.Options options = new BitmapFactory.Options();
         options.inSampleSize = scale;
         Bitmap b = BitmapFactory.decodeFile(f.getAbsolutePath(), options);
+        if (b == null) {
+            Log.e(t, "Could not decode " + f.getAbsolutePath());
+            return null;
+        }
         Log.i(t, "Screen is " + screenHeight + "x" + screenWidth + ".  Image has been scaled down by " + scale
                 + " to " + b.getHeight() + "x" + b.getWidth());
 
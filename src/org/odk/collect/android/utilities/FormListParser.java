@@ -0,0 +1,92 @@
+/**
+ * Copyright (C) 2012 Grameen Foundation
+Licensed under the Apache License, Version 2.0 (the "License"); you may not
+use this file except in compliance with the License. You may obtain a copy of
+the License at http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations under
+the License.
+ */
+
+package org.odk.collect.android.utilities;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import android.util.Xml;
+
+/**
+ * Streaming parser for the server form list. Each form is handed to a {@link FormListHandler} as
+ * soon as its element has been read, so no document tree is built and large lists can be shown
+ * while they are still arriving.
+ * 
+ * <pre>
+ * &lt;forms&gt;
+ *   &lt;form url="http://..." hash="..." version="..."
+ *       manifestUrl="http://..."&gt;Form Name&lt;/form&gt;
+ * &lt;/forms&gt;
+ * </pre>
+ */
+public class FormListParser {
+
+    private static final String FORM = "form";
+    private static final String ATTR_URL = "url";
+    private static final String ATTR_HASH = "hash";
+    private static final String ATTR_VERSION = "version";
+    private static final String ATTR_MANIFEST_URL = "manifestUrl";
+
+    /**
+     * Receives the forms found in a form list.
+     */
+    public interface FormListHandler {
+        /**
+         * @param name display name of the form
+         * @param url where to download the form from
+         * @param hash md5 hash of the form, or null if the server didn't send one
+         * @param version version of the form, or null if the server didn't send one
+         * @param manifestUrl where to get the form's media manifest, or null if it has no media
+         */
+        void formFound(String name, String url, String hash, String version, String manifestUrl);
+    }
+
+
+    /**
+     * Reads the form list from the stream, calling the handler once for every form with a name
+     * and url. The stream is not closed.
+     */
+    public static void parse(InputStream is, FormListHandler handler)
+            throws XmlPullParserException, IOException {
+        XmlPullParser parser = Xml.newPullParser();
+        parser.setInput(is, null);
+        parse(parser, handler);
+    }
+
+
+    /**
+     * Reads the form list from a parser whose input has been set.
+     */
+    static void parse(XmlPullParser parser, FormListHandler handler)
+            throws XmlPullParserException, IOException {
+        int event = parser.getEventType();
+        while (event != XmlPullParser.END_DOCUMENT) {
+            if (event == XmlPullParser.START_TAG && FORM.equals(parser.getName())) {
+                // look attributes up by name, the server doesn't promise an order
+                String url = parser.getAttributeValue(null, ATTR_URL);
+                String hash = parser.getAttributeValue(null, ATTR_HASH);
+                String version = parser.getAttributeValue(null, ATTR_VERSION);
+                String manifestUrl = parser.getAttributeValue(null, ATTR_MANIFEST_URL);
+                String name = parser.nextText();
+                if (url != null && name != null && name.trim().length() > 0) {
+                    handler.formFound(name.trim(), url.trim(), hash, version, manifestUrl);
+                }
+            }
+            event = parser.next();
+        }
+    }
+
+}
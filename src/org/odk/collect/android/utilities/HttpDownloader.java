@@ -0,0 +1,519 @@
+/**
+ * Copyright (C) 2012 Grameen Foundation
+Licensed under the Apache License, Version 2.0 (the "License"); you may not
+use this file except in compliance with the License. You may obtain a copy of
+the License at http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations under
+the License.
+ */
+
+package org.odk.collect.android.utilities;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+import android.util.Log;
+import applab.client.HttpHelpers;
+
+/**
+ * Downloads files from the server for forms and their media. A file is streamed into a staging
+ * area while its md5 hash is computed, and only moved to its destination once it is complete and
+ * matches the hash the server advertised. If a download is interrupted the partial file is kept
+ * along with the server's validator, and the next attempt asks for just the missing bytes with a
+ * Range request. Responses are requested gzipped and decompressed on the way in.
+ * <p>
+ * When the caller already has an older copy of a text file it can ask for a delta against it
+ * (RFC 3229 with the "diffe" format), which is patched onto the old copy and checked against the
+ * expected hash. If the delta doesn't produce the right file the whole file is downloaded.
+ */
+public class HttpDownloader {
+    private static final String t = "HttpDownloader";
+
+    public static final int CONNECTION_TIMEOUT = 30000;
+
+    // partial downloads waiting to be resumed
+    public static final String STAGING_PATH = FileUtils.CACHE_PATH + ".partial/";
+
+    private static final int BUFFER_SIZE = 8192;
+
+    // attempts made within one download, as long as each attempt makes progress
+    private static final int MAX_ATTEMPTS = 3;
+
+    private static final String MD5_PREFIX = "md5:";
+
+    // RFC 3229 "IM Used", the response carries a delta
+    private static final int HTTP_IM_USED = 226;
+
+
+    /**
+     * The outcome of a download.
+     */
+    public static class Result {
+        // true if the server said our copy is current, in which case nothing else is set
+        public final boolean notModified;
+        public final String hash;
+        public final String etag;
+        public final String lastModified;
+
+
+        Result(boolean notModified, String hash, String etag, String lastModified) {
+            this.notModified = notModified;
+            this.hash = hash;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+    }
+
+
+    /**
+     * Bytes received from the server and what they decompressed to, for reporting how much gzip
+     * saved over a sync.
+     */
+    public static class TransferStats {
+        final AtomicLong mWireBytes = new AtomicLong();
+        final AtomicLong mDecodedBytes = new AtomicLong();
+
+
+        public long getWireBytes() {
+            return mWireBytes.get();
+        }
+
+
+        public long getDecodedBytes() {
+            return mDecodedBytes.get();
+        }
+
+
+        public long getSavedBytes() {
+            return mDecodedBytes.get() - mWireBytes.get();
+        }
+    }
+
+
+    /**
+     * Opens a connection to the url. If validators are given (as returned by
+     * FileDbAdapter.getValidators()) they are sent so the server can answer 304 Not Modified.
+     */
+    public static URLConnection openConnection(String url, String[] validators)
+            throws IOException {
+        URL u = new URL(url);
+
+        // prevent deadlock when connection is invalid
+        URLConnection c = u.openConnection();
+        c.setConnectTimeout(CONNECTION_TIMEOUT);
+        c.setReadTimeout(CONNECTION_TIMEOUT);
+        HttpHelpers.addCommonHeaders(c);
+        c.setRequestProperty("Accept-Encoding", "gzip");
+
+        if (validators != null) {
+            if (validators[0] != null) {
+                c.setRequestProperty("If-None-Match", validators[0]);
+            }
+            if (validators[1] != null) {
+                c.setRequestProperty("If-Modified-Since", validators[1]);
+            }
+        }
+        return c;
+    }
+
+
+    /**
+     * Gets the body of the response, decompressing it if the server gzipped it.
+     * 
+     * @param c an open connection
+     * @param stats where to count the bytes read, or null
+     */
+    public static InputStream getInputStream(URLConnection c, TransferStats stats)
+            throws IOException {
+        InputStream is = c.getInputStream();
+        if (stats != null) {
+            is = new CountingInputStream(is, stats.mWireBytes);
+        }
+        if ("gzip".equalsIgnoreCase(c.getContentEncoding())) {
+            is = new GZIPInputStream(is, BUFFER_SIZE);
+        }
+        if (stats != null) {
+            is = new CountingInputStream(is, stats.mDecodedBytes);
+        }
+        return is;
+    }
+
+
+    public static boolean isNotModified(URLConnection c) throws IOException {
+        return getResponseCode(c) == HttpURLConnection.HTTP_NOT_MODIFIED;
+    }
+
+
+    private static int getResponseCode(URLConnection c) throws IOException {
+        return c instanceof HttpURLConnection ? ((HttpURLConnection) c).getResponseCode() : -1;
+    }
+
+
+    /**
+     * Downloads url to target, resuming an earlier partial download of the same url if there is
+     * one.
+     *
+     * @param url the url to download
+     * @param target where the file is installed once complete
+     * @param validators validators for the copy of target we already have, or null
+     * @param expectedHash md5 hash advertised by the server, with or without an "md5:" prefix, or
+     *            null if it didn't advertise one
+     * @param baseHash md5 hash of the copy of target we already have, to ask for a delta against
+     *            it, or null to always download the whole file. Deltas are only asked for when
+     *            there is an expected hash to check the result with.
+     * @param stats where to count the bytes read, or null
+     * @return the outcome of the download
+     * @throws IOException if the download failed. A partial file is kept if it can be resumed.
+     */
+    public static Result download(String url, File target, String[] validators,
+            String expectedHash, String baseHash, TransferStats stats) throws IOException {
+        return download(url, target, validators, expectedHash, baseHash, stats, new File(
+                STAGING_PATH));
+    }
+
+
+    /**
+     * Downloads url to target, keeping partial downloads in the given staging folder.
+     */
+    static Result download(String url, File target, String[] validators, String expectedHash,
+            String baseHash, TransferStats stats, File staging) throws IOException {
+        FileUtils.createFolder(staging.getAbsolutePath());
+        String key = target.getName() + "-" + Integer.toHexString(url.hashCode());
+        File partial = new File(staging, key + ".part");
+        File info = new File(staging, key + ".info");
+
+        if (expectedHash != null && expectedHash.startsWith(MD5_PREFIX)) {
+            expectedHash = expectedHash.substring(MD5_PREFIX.length());
+        }
+        String deltaBase = expectedHash != null && target.exists() ? baseHash : null;
+
+        for (int attempt = 1;; attempt++) {
+            long before = partial.length();
+            try {
+                return attempt(url, target, validators, expectedHash, deltaBase, stats, partial,
+                    info);
+            } catch (DeltaException e) {
+                if (deltaBase == null) {
+                    // a delta we didn't ask for, so asking again won't help
+                    throw new IOException("Could not download " + url + ": " + e.getMessage());
+                }
+                Log.w(t, "Could not use delta for " + url + ", downloading it all: "
+                        + e.getMessage());
+                deltaBase = null;
+                attempt--;
+            } catch (IOException e) {
+                boolean progressed = partial.exists() && partial.length() > before;
+                if (attempt == MAX_ATTEMPTS || !progressed
+                        || Thread.currentThread().isInterrupted()) {
+                    throw e;
+                }
+                Log.w(t, "Download of " + url + " interrupted at " + partial.length()
+                        + " bytes, resuming: " + e);
+            }
+        }
+    }
+
+
+    private static Result attempt(String url, File target, String[] validators,
+            String expectedHash, String deltaBase, TransferStats stats, File partial, File info)
+            throws IOException {
+        long have = partial.exists() ? partial.length() : 0;
+        String ifRange = have > 0 ? readInfo(info) : null;
+        if (have > 0 && ifRange == null) {
+            // nothing to check the partial file against, so it can't be resumed
+            partial.delete();
+            have = 0;
+        }
+
+        // while resuming, our copy of target is older than the partial file so don't ask for a 304
+        URLConnection c = openConnection(url, have > 0 ? null : validators);
+        boolean askedForDelta = have == 0 && deltaBase != null;
+        if (askedForDelta) {
+            // name our copy by its hash, as well as by its ETag if we have one
+            String etags = "\"" + MD5_PREFIX + deltaBase + "\"";
+            if (validators != null && validators[0] != null) {
+                etags = validators[0] + ", " + etags;
+            }
+            c.setRequestProperty("A-IM", DeltaPatcher.DIFFE);
+            c.setRequestProperty("If-None-Match", etags);
+        }
+        if (have > 0) {
+            c.setRequestProperty("Range", "bytes=" + have + "-");
+            c.setRequestProperty("If-Range", ifRange);
+            // ranges of a gzipped response are ranges of the compressed bytes, which we don't keep
+            c.setRequestProperty("Accept-Encoding", "identity");
+        }
+
+        int code = getResponseCode(c);
+        if (code == HttpURLConnection.HTTP_NOT_MODIFIED) {
+            return new Result(true, null, null, null);
+        }
+        if (code == 416) {
+            // requested range not satisfiable, so the partial file is no good
+            discard(partial, info);
+            throw new IOException("Could not resume download of " + url);
+        }
+        if (code >= 400) {
+            // leave any partial file for the next attempt
+            throw new IOException("Download of " + url + " failed with " + code);
+        }
+
+        String etag = c.getHeaderField("ETag");
+        String lastModified = c.getHeaderField("Last-Modified");
+        String validator = etag != null && !etag.startsWith("W/") ? etag : lastModified;
+        if (code == HTTP_IM_USED) {
+            String im = c.getHeaderField("IM");
+            if (!askedForDelta || im == null || !DeltaPatcher.DIFFE.equalsIgnoreCase(im.trim())) {
+                throw new DeltaException("Unexpected delta " + im);
+            }
+            String hash = patch(c, target, stats, partial);
+            if (!expectedHash.equalsIgnoreCase(hash)) {
+                partial.delete();
+                throw new DeltaException("Patched " + target.getName()
+                        + " does not match the server's hash");
+            }
+            install(partial, target, info);
+            return new Result(false, hash, etag, lastModified);
+        }
+
+        MessageDigest md = newMd5();
+        boolean resumed =
+            have > 0 && code == HttpURLConnection.HTTP_PARTIAL
+                    && startsAt(c.getHeaderField("Content-Range"), have);
+        if (code == HttpURLConnection.HTTP_PARTIAL && !resumed) {
+            // a range we didn't ask for
+            discard(partial, info);
+            throw new IOException("Unexpected partial content for " + url);
+        }
+        if (resumed && validator != null && !validator.equals(ifRange)) {
+            // a server that ignored If-Range sent part of a newer file
+            discard(partial, info);
+            throw new IOException(url + " changed while resuming its download");
+        }
+        if (resumed) {
+            Log.i(t, "Resuming download of " + url + " at " + have + " bytes");
+            digestFile(partial, md);
+        } else {
+            // starting over. Remember what we're downloading so it can be resumed.
+            if (validator != null) {
+                writeInfo(info, validator);
+            } else {
+                info.delete();
+            }
+        }
+
+        long length = getContentLength(c);
+        InputStream is = getInputStream(c, stats);
+        OutputStream os = new DigestOutputStream(new FileOutputStream(partial, resumed), md);
+        try {
+            byte buf[] = new byte[BUFFER_SIZE];
+            long received = 0;
+            int len;
+            while ((len = is.read(buf)) > 0) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new IOException("Download of " + url + " cancelled");
+                }
+                os.write(buf, 0, len);
+                received += len;
+            }
+            // a dropped connection can look like the end of the body
+            if (length >= 0 && received < length) {
+                throw new IOException("Download of " + url + " ended after " + received + " of "
+                        + length + " bytes");
+            }
+        } catch (IOException e) {
+            if (!info.exists()) {
+                partial.delete();
+            }
+            throw e;
+        } finally {
+            os.close();
+            is.close();
+        }
+
+        String hash = FileUtils.getMd5String(md.digest());
+        if (expectedHash != null && !expectedHash.equalsIgnoreCase(hash)) {
+            discard(partial, info);
+            throw new IOException("Download of " + target.getName()
+                    + " does not match the server's hash");
+        }
+        install(partial, target, info);
+        return new Result(false, hash, etag, lastModified);
+    }
+
+
+    /**
+     * Applies the delta in the response to target, writing the result to partial.
+     * 
+     * @return md5 hash of the patched file
+     */
+    private static String patch(URLConnection c, File target, TransferStats stats, File partial)
+            throws IOException {
+        MessageDigest md = newMd5();
+        InputStream is = getInputStream(c, stats);
+        OutputStream os = new DigestOutputStream(new FileOutputStream(partial), md);
+        try {
+            DeltaPatcher.apply(target, is, os);
+        } catch (IOException e) {
+            partial.delete();
+            throw new DeltaException(e.getMessage());
+        } finally {
+            os.close();
+            is.close();
+        }
+        return FileUtils.getMd5String(md.digest());
+    }
+
+
+    private static void install(File partial, File target, File info) throws IOException {
+        if (!partial.renameTo(target)) {
+            throw new IOException("Failed to rename " + partial.getAbsolutePath());
+        }
+        info.delete();
+    }
+
+
+    private static MessageDigest newMd5() throws IOException {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+
+    /**
+     * A delta that couldn't be used, so the whole file should be downloaded instead.
+     */
+    private static class DeltaException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+
+        DeltaException(String message) {
+            super(message);
+        }
+    }
+
+
+    /**
+     * @return the length of the body as it will be read, or -1 if it isn't known
+     */
+    private static long getContentLength(URLConnection c) {
+        String length = c.getHeaderField("Content-Length");
+        if (length == null || "gzip".equalsIgnoreCase(c.getContentEncoding())) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(length.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+
+    private static boolean startsAt(String contentRange, long offset) {
+        // bytes <first>-<last>/<length>
+        return contentRange != null && contentRange.trim().startsWith("bytes " + offset + "-");
+    }
+
+
+    private static void digestFile(File f, MessageDigest md) throws IOException {
+        InputStream is = new FileInputStream(f);
+        try {
+            byte buf[] = new byte[BUFFER_SIZE];
+            int len;
+            while ((len = is.read(buf)) > 0) {
+                md.update(buf, 0, len);
+            }
+        } finally {
+            is.close();
+        }
+    }
+
+
+    private static String readInfo(File info) {
+        if (!info.exists()) {
+            return null;
+        }
+        try {
+            BufferedReader r = new BufferedReader(new FileReader(info));
+            try {
+                return r.readLine();
+            } finally {
+                r.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+
+    private static void writeInfo(File info, String validator) throws IOException {
+        FileWriter w = new FileWriter(info);
+        try {
+            w.write(validator);
+        } finally {
+            w.close();
+        }
+    }
+
+
+    /**
+     * Adds the number of bytes read to a counter.
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        private final AtomicLong mCount;
+
+
+        CountingInputStream(InputStream in, AtomicLong count) {
+            super(in);
+            mCount = count;
+        }
+
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                mCount.incrementAndGet();
+            }
+            return b;
+        }
+
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                mCount.addAndGet(n);
+            }
+            return n;
+        }
+    }
+
+
+    private static void discard(File partial, File info) {
+        partial.delete();
+        info.delete();
+    }
+}
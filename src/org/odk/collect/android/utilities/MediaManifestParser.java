@@ -0,0 +1,119 @@
+/**
+ * Copyright (C) 2012 Grameen Foundation
+Licensed under the Apache License, Version 2.0 (the "License"); you may not
+use this file except in compliance with the License. You may obtain a copy of
+the License at http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations under
+the License.
+ */
+
+package org.odk.collect.android.utilities;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import android.util.Log;
+import android.util.Xml;
+
+/**
+ * Parser for the media manifest of a form, which lists the files that belong in the form's media
+ * folder.
+ * 
+ * <pre>
+ * &lt;manifest&gt;
+ *   &lt;mediaFile&gt;
+ *     &lt;filename&gt;logo.png&lt;/filename&gt;
+ *     &lt;size&gt;1234&lt;/size&gt;
+ *     &lt;hash&gt;md5:...&lt;/hash&gt;
+ *     &lt;downloadUrl&gt;http://...&lt;/downloadUrl&gt;
+ *   &lt;/mediaFile&gt;
+ * &lt;/manifest&gt;
+ * </pre>
+ */
+public class MediaManifestParser {
+    private static final String t = "MediaManifestParser";
+
+    private static final String MEDIA_FILE = "mediaFile";
+    private static final String FILENAME = "filename";
+    private static final String SIZE = "size";
+    private static final String HASH = "hash";
+    private static final String DOWNLOAD_URL = "downloadUrl";
+
+
+    /**
+     * A file listed in the manifest.
+     */
+    public static class MediaFile {
+        public String filename;
+        // -1 if the server didn't send one
+        public long size = -1;
+        public String hash;
+        public String downloadUrl;
+    }
+
+
+    /**
+     * Reads the manifest from the stream. Entries without a file name or url, or whose file name
+     * would escape the media folder, are skipped. The stream is not closed.
+     */
+    public static ArrayList<MediaFile> parse(InputStream is) throws XmlPullParserException,
+            IOException {
+        XmlPullParser parser = Xml.newPullParser();
+        parser.setInput(is, null);
+        return parse(parser);
+    }
+
+
+    /**
+     * Reads the manifest from a parser whose input has been set.
+     */
+    static ArrayList<MediaFile> parse(XmlPullParser parser) throws XmlPullParserException,
+            IOException {
+        ArrayList<MediaFile> files = new ArrayList<MediaFile>();
+        MediaFile file = null;
+        int event = parser.getEventType();
+        while (event != XmlPullParser.END_DOCUMENT) {
+            if (event == XmlPullParser.START_TAG) {
+                String tag = parser.getName();
+                if (MEDIA_FILE.equals(tag)) {
+                    file = new MediaFile();
+                } else if (file != null && FILENAME.equals(tag)) {
+                    file.filename = parser.nextText().trim();
+                } else if (file != null && SIZE.equals(tag)) {
+                    try {
+                        file.size = Long.parseLong(parser.nextText().trim());
+                    } catch (NumberFormatException e) {
+                        file.size = -1;
+                    }
+                } else if (file != null && HASH.equals(tag)) {
+                    file.hash = parser.nextText().trim();
+                } else if (file != null && DOWNLOAD_URL.equals(tag)) {
+                    file.downloadUrl = parser.nextText().trim();
+                }
+            } else if (event == XmlPullParser.END_TAG && MEDIA_FILE.equals(parser.getName())) {
+                if (isValid(file)) {
+                    files.add(file);
+                } else {
+                    Log.w(t, "Skipping media file " + file.filename);
+                }
+                file = null;
+            }
+            event = parser.next();
+        }
+        return files;
+    }
+
+
+    private static boolean isValid(MediaFile file) {
+        return file != null && file.filename != null && file.filename.length() > 0
+                && file.downloadUrl != null && file.downloadUrl.length() > 0
+                && file.filename.indexOf('/') == -1 && !file.filename.startsWith(".");
+    }
+}
@@ -5,16 +5,14 @@
 package org.odk.collect.android.views;
 
 import java.io.File;
-import java.io.IOException;
 
 import org.javarosa.core.reference.InvalidReferenceException;
-import org.javarosa.core.reference.ReferenceManager;
+import org.odk.collect.android.logic.AudioPlayback;
+import org.odk.collect.android.logic.ReferenceCache;
 
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.media.MediaPlayer;
-import android.media.MediaPlayer.OnCompletionListener;
 import android.util.Log;
 import android.view.View;
 import android.view.View.OnClickListener;
@@ -26,10 +24,10 @@ import applab.client.surveys.R;
  * @author ctsims
  * @author carlhartung
  */
-public class AudioButton extends ImageButton implements OnClickListener {
+public class AudioButton extends ImageButton implements OnClickListener,
+        AudioPlayback.PlaybackListener {
     private final static String t = "AudioButton";
     private String URI;
-    private MediaPlayer player;
 
 
     public AudioButton(Context context, String URI) {
@@ -40,7 +38,33 @@ public class AudioButton extends ImageButton implements OnClickListener {
             BitmapFactory.decodeResource(context.getResources(),
                 android.R.drawable.ic_lock_silent_mode_off);
         this.setImageBitmap(b);
-        player = null;
+    }
+
+
+    /**
+     * Starts preparing the audio in the background, so a tap plays it at once.
+     */
+    public void prepare() {
+        String path = getPath();
+        if (path != null) {
+            AudioPlayback.getInstance().prepare(path);
+        }
+    }
+
+
+    /**
+     * @return the audio file, or null if there isn't one
+     */
+    private String getPath() {
+        if (URI == null) {
+            return null;
+        }
+        try {
+            ReferenceCache.Resolved audio = ReferenceCache.getInstance().resolve(URI);
+            return audio.exists() ? audio.getPath() : null;
+        } catch (InvalidReferenceException e) {
+            return null;
+        }
     }
 
 
@@ -55,15 +79,18 @@ public class AudioButton extends ImageButton implements OnClickListener {
         }
 
         String audioFilename = "";
+        boolean exists = false;
         try {
-            audioFilename = ReferenceManager._().DeriveReference(URI).getLocalURI();
+            ReferenceCache.Resolved audio = ReferenceCache.getInstance().resolve(URI);
+            audioFilename = audio.getPath();
+            exists = audio.exists();
         } catch (InvalidReferenceException e) {
             Log.e(t, "Invalid reference exception");
             e.printStackTrace();
         }
 
         File audioFile = new File(audioFilename);
-        if (!audioFile.exists()) {
+        if (!exists) {
             // We should have an audio clip, but the file doesn't exist.
             String errorMsg = getContext().getString(R.string.file_missing, audioFile);
             Log.e(t, errorMsg);
@@ -71,34 +98,23 @@ public class AudioButton extends ImageButton implements OnClickListener {
             return;
         }
 
-        // In case we're currently playing sounds.
-        stopPlaying();
+        // stops anything else that is playing
+        AudioPlayback.getInstance().play(audioFilename, this);
+    }
 
-        player = new MediaPlayer();
-        try {
-            player.setDataSource(audioFilename);
-            player.prepare();
-            player.start();
-            player.setOnCompletionListener(new OnCompletionListener() {
-                @Override
-                public void onCompletion(MediaPlayer mediaPlayer) {
-                    mediaPlayer.release();
-                }
-
-            });
-        } catch (IOException e) {
-            String errorMsg = getContext().getString(R.string.audio_file_invalid);
-            Log.e(t, errorMsg);
-            Toast.makeText(getContext(), errorMsg, Toast.LENGTH_LONG).show();
-            e.printStackTrace();
-        }
 
+    @Override
+    public void playbackFailed(String path) {
+        String errorMsg = getContext().getString(R.string.audio_file_invalid);
+        Log.e(t, errorMsg);
+        Toast.makeText(getContext(), errorMsg, Toast.LENGTH_LONG).show();
     }
 
 
     public void stopPlaying() {
-        if (player != null) {
-            player.release();
+        String path = getPath();
+        if (path != null) {
+            AudioPlayback.getInstance().stop(path);
         }
     }
 }
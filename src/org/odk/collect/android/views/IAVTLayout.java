@@ -4,8 +4,9 @@ package org.odk.collect.android.views;
 import java.io.File;
 
 import org.javarosa.core.reference.InvalidReferenceException;
-import org.javarosa.core.reference.ReferenceManager;
-import org.odk.collect.android.utilities.FileUtils;
+import org.odk.collect.android.logic.ReferenceCache;
+import org.odk.collect.android.utilities.BitmapCache;
+import org.odk.collect.android.utilities.BitmapCache.BitmapListener;
 
 import android.app.Activity;
 import android.content.Context;
@@ -15,6 +16,7 @@ import android.net.Uri;
 import android.util.Log;
 import android.view.Display;
 import android.view.View;
+import android.view.ViewGroup;
 import android.view.WindowManager;
 import android.widget.ImageButton;
 import android.widget.ImageView;
@@ -82,16 +84,19 @@ public class IAVTLayout extends RelativeLayout {
                 @Override
                 public void onClick(View v) {
                     String videoFilename = "";
+                    boolean exists = false;
                     try {
-                        videoFilename =
-                            ReferenceManager._().DeriveReference(videoURI).getLocalURI();
+                        ReferenceCache.Resolved video =
+                            ReferenceCache.getInstance().resolve(videoURI);
+                        videoFilename = video.getPath();
+                        exists = video.exists();
                     } catch (InvalidReferenceException e) {
                         Log.e(t, "Invalid reference exception");
                         e.printStackTrace();
                     }
 
                     File videoFile = new File(videoFilename);
-                    if (!videoFile.exists()) {
+                    if (!exists) {
                         // We should have a video clip, but the file doesn't exist.
                         String errorMsg =
                             getContext().getString(R.string.file_missing, videoFilename);
@@ -139,62 +144,70 @@ public class IAVTLayout extends RelativeLayout {
         String errorMsg = null;
         if (imageURI != null) {
             try {
-                String imageFilename = ReferenceManager._().DeriveReference(imageURI).getLocalURI();
-                final File imageFile = new File(imageFilename);
-                if (imageFile.exists()) {
-                    Bitmap b = null;
-                    try {
-                        Display display = ((WindowManager) getContext().getSystemService(Context.WINDOW_SERVICE)).getDefaultDisplay(); 
-                        int screenWidth = display.getWidth();
-                        int screenHeight = display.getHeight();
-                        b = FileUtils.getBitmapScaledToDisplay(imageFile, screenHeight, screenWidth);
-                    } catch (OutOfMemoryError e) {
-                        errorMsg = "ERROR: " + e.getMessage();
-                    }
+                ReferenceCache.Resolved image = ReferenceCache.getInstance().resolve(imageURI);
+                final File imageFile = image.getFile();
+                if (image.exists()) {
+                    Display display = ((WindowManager) getContext().getSystemService(Context.WINDOW_SERVICE)).getDefaultDisplay(); 
+                    int screenWidth = display.getWidth();
+                    int screenHeight = display.getHeight();
+
+                    mImageView = new ImageView(getContext());
+                    mImageView.setPadding(10, 10, 10, 10);
+                    mImageView.setAdjustViewBounds(true);
+                    mImageView.setId(23423534);
 
+                    // decoded in the background unless it's been shown before
+                    BitmapCache cache = BitmapCache.getInstance();
+                    Bitmap b = cache.get(imageFile, screenWidth, screenHeight);
                     if (b != null) {
-                        mImageView = new ImageView(getContext());
-                        mImageView.setPadding(10, 10, 10, 10);
-                        mImageView.setAdjustViewBounds(true);
                         mImageView.setImageBitmap(b);
-                        mImageView.setId(23423534);
-                        imageParams.addRule(RelativeLayout.BELOW, text.getId());
-                        if (mAudioButton != null) {
-                            if (textVisible) {
-                                imageParams.addRule(RelativeLayout.BELOW, mAudioButton.getId());
-                            } else {
-                                imageParams.addRule(RelativeLayout.LEFT_OF, mAudioButton.getId());
-                            }
-                        }
-                        if (mVideoButton != null) {
-                            if (textVisible) {
-                                imageParams.addRule(RelativeLayout.BELOW, mVideoButton.getId());
-                            } else {
-                                imageParams.addRule(RelativeLayout.LEFT_OF, mAudioButton.getId());
+                    } else {
+                        mImageView.setImageResource(android.R.drawable.ic_menu_gallery);
+                        final ImageView imageView = mImageView;
+                        cache.load(imageFile, screenWidth, screenHeight, new BitmapListener() {
+                            @Override
+                            public void bitmapLoaded(File f, Bitmap bitmap) {
+                                if (bitmap != null) {
+                                    imageView.setImageBitmap(bitmap);
+                                } else {
+                                    // it's likely a bad file
+                                    showImageError(imageView, getContext().getString(
+                                        R.string.file_invalid, f));
+                                }
                             }
+                        });
+                    }
+
+                    imageParams.addRule(RelativeLayout.BELOW, text.getId());
+                    if (mAudioButton != null) {
+                        if (textVisible) {
+                            imageParams.addRule(RelativeLayout.BELOW, mAudioButton.getId());
+                        } else {
+                            imageParams.addRule(RelativeLayout.LEFT_OF, mAudioButton.getId());
                         }
-                        if (bigImageURI != null) {
-                            mImageView.setOnClickListener(new OnClickListener() {
-                                String bigImageFilename = ReferenceManager._()
-                                        .DeriveReference(bigImageURI).getLocalURI();
-                                File bigImage = new File(bigImageFilename);
-
-
-                                @Override
-                                public void onClick(View v) {
-                                    Intent i = new Intent("android.intent.action.VIEW");
-                                    i.setDataAndType(Uri.fromFile(bigImage), "image/*");
-                                    getContext().startActivity(i);
-                                }
-                            });
+                    }
+                    if (mVideoButton != null) {
+                        if (textVisible) {
+                            imageParams.addRule(RelativeLayout.BELOW, mVideoButton.getId());
+                        } else {
+                            imageParams.addRule(RelativeLayout.LEFT_OF, mAudioButton.getId());
                         }
-                        addView(mImageView, imageParams);
-                    } else if (errorMsg == null) {
-                        // An error hasn't been logged and loading the image failed, so it's likely
-                        // a bad file.
-                        errorMsg = getContext().getString(R.string.file_invalid, imageFile);
+                    }
+                    if (bigImageURI != null) {
+                        mImageView.setOnClickListener(new OnClickListener() {
+                            File bigImage =
+                                ReferenceCache.getInstance().resolve(bigImageURI).getFile();
+
 
+                            @Override
+                            public void onClick(View v) {
+                                Intent i = new Intent("android.intent.action.VIEW");
+                                i.setDataAndType(Uri.fromFile(bigImage), "image/*");
+                                getContext().startActivity(i);
+                            }
+                        });
                     }
+                    addView(mImageView, imageParams);
                 } else if (errorMsg == null) {
                     // An error hasn't been logged. We should have an image, but the file doesn't
                     // exist.
@@ -225,6 +238,52 @@ public class IAVTLayout extends RelativeLayout {
     }
 
 
+    /**
+     * Takes everything out of the layout, so setAVT() can be called again for another prompt.
+     */
+    public void reset() {
+        removeAllViews();
+        mView_Text = null;
+        mAudioButton = null;
+        mImageView = null;
+        mMissingImage = null;
+        mVideoButton = null;
+    }
+
+
+    /**
+     * Starts preparing the audio, if there is any, so it plays as soon as it is tapped.
+     */
+    public void prepareAudio() {
+        if (mAudioButton != null) {
+            mAudioButton.prepare();
+        }
+    }
+
+
+    /**
+     * Puts an error message where an image is, for an image that failed to decode in the
+     * background. The message takes the image's place and id, so the divider stays below it.
+     */
+    private void showImageError(ImageView imageView, String errorMsg) {
+        if (imageView.getParent() != this) {
+            // the layout has been cleared since
+            return;
+        }
+        Log.e(t, errorMsg);
+        mMissingImage = new TextView(getContext());
+        mMissingImage.setText(errorMsg);
+        mMissingImage.setPadding(10, 10, 10, 10);
+        mMissingImage.setId(imageView.getId());
+        ViewGroup.LayoutParams params = imageView.getLayoutParams();
+        removeView(imageView);
+        if (mImageView == imageView) {
+            mImageView = null;
+        }
+        addView(mMissingImage, params);
+    }
+
+
     /**
      * This adds a divider at the bottom of this layout. Used to separate fields in lists.
      * 
@@ -20,6 +20,7 @@ import org.javarosa.form.api.FormEntryPrompt;
 import org.odk.collect.android.widgets.IBinaryWidget;
 import org.odk.collect.android.widgets.IQuestionWidget;
 import org.odk.collect.android.widgets.WidgetFactory;
+import org.odk.collect.android.widgets.WidgetPool;
 
 import android.content.Context;
 import android.graphics.Typeface;
@@ -47,6 +48,9 @@ public class QuestionView extends ScrollView {
     private LinearLayout mView;
     private LinearLayout.LayoutParams mLayout;
     private String mInstancePath;
+    private WidgetPool mWidgetPool;
+    private int mControlType;
+    private int mDataType;
     private final static int TEXTSIZE = 21;
 
     public final static int APPLICATION_FONTSIZE = 23;
@@ -59,10 +63,20 @@ public class QuestionView extends ScrollView {
     }
 
 
+    /**
+     * @param widgetPool where to get the widget from and give it back to, or null
+     */
+    public QuestionView(Context context, String instancePath, WidgetPool widgetPool) {
+        this(context, instancePath);
+
+        this.mWidgetPool = widgetPool;
+    }
+
+
     /**
      * Create the appropriate view given your prompt.
      */
-    public void buildView(FormEntryPrompt p, FormEntryCaption[] groups) {
+    public void buildView(FormEntryPrompt p, String groupText) {
         mView = new LinearLayout(getContext());
         mView.setOrientation(LinearLayout.VERTICAL);
         mView.setGravity(Gravity.TOP);
@@ -74,18 +88,32 @@ public class QuestionView extends ScrollView {
         mLayout.setMargins(10, 0, 10, 0);
 
         // display which group you are in as well as the question
-        AddGroupText(groups);
+        AddGroupText(groupText);
         AddQuestionText(p);
         AddHelpText(p);
 
         // if question or answer type is not supported, use text widget
-        mQuestionWidget = WidgetFactory.createWidgetFromPrompt(p, getContext(), mInstancePath);
+        mControlType = p.getControlType();
+        mDataType = p.getDataType();
+        mQuestionWidget =
+            WidgetFactory.createWidgetFromPrompt(p, getContext(), mInstancePath, mWidgetPool);
         mView.addView((View) mQuestionWidget, mLayout);
 
         addView(mView);
     }
 
 
+    /**
+     * Gives the widget back to the pool. Call this only once the view is off screen for good.
+     */
+    public void recycle() {
+        if (mWidgetPool != null && mQuestionWidget != null) {
+            mWidgetPool.recycle(mQuestionWidget, mControlType, mDataType);
+            mQuestionWidget = null;
+        }
+    }
+
+
     public IAnswerData getAnswer() {
         return mQuestionWidget.getAnswer();
     }
@@ -106,29 +134,14 @@ public class QuestionView extends ScrollView {
 
     /**
      * Add a TextView containing the hierarchy of groups to which the question belongs.
+     *
+     * @param s the groups in one string, e.g. "Household (2) > Member"
      */
-    private void AddGroupText(FormEntryCaption[] groups) {
-        StringBuffer s = new StringBuffer("");
-        String t = "";
-        int i;
-
-        // list all groups in one string
-        for (FormEntryCaption g : groups) {
-            i = g.getMultiplicity() + 1;
-            t = g.getLongText();
-            if (t != null) {
-                s.append(t);
-                if (g.repeats() && i > 0) {
-                    s.append(" (" + i + ")");
-                }
-                s.append(" > ");
-            }
-        }
-
+    private void AddGroupText(String s) {
         // build view
-        if (s.length() > 0) {
+        if (s != null && s.length() > 0) {
             TextView tv = new TextView(getContext());
-            tv.setText(s.substring(0, s.length() - 3));
+            tv.setText(s);
             tv.setTextSize(TypedValue.COMPLEX_UNIT_DIP, TEXTSIZE - 7);
             tv.setPadding(0, 0, 0, 5);
             mView.addView(tv, mLayout);
@@ -167,6 +180,8 @@ public class QuestionView extends ScrollView {
         // Create the layout for audio, image, text
         IAVTLayout mediaLayout = new IAVTLayout(getContext());
         mediaLayout.setAVT(questionText, audioURI, imageURI, videoURI, bigImageURI);
+        // the prompt is prepared now, as this view is also built ahead of being shown
+        mediaLayout.prepareAudio();
 
         mView.addView(mediaLayout, mLayout);
     }
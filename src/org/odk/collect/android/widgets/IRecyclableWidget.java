@@ -0,0 +1,24 @@
+/**
+ * Copyright (C) 2012 Grameen Foundation
+Licensed under the Apache License, Version 2.0 (the "License"); you may not
+use this file except in compliance with the License. You may obtain a copy of
+the License at http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations under
+the License.
+ */
+
+package org.odk.collect.android.widgets;
+
+/**
+ * Interface implemented by widgets that can be built again for another prompt, so a
+ * {@link WidgetPool} can hand them out instead of new widgets.
+ */
+public interface IRecyclableWidget extends IQuestionWidget {
+    /**
+     * Puts the widget back the way it was before buildView() was called.
+     */
+    public void reset();
+}
@@ -20,6 +20,8 @@ import org.javarosa.core.model.data.IAnswerData;
 import org.javarosa.core.model.data.StringData;
 import org.javarosa.form.api.FormEntryPrompt;
 import org.odk.collect.android.activities.FormEntryActivity;
+import org.odk.collect.android.utilities.BitmapCache;
+import org.odk.collect.android.utilities.BitmapCache.BitmapListener;
 import org.odk.collect.android.utilities.FileUtils;
 import org.odk.collect.android.views.QuestionView;
 
@@ -52,6 +54,9 @@ public class ImageWidget extends LinearLayout implements IQuestionWidget, IBinar
 
     private final static String t = "MediaWidget";
 
+    /** photos are shown at the display size divided by this */
+    public static final int THUMBNAIL_SCALE = 2;
+
     private Button mCaptureButton;
     private ImageView mImageView;
 
@@ -188,12 +193,31 @@ public class ImageWidget extends LinearLayout implements IQuestionWidget, IBinar
             Display display =
                 ((WindowManager) getContext().getSystemService(Context.WINDOW_SERVICE))
                         .getDefaultDisplay();
-            int screenWidth = display.getWidth();
-            int screenHeight = display.getHeight();
+            int thumbnailWidth = display.getWidth() / THUMBNAIL_SCALE;
+            int thumbnailHeight = display.getHeight() / THUMBNAIL_SCALE;
 
+            // the thumbnail is usually made as the photo is saved, otherwise it's decoded in the
+            // background
             File f = new File(mInstanceFolder + "/" + mBinaryName);
-            Bitmap bmp = FileUtils.getBitmapScaledToDisplay(f, screenHeight, screenWidth);
-            mImageView.setImageBitmap(bmp);
+            BitmapCache cache = BitmapCache.getInstance();
+            Bitmap bmp = cache.get(f, thumbnailWidth, thumbnailHeight);
+            if (bmp != null) {
+                mImageView.setImageBitmap(bmp);
+            } else {
+                mImageView.setImageResource(android.R.drawable.ic_menu_gallery);
+                if (f.exists()) {
+                    final ImageView imageView = mImageView;
+                    cache.load(f, thumbnailWidth, thumbnailHeight, new BitmapListener() {
+                        @Override
+                        public void bitmapLoaded(File photo, Bitmap b) {
+                            if (b != null) {
+                                imageView.setImageBitmap(b);
+                            }
+                        }
+                    });
+                }
+                // else it's still being saved, and the view is rebuilt once it is
+            }
             mImageView.setPadding(10, 10, 10, 10);
             mImageView.setAdjustViewBounds(true);
             mImageView.setOnClickListener(new View.OnClickListener() {
@@ -240,8 +264,13 @@ public class ImageWidget extends LinearLayout implements IQuestionWidget, IBinar
         if (mBinaryName != null) {
             deleteMedia();
         }
-        String binarypath = getPathFromUri((Uri) binaryuri);
-        File f = new File(binarypath);
+        File f;
+        if (binaryuri instanceof File) {
+            // a photo that is still being saved
+            f = (File) binaryuri;
+        } else {
+            f = new File(getPathFromUri((Uri) binaryuri));
+        }
         mBinaryName = f.getName();
         Log.i(t, "Setting current answer to " + f.getName());
     }
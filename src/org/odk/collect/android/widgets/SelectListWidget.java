@@ -0,0 +1,357 @@
+/**
+ * Copyright (C) 2012 Grameen Foundation
+Licensed under the Apache License, Version 2.0 (the "License"); you may not
+use this file except in compliance with the License. You may obtain a copy of
+the License at http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations under
+the License.
+ */
+
+package org.odk.collect.android.widgets;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Locale;
+import java.util.Vector;
+
+import org.javarosa.core.model.Constants;
+import org.javarosa.core.model.SelectChoice;
+import org.javarosa.core.model.data.IAnswerData;
+import org.javarosa.core.model.data.SelectMultiData;
+import org.javarosa.core.model.data.SelectOneData;
+import org.javarosa.core.model.data.helper.Selection;
+import org.javarosa.form.api.FormEntryPrompt;
+import org.odk.collect.android.views.QuestionView;
+
+import android.content.Context;
+import android.text.Editable;
+import android.text.TextWatcher;
+import android.util.TypedValue;
+import android.view.LayoutInflater;
+import android.view.MotionEvent;
+import android.view.View;
+import android.view.ViewGroup;
+import android.view.inputmethod.InputMethodManager;
+import android.widget.AdapterView;
+import android.widget.BaseAdapter;
+import android.widget.CheckedTextView;
+import android.widget.EditText;
+import android.widget.LinearLayout;
+import android.widget.ListView;
+import android.view.View.OnTouchListener;
+import android.widget.AdapterView.OnItemClickListener;
+import applab.client.surveys.R;
+
+/**
+ * Handles select-one and select-multi fields with too many choices for {@link SelectOneWidget} and
+ * {@link SelectMultiWidget}, such as lists of villages. The choices are shown in a ListView, which
+ * only makes the rows on screen and reuses them as it scrolls, under a box that narrows the list
+ * to the choices matching what is typed.
+ * <p>
+ * Only the text of each choice is shown, so selects with images, audio or video for their choices
+ * keep the one view per choice widgets.
+ *
+ * @see WidgetFactory#isLargeSelect(FormEntryPrompt)
+ */
+public class SelectListWidget extends LinearLayout implements IQuestionWidget {
+
+    // the list's share of the screen height, so the question above it stays in view
+    private static final float LIST_HEIGHT = 0.6f;
+
+    private boolean mMulti;
+    private boolean mReadOnly;
+    private Vector<SelectChoice> mItems;
+    private String[] mLabels;
+    private ChoiceFilter mFilter;
+
+    // selected choices, by position in mItems
+    private BitSet mSelected = new BitSet();
+    // the choices shown, by position in mItems
+    private int[] mShown;
+
+    private ListView mList;
+    private ChoiceAdapter mAdapter;
+
+
+    public SelectListWidget(Context context) {
+        super(context);
+    }
+
+
+    @Override
+    public void clearAnswer() {
+        mSelected.clear();
+        mAdapter.notifyDataSetChanged();
+    }
+
+
+    @Override
+    public IAnswerData getAnswer() {
+        if (mSelected.isEmpty()) {
+            return null;
+        }
+        if (!mMulti) {
+            return new SelectOneData(new Selection(mItems.get(mSelected.nextSetBit(0))));
+        }
+        Vector<Selection> vc = new Vector<Selection>();
+        for (int i = mSelected.nextSetBit(0); i >= 0; i = mSelected.nextSetBit(i + 1)) {
+            vc.add(new Selection(mItems.get(i)));
+        }
+        return new SelectMultiData(vc);
+    }
+
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public void buildView(final FormEntryPrompt prompt) {
+        mMulti = prompt.getControlType() == Constants.CONTROL_SELECT_MULTI;
+        mReadOnly = prompt.isReadOnly();
+        mItems = prompt.getSelectChoices();
+        if (mItems == null) {
+            mItems = new Vector<SelectChoice>();
+        }
+
+        mLabels = new String[mItems.size()];
+        for (int i = 0; i < mItems.size(); i++) {
+            mLabels[i] = prompt.getSelectChoiceText(mItems.get(i));
+        }
+        mFilter = new ChoiceFilter(mLabels);
+        mShown = mFilter.filter("");
+
+        // match based on value, not key
+        if (prompt.getAnswerValue() != null) {
+            Vector<Selection> ve;
+            if (mMulti) {
+                ve = (Vector<Selection>) prompt.getAnswerValue().getValue();
+            } else {
+                ve = new Vector<Selection>();
+                ve.add((Selection) prompt.getAnswerValue().getValue());
+            }
+            for (int i = 0; i < mItems.size(); i++) {
+                for (Selection s : ve) {
+                    if (mItems.get(i).getValue().equals(s.getValue())) {
+                        mSelected.set(i);
+                        break;
+                    }
+                }
+            }
+        }
+
+        setOrientation(LinearLayout.VERTICAL);
+
+        EditText filter = new EditText(getContext());
+        filter.setSingleLine(true);
+        filter.setHint(R.string.filter_choices);
+        filter.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void afterTextChanged(Editable s) {
+                mShown = mFilter.filter(s.toString());
+                mAdapter.notifyDataSetChanged();
+            }
+
+
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+        });
+        addView(filter, new LinearLayout.LayoutParams(LinearLayout.LayoutParams.FILL_PARENT,
+                LinearLayout.LayoutParams.WRAP_CONTENT));
+
+        // QuestionView scrolls, so the list needs a height of its own to only make visible rows
+        int height =
+            (int) (getResources().getDisplayMetrics().heightPixels * LIST_HEIGHT);
+        mAdapter = new ChoiceAdapter();
+        mList = new ListView(getContext());
+        mList.setAdapter(mAdapter);
+        mList.setEnabled(!mReadOnly);
+        mList.setFocusable(!mReadOnly);
+        mList.setOnItemClickListener(new OnItemClickListener() {
+            @Override
+            public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
+                if (mReadOnly) {
+                    return;
+                }
+                int choice = mShown[position];
+                if (mMulti) {
+                    mSelected.flip(choice);
+                } else {
+                    mSelected.clear();
+                    mSelected.set(choice);
+                }
+                mAdapter.notifyDataSetChanged();
+            }
+        });
+        mList.setOnTouchListener(new OnTouchListener() {
+            @Override
+            public boolean onTouch(View v, MotionEvent event) {
+                // QuestionView would otherwise take the drag and scroll the page, not the list
+                int action = event.getAction();
+                v.getParent().requestDisallowInterceptTouchEvent(
+                    action != MotionEvent.ACTION_UP && action != MotionEvent.ACTION_CANCEL);
+                return false;
+            }
+        });
+        addView(mList, new LinearLayout.LayoutParams(LinearLayout.LayoutParams.FILL_PARENT,
+                height));
+
+        if (!mMulti && !mSelected.isEmpty()) {
+            mList.setSelection(mSelected.nextSetBit(0));
+        }
+    }
+
+
+    @Override
+    public void setFocus(Context context) {
+        // Hide the soft keyboard if it's showing.
+        InputMethodManager inputManager =
+            (InputMethodManager) context.getSystemService(Context.INPUT_METHOD_SERVICE);
+        inputManager.hideSoftInputFromWindow(this.getWindowToken(), 0);
+    }
+
+
+    /**
+     * The rows for the choices being shown, made only as they scroll into view.
+     */
+    private class ChoiceAdapter extends BaseAdapter {
+
+        @Override
+        public int getCount() {
+            return mShown.length;
+        }
+
+
+        @Override
+        public Object getItem(int position) {
+            return mItems.get(mShown[position]);
+        }
+
+
+        @Override
+        public long getItemId(int position) {
+            return mShown[position];
+        }
+
+
+        @Override
+        public View getView(int position, View convertView, ViewGroup parent) {
+            CheckedTextView row = (CheckedTextView) convertView;
+            if (row == null) {
+                int layout =
+                    mMulti ? android.R.layout.simple_list_item_multiple_choice
+                            : android.R.layout.simple_list_item_single_choice;
+                row =
+                    (CheckedTextView) LayoutInflater.from(getContext()).inflate(layout, parent,
+                        false);
+                row.setTextSize(TypedValue.COMPLEX_UNIT_DIP, QuestionView.APPLICATION_FONTSIZE);
+            }
+            int choice = mShown[position];
+            row.setText(mLabels[choice]);
+            row.setChecked(mSelected.get(choice));
+            return row;
+        }
+    }
+
+
+    /**
+     * Finds the choices matching typed text. Choices with a word starting with the text come
+     * first, found by binary search over the sorted words of every label, then those containing
+     * it anywhere else, each in form order.
+     */
+    static class ChoiceFilter {
+
+        private String[] mLabels;
+        // every word of every label, sorted, and the choice each came from
+        private String[] mWords;
+        private int[] mChoices;
+
+
+        ChoiceFilter(String[] labels) {
+            mLabels = new String[labels.length];
+            Vector<String> words = new Vector<String>();
+            for (int i = 0; i < labels.length; i++) {
+                mLabels[i] = labels[i] == null ? "" : labels[i].toLowerCase(Locale.getDefault());
+                for (String word : mLabels[i].split("[^\\p{L}\\p{N}]+")) {
+                    if (word.length() > 0) {
+                        // the choice goes after the word so sorting keeps them together
+                        words.add(word + '\0' + i);
+                    }
+                }
+            }
+
+            String[] sorted = words.toArray(new String[words.size()]);
+            Arrays.sort(sorted);
+            mWords = new String[sorted.length];
+            mChoices = new int[sorted.length];
+            for (int i = 0; i < sorted.length; i++) {
+                int split = sorted[i].indexOf('\0');
+                mWords[i] = sorted[i].substring(0, split);
+                mChoices[i] = Integer.parseInt(sorted[i].substring(split + 1));
+            }
+        }
+
+
+        /**
+         * @return the positions of the matching choices, or of every choice if the text is empty
+         */
+        int[] filter(String text) {
+            String query = text.trim().toLowerCase(Locale.getDefault());
+            if (query.length() == 0) {
+                int[] all = new int[mLabels.length];
+                for (int i = 0; i < all.length; i++) {
+                    all[i] = i;
+                }
+                return all;
+            }
+
+            BitSet prefix = new BitSet(mLabels.length);
+            int i = lowerBound(query);
+            while (i < mWords.length && mWords[i].startsWith(query)) {
+                prefix.set(mChoices[i]);
+                i++;
+            }
+            // a query of more than one word won't be a word prefix, but may be in the label
+            BitSet substring = new BitSet(mLabels.length);
+            for (int c = 0; c < mLabels.length; c++) {
+                if (!prefix.get(c) && mLabels[c].contains(query)) {
+                    substring.set(c);
+                }
+            }
+
+            int[] matches = new int[prefix.cardinality() + substring.cardinality()];
+            int n = 0;
+            for (int c = prefix.nextSetBit(0); c >= 0; c = prefix.nextSetBit(c + 1)) {
+                matches[n++] = c;
+            }
+            for (int c = substring.nextSetBit(0); c >= 0; c = substring.nextSetBit(c + 1)) {
+                matches[n++] = c;
+            }
+            return matches;
+        }
+
+
+        /**
+         * @return the first position in mWords not before the query
+         */
+        private int lowerBound(String query) {
+            int low = 0;
+            int high = mWords.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (mWords[mid].compareTo(query) < 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+}
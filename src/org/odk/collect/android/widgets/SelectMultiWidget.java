@@ -39,11 +39,32 @@ import android.widget.LinearLayout;
  * @author Carl Hartung (carlhartung@gmail.com)
  * @author Yaw Anokwa (yanokwa@gmail.com)
  */
-public class SelectMultiWidget extends LinearLayout implements IQuestionWidget {
+public class SelectMultiWidget extends LinearLayout implements IRecyclableWidget {
     private final static int CHECKBOX_ID = 100;
     private boolean mCheckboxInit = true;
+    private boolean mReadOnly;
     Vector<SelectChoice> mItems;
 
+    // per-choice views, kept when the widget is recycled and bound to the next prompt's choices
+    private final Vector<CheckBox> mCheckBoxPool = new Vector<CheckBox>();
+    private final Vector<IAVTLayout> mLayoutPool = new Vector<IAVTLayout>();
+    private final Vector<ImageView> mDividerPool = new Vector<ImageView>();
+
+    // when clicked, check for readonly before toggling
+    private final CompoundButton.OnCheckedChangeListener mReadOnlyListener =
+        new CompoundButton.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                if (!mCheckboxInit && mReadOnly) {
+                    if (buttonView.isChecked()) {
+                        buttonView.setChecked(false);
+                    } else {
+                        buttonView.setChecked(true);
+                    }
+                }
+            }
+        };
+
 
     public SelectMultiWidget(Context context) {
         super(context);
@@ -64,6 +85,17 @@ public class SelectMultiWidget extends LinearLayout implements IQuestionWidget {
     }
 
 
+    @Override
+    public void reset() {
+        removeAllViews();
+        for (IAVTLayout layout : mLayoutPool) {
+            layout.reset();
+        }
+        mItems = null;
+        mCheckboxInit = true;
+    }
+
+
     @Override
     public IAnswerData getAnswer() {
         Vector<Selection> vc = new Vector<Selection>();
@@ -88,6 +120,7 @@ public class SelectMultiWidget extends LinearLayout implements IQuestionWidget {
     @Override
     public void buildView(final FormEntryPrompt prompt) {
         mItems = prompt.getSelectChoices();
+        mReadOnly = prompt.isReadOnly();
 
         setOrientation(LinearLayout.VERTICAL);
 
@@ -98,36 +131,33 @@ public class SelectMultiWidget extends LinearLayout implements IQuestionWidget {
 
         if (prompt.getSelectChoices() != null) {
             for (int i = 0; i < mItems.size(); i++) {
-                // no checkbox group so id by answer + offset
-                CheckBox c = new CheckBox(getContext());
-
-                // when clicked, check for readonly before toggling
-                c.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
-                    @Override
-                    public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
-                        if (!mCheckboxInit && prompt.isReadOnly()) {
-                            if (buttonView.isChecked()) {
-                                buttonView.setChecked(false);
-                            } else {
-                                buttonView.setChecked(true);
-                            }
-                        }
-                    }
-                });
+                if (i == mCheckBoxPool.size()) {
+                    CheckBox c = new CheckBox(getContext());
+                    c.setOnCheckedChangeListener(mReadOnlyListener);
+                    mCheckBoxPool.add(c);
+                    mLayoutPool.add(new IAVTLayout(getContext()));
+                    ImageView divider = new ImageView(getContext());
+                    divider.setBackgroundResource(android.R.drawable.divider_horizontal_bright);
+                    mDividerPool.add(divider);
+                }
 
+                // no checkbox group so id by answer + offset
+                CheckBox c = mCheckBoxPool.get(i);
                 c.setId(CHECKBOX_ID + i);
                 c.setText(prompt.getSelectChoiceText(mItems.get(i)));
                 c.setTextSize(TypedValue.COMPLEX_UNIT_DIP, QuestionView.APPLICATION_FONTSIZE);
                 c.setFocusable(!prompt.isReadOnly());
                 c.setEnabled(!prompt.isReadOnly());
+                boolean checked = false;
                 for (int vi = 0; vi < ve.size(); vi++) {
                     // match based on value, not key
                     if (mItems.get(i).getValue().equals(ve.elementAt(vi).getValue())) {
-                        c.setChecked(true);
+                        checked = true;
                         break;
                     }
 
                 }
+                c.setChecked(checked);
 
                 String audioURI = null;
                 audioURI =
@@ -145,15 +175,13 @@ public class SelectMultiWidget extends LinearLayout implements IQuestionWidget {
                 String bigImageURI = null;
                 bigImageURI = prompt.getSpecialFormSelectChoiceText(mItems.get(i), "big-image");
 
-                IAVTLayout mediaLayout = new IAVTLayout(getContext());
+                IAVTLayout mediaLayout = mLayoutPool.get(i);
                 mediaLayout.setAVT(c, audioURI, imageURI, videoURI, bigImageURI);
                 addView(mediaLayout);
 
                 // Last, add the dividing line between elements (except for the last element)
-                ImageView divider = new ImageView(getContext());
-                divider.setBackgroundResource(android.R.drawable.divider_horizontal_bright);
                 if (i != mItems.size() - 1) {
-                    addView(divider);
+                    addView(mDividerPool.get(i));
                 }
 
             }
@@ -44,12 +44,18 @@ import java.util.Vector;
  * TODO: We're not actually using the RadioGroup anymore, so this should probably be changed to a
  * LinearLayout
  */
-public class SelectOneWidget extends RadioGroup implements IQuestionWidget, OnCheckedChangeListener {
+public class SelectOneWidget extends RadioGroup implements IRecyclableWidget,
+        OnCheckedChangeListener {
     private static final int RANDOM_BUTTON_ID = 4853487;
     Vector<SelectChoice> mItems;
 
     Vector<RadioButton> buttons;
 
+    // per-choice views, kept when the widget is recycled and bound to the next prompt's choices
+    private final Vector<RadioButton> mButtonPool = new Vector<RadioButton>();
+    private final Vector<IAVTLayout> mLayoutPool = new Vector<IAVTLayout>();
+    private final Vector<ImageView> mDividerPool = new Vector<ImageView>();
+
 
     public SelectOneWidget(Context context) {
         super(context);
@@ -67,6 +73,17 @@ public class SelectOneWidget extends RadioGroup implements IQuestionWidget, OnCh
     }
 
 
+    @Override
+    public void reset() {
+        removeAllViews();
+        for (IAVTLayout layout : mLayoutPool) {
+            layout.reset();
+        }
+        mItems = null;
+        buttons = null;
+    }
+
+
     @Override
     public IAnswerData getAnswer() {
         int i = getCheckedId();
@@ -91,18 +108,24 @@ public class SelectOneWidget extends RadioGroup implements IQuestionWidget, OnCh
 
         if (prompt.getSelectChoices() != null) {
             for (int i = 0; i < mItems.size(); i++) {
-                RadioButton r = new RadioButton(getContext());
-                r.setOnCheckedChangeListener(this);
+                if (i == mButtonPool.size()) {
+                    RadioButton r = new RadioButton(getContext());
+                    r.setOnCheckedChangeListener(this);
+                    mButtonPool.add(r);
+                    mLayoutPool.add(new IAVTLayout(getContext()));
+                    ImageView divider = new ImageView(getContext());
+                    divider.setBackgroundResource(android.R.drawable.divider_horizontal_bright);
+                    mDividerPool.add(divider);
+                }
+
+                RadioButton r = mButtonPool.get(i);
                 r.setText(prompt.getSelectChoiceText(mItems.get(i)));
                 r.setTextSize(TypedValue.COMPLEX_UNIT_DIP, QuestionView.APPLICATION_FONTSIZE);
                 r.setId(i + RANDOM_BUTTON_ID);
                 r.setEnabled(!prompt.isReadOnly());
                 r.setFocusable(!prompt.isReadOnly());
                 buttons.add(r);
-
-                if (mItems.get(i).getValue().equals(s)) {
-                    r.setChecked(true);
-                }
+                r.setChecked(mItems.get(i).getValue().equals(s));
 
                 String audioURI = null;
                 audioURI =
@@ -120,15 +143,13 @@ public class SelectOneWidget extends RadioGroup implements IQuestionWidget, OnCh
                 String bigImageURI = null;
                 bigImageURI = prompt.getSpecialFormSelectChoiceText(mItems.get(i), "big-image");
 
-                IAVTLayout mediaLayout = new IAVTLayout(getContext());
+                IAVTLayout mediaLayout = mLayoutPool.get(i);
                 mediaLayout.setAVT(r, audioURI, imageURI, videoURI, bigImageURI);
                 addView(mediaLayout);
 
                 // Last, add the dividing line (except for the last element)
-                ImageView divider = new ImageView(getContext());
-                divider.setBackgroundResource(android.R.drawable.divider_horizontal_bright);
                 if (i != mItems.size() - 1) {
-                    mediaLayout.addDivider(divider);
+                    mediaLayout.addDivider(mDividerPool.get(i));
                 }
             }
         }
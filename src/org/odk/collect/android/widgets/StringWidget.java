@@ -21,6 +21,7 @@ import org.odk.collect.android.views.QuestionView;
 
 import android.R;
 import android.content.Context;
+import android.graphics.drawable.Drawable;
 import android.text.method.TextKeyListener;
 import android.text.method.TextKeyListener.Capitalize;
 import android.util.AttributeSet;
@@ -35,10 +36,13 @@ import android.widget.EditText;
  * @author Carl Hartung (carlhartung@gmail.com)
  * @author Yaw Anokwa (yanokwa@gmail.com)
  */
-public class StringWidget extends EditText implements IQuestionWidget {
+public class StringWidget extends EditText implements IRecyclableWidget {
     
     boolean mReadOnly = false;
 
+    // put back when a read only widget is reset
+    private Drawable mDefaultBackground;
+
     public StringWidget(Context context) {
         this(context, null);
     }
@@ -51,6 +55,7 @@ public class StringWidget extends EditText implements IQuestionWidget {
 
     public StringWidget(Context context, AttributeSet attrs, int defStyle) {
         super(context, attrs, defStyle);
+        mDefaultBackground = getBackground();
     }
 
 
@@ -60,6 +65,17 @@ public class StringWidget extends EditText implements IQuestionWidget {
     }
 
 
+    @Override
+    public void reset() {
+        setText(null);
+        mReadOnly = false;
+        setBackgroundDrawable(mDefaultBackground);
+        setFocusable(true);
+        setFocusableInTouchMode(true);
+        setClickable(true);
+    }
+
+
     @Override
 	public IAnswerData getAnswer() {
         String s = getText().toString();
@@ -14,7 +14,11 @@
 
 package org.odk.collect.android.widgets;
 
+import java.util.Vector;
+
 import org.javarosa.core.model.Constants;
+import org.javarosa.core.model.SelectChoice;
+import org.javarosa.form.api.FormEntryCaption;
 import org.javarosa.form.api.FormEntryPrompt;
 
 import android.content.Context;
@@ -26,6 +30,9 @@ import android.content.Context;
  */
 public class WidgetFactory {
 
+    // selects with more choices than this are shown as a filtered list
+    private static final int LARGE_SELECT_CHOICES = 50;
+
     /**
      * Returns the appropriate QuestionWidget for the given FormEntryPrompt.
      * 
@@ -35,7 +42,37 @@ public class WidgetFactory {
      */
     static public IQuestionWidget createWidgetFromPrompt(FormEntryPrompt fep, Context context,
             String instancePath) {
+        return createWidgetFromPrompt(fep, context, instancePath, null);
+    }
+
+
+    /**
+     * Returns the appropriate QuestionWidget for the given FormEntryPrompt, reusing a widget from
+     * the pool if there is one of the right type.
+     * 
+     * @param fep prompt element to be rendered
+     * @param context Android context
+     * @param instancePath path to the instance file
+     * @param pool widgets to reuse, or null
+     */
+    static public IQuestionWidget createWidgetFromPrompt(FormEntryPrompt fep, Context context,
+            String instancePath, WidgetPool pool) {
         IQuestionWidget questionWidget = null;
+        if (isLargeSelect(fep)) {
+            // never pooled, and a pooled select widget mustn't be handed one of these
+            questionWidget = new SelectListWidget(context);
+            questionWidget.buildView(fep);
+            return questionWidget;
+        }
+        if (pool != null) {
+            questionWidget =
+                pool.obtain(WidgetPool.getKey(fep.getControlType(), fep.getDataType()));
+            if (questionWidget != null) {
+                questionWidget.buildView(fep);
+                return questionWidget;
+            }
+        }
+
         switch (fep.getControlType()) {
             case Constants.CONTROL_INPUT:
                 switch (fep.getDataType()) {
@@ -85,4 +122,44 @@ public class WidgetFactory {
         return questionWidget;
     }
 
+
+    /**
+     * @return true for a select question with more choices than can be laid out one view per
+     *         choice, which gets a {@link SelectListWidget}, unless a choice has media the list
+     *         can't show
+     */
+    public static boolean isLargeSelect(FormEntryPrompt fep) {
+        if (fep.getControlType() != Constants.CONTROL_SELECT_ONE
+                && fep.getControlType() != Constants.CONTROL_SELECT_MULTI) {
+            return false;
+        }
+        Vector<SelectChoice> choices = fep.getSelectChoices();
+        if (choices == null || choices.size() <= LARGE_SELECT_CHOICES) {
+            return false;
+        }
+        for (SelectChoice choice : choices) {
+            if (hasMedia(fep, choice)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * @return true if the choice has an image, audio or video, as the select widgets show them
+     */
+    private static boolean hasMedia(FormEntryPrompt fep, SelectChoice choice) {
+        String[] forms = {
+                FormEntryCaption.TEXT_FORM_AUDIO, FormEntryCaption.TEXT_FORM_IMAGE, "video",
+                "big-image"
+        };
+        for (String form : forms) {
+            if (fep.getSpecialFormSelectChoiceText(choice, form) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
 }
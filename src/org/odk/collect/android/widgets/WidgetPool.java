@@ -0,0 +1,104 @@
+/**
+ * Copyright (C) 2012 Grameen Foundation
+Licensed under the Apache License, Version 2.0 (the "License"); you may not
+use this file except in compliance with the License. You may obtain a copy of
+the License at http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations under
+the License.
+ */
+
+package org.odk.collect.android.widgets;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+
+import org.javarosa.core.model.Constants;
+
+import android.view.View;
+import android.view.ViewGroup;
+
+/**
+ * Widgets taken off screen, kept by control and data type so {@link WidgetFactory} can build them
+ * again for the next question of the same type instead of allocating new ones. A pool holds
+ * widgets made with one Context, so each activity keeps its own and clears it when it is
+ * destroyed.
+ */
+public class WidgetPool {
+
+    // a swipe only ever frees one widget, and the look-ahead views need a couple more
+    private static final int MAX_PER_TYPE = 3;
+
+    private final HashMap<Integer, LinkedList<IRecyclableWidget>> mWidgets =
+        new HashMap<Integer, LinkedList<IRecyclableWidget>>();
+
+    private int mHits;
+    private int mMisses;
+
+
+    static int getKey(int controlType, int dataType) {
+        // only input controls pick their widget by data type
+        return controlType == Constants.CONTROL_INPUT ? (controlType << 16) | dataType
+                : controlType << 16;
+    }
+
+
+    /**
+     * Takes a widget out of the pool.
+     * 
+     * @return a reset widget, or null if there isn't one of this type
+     */
+    IRecyclableWidget obtain(int key) {
+        LinkedList<IRecyclableWidget> widgets = mWidgets.get(key);
+        if (widgets == null || widgets.isEmpty()) {
+            mMisses++;
+            return null;
+        }
+        mHits++;
+        return widgets.removeFirst();
+    }
+
+
+    /**
+     * Gives a widget back to the pool. Widgets that can't be reset, and widgets beyond what the
+     * pool keeps, are left for the garbage collector.
+     */
+    public void recycle(IQuestionWidget widget, int controlType, int dataType) {
+        if (!(widget instanceof IRecyclableWidget)) {
+            return;
+        }
+        Integer key = getKey(controlType, dataType);
+        LinkedList<IRecyclableWidget> widgets = mWidgets.get(key);
+        if (widgets == null) {
+            widgets = new LinkedList<IRecyclableWidget>();
+            mWidgets.put(key, widgets);
+        }
+        if (widgets.size() >= MAX_PER_TYPE) {
+            return;
+        }
+
+        View v = (View) widget;
+        if (v.getParent() != null) {
+            ((ViewGroup) v.getParent()).removeView(v);
+        }
+        ((IRecyclableWidget) widget).reset();
+        widgets.add((IRecyclableWidget) widget);
+    }
+
+
+    public void clear() {
+        mWidgets.clear();
+    }
+
+
+    public int getHits() {
+        return mHits;
+    }
+
+
+    public int getMisses() {
+        return mMisses;
+    }
+}
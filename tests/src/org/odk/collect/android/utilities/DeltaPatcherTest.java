@@ -0,0 +1,146 @@
+/**
+ * Copyright (C) 2012 Grameen Foundation
+Licensed under the Apache License, Version 2.0 (the "License"); you may not
+use this file except in compliance with the License. You may obtain a copy of
+the License at http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations under
+the License.
+ */
+
+package org.odk.collect.android.utilities;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests applying ed scripts with {@link DeltaPatcher}.
+ */
+public class DeltaPatcherTest extends TestCase {
+
+    private File mBase;
+
+
+    @Override
+    protected void setUp() throws Exception {
+        mBase = File.createTempFile("base", ".xml");
+    }
+
+
+    @Override
+    protected void tearDown() throws Exception {
+        mBase.delete();
+    }
+
+
+    public void testChangeDeleteAndAppend() throws Exception {
+        String base = "one\ntwo\nthree\nfour\nfive\n";
+        // last change first, as diff -e writes them
+        String delta = "5a\nsix\n.\n3,4c\nTHREE\n.\n1d\n";
+        assertEquals("two\nTHREE\nfive\nsix\n", patch(base, delta));
+    }
+
+
+    public void testAppendAtStart() throws Exception {
+        assertEquals("zero\none\n", patch("one\n", "0a\nzero\n.\n"));
+    }
+
+
+    public void testEscapedDotLine() throws Exception {
+        String base = "<a>\n</a>\n";
+        String delta = "1a\nx\n..\n.\ns/.//\na\ny\n.\n";
+        assertEquals("<a>\nx\n.\ny\n</a>\n", patch(base, delta));
+    }
+
+
+    public void testEscapedDotAsLastLine() throws Exception {
+        assertEquals("a\n.\nb\n", patch("a\nb\n", "1a\n..\n.\ns/.//\n"));
+    }
+
+
+    public void testEscapedDotInChange() throws Exception {
+        assertEquals("a\n.\n.\nc\n", patch("a\nb\nc\n", "2c\n..\n.\ns/.//\na\n..\n.\ns/.//\n"));
+    }
+
+
+    public void testKeepsCrlfLines() throws Exception {
+        String base = "<h>\r\n<b>old</b>\r\n</h>\r\n";
+        String delta = "2c\r\n<b>new</b>\r\n.\r\n";
+        assertEquals("<h>\r\n<b>new</b>\r\n</h>\r\n", patch(base, delta));
+    }
+
+
+    public void testEscapedDotWithCrlf() throws Exception {
+        String delta = "1a\r\n..\r\n.\r\ns/.//\r\n";
+        assertEquals("a\r\n.\r\nb\r\n", patch("a\r\nb\r\n", delta));
+    }
+
+
+    public void testKeepsLastLineWithoutNewline() throws Exception {
+        assertEquals("new\nend", patch("old\nend", "1c\nnew\n.\n"));
+    }
+
+
+    public void testRoundTripsGeneratedDeltas() throws Exception {
+        String[][] cases = {
+                { "a\nb\nc\n", "a\nB\nc\n" },
+                { "a\nb\nc\n", "a\nc\n" },
+                { "a\nc\n", "a\nb\nc\n" },
+                { "a\n", ".\n.\n" },
+                { "x\r\ny\r\n", "x\r\n.\r\nz\r\ny\r\n" },
+                { "", "first\n" },
+        };
+        for (String[] c : cases) {
+            assertEquals(c[1], patch(c[0], DiffEWriter.diff(c[0], c[1])));
+        }
+    }
+
+
+    public void testRejectsLinesPastTheEnd() throws Exception {
+        assertFails("a\n", "3d\n");
+        assertFails("a\n", "2a\nb\n.\n");
+    }
+
+
+    public void testRejectsBadCommands() throws Exception {
+        assertFails("a\n", "1x\n");
+        assertFails("a\n", "s/.//\n");
+        assertFails("a\n", "1a\nb\n.\ns/.//\n");
+    }
+
+
+    public void testRejectsCutOffText() throws Exception {
+        assertFails("a\n", "1a\nb\n");
+        assertFails("a\n", "1a\nb");
+    }
+
+
+    private String patch(String base, String delta) throws IOException {
+        FileOutputStream os = new FileOutputStream(mBase);
+        try {
+            os.write(base.getBytes("UTF-8"));
+        } finally {
+            os.close();
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DeltaPatcher.apply(mBase, new ByteArrayInputStream(delta.getBytes("UTF-8")), out);
+        return new String(out.toByteArray(), "UTF-8");
+    }
+
+
+    private void assertFails(String base, String delta) {
+        try {
+            patch(base, delta);
+            fail("expected " + delta + " to be rejected");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
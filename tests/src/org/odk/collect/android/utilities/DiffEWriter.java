@@ -0,0 +1,101 @@
+/**
+ * Copyright (C) 2012 Grameen Foundation
+Licensed under the Apache License, Version 2.0 (the "License"); you may not
+use this file except in compliance with the License. You may obtain a copy of
+the License at http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations under
+the License.
+ */
+
+package org.odk.collect.android.utilities;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes "diffe" deltas the way diff -e does, for the stand-in server in the delta tests. The
+ * lines that differ between the common start and the common end of the two texts become one
+ * command, which is enough to exercise the client.
+ */
+public class DiffEWriter {
+
+    /**
+     * @return an ed script that turns oldText into newText
+     */
+    public static String diff(String oldText, String newText) {
+        List<String> a = split(oldText);
+        List<String> b = split(newText);
+
+        int start = 0;
+        while (start < a.size() && start < b.size() && a.get(start).equals(b.get(start))) {
+            start++;
+        }
+        int end = 0;
+        while (end < a.size() - start && end < b.size() - start
+                && a.get(a.size() - 1 - end).equals(b.get(b.size() - 1 - end))) {
+            end++;
+        }
+
+        int oldFirst = start + 1;
+        int oldLast = a.size() - end;
+        List<String> text = b.subList(start, b.size() - end);
+        StringBuilder script = new StringBuilder();
+        if (oldFirst > oldLast && text.isEmpty()) {
+            return "";
+        } else if (oldFirst > oldLast) {
+            script.append(start).append("a\n");
+        } else {
+            script.append(oldFirst);
+            if (oldLast > oldFirst) {
+                script.append(',').append(oldLast);
+            }
+            script.append(text.isEmpty() ? "d\n" : "c\n");
+        }
+        if (!text.isEmpty()) {
+            appendText(script, text);
+        }
+        return script.toString();
+    }
+
+
+    /**
+     * Adds the text of an a or c command, escaping "." lines as diff -e does.
+     */
+    private static void appendText(StringBuilder script, List<String> text) {
+        boolean adding = true;
+        for (String line : text) {
+            if (!adding) {
+                script.append("a\n");
+                adding = true;
+            }
+            if (line.equals(".\n") || line.equals(".\r\n")) {
+                script.append('.').append(line).append(".\ns/.//\n");
+                adding = false;
+            } else {
+                script.append(line);
+            }
+        }
+        if (adding) {
+            script.append(".\n");
+        }
+    }
+
+
+    /**
+     * Splits text into lines, keeping their terminators.
+     */
+    static List<String> split(String text) {
+        ArrayList<String> lines = new ArrayList<String>();
+        int start = 0;
+        while (start < text.length()) {
+            int end = text.indexOf('\n', start);
+            end = end == -1 ? text.length() : end + 1;
+            lines.add(text.substring(start, end));
+            start = end;
+        }
+        return lines;
+    }
+}
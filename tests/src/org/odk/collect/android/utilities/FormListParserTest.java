@@ -0,0 +1,87 @@
+/**
+ * Copyright (C) 2012 Grameen Foundation
+Licensed under the Apache License, Version 2.0 (the "License"); you may not
+use this file except in compliance with the License. You may obtain a copy of
+the License at http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations under
+the License.
+ */
+
+package org.odk.collect.android.utilities;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+/**
+ * Tests reading form lists with {@link FormListParser}.
+ */
+public class FormListParserTest extends TestCase {
+
+    public void testReadsAttributesInAnyOrder() throws Exception {
+        List<String[]> forms =
+            parse("<forms>"
+                    + "<form url=\"http://s/a\" hash=\"md5:1\" version=\"2\">A</form>"
+                    + "<form version=\"3\" manifestUrl=\"http://s/bm\" hash=\"md5:2\""
+                    + " url=\"http://s/b\">B</form>" + "</forms>");
+        assertEquals(2, forms.size());
+        assertForm(forms.get(0), "A", "http://s/a", "md5:1", "2", null);
+        assertForm(forms.get(1), "B", "http://s/b", "md5:2", "3", "http://s/bm");
+    }
+
+
+    public void testLeavesMissingAttributesNull() throws Exception {
+        List<String[]> forms = parse("<forms><form url=\"http://s/a\">A</form></forms>");
+        assertForm(forms.get(0), "A", "http://s/a", null, null, null);
+    }
+
+
+    public void testTrimsNamesAndUrls() throws Exception {
+        List<String[]> forms =
+            parse("<forms>\n  <form url=\" http://s/a \">\n    A form\n  </form>\n</forms>");
+        assertForm(forms.get(0), "A form", "http://s/a", null, null, null);
+    }
+
+
+    public void testSkipsFormsWithoutNameOrUrl() throws Exception {
+        List<String[]> forms =
+            parse("<forms><form>No url</form><form url=\"http://s/b\">  </form>"
+                    + "<form url=\"http://s/c\">C</form></forms>");
+        assertEquals(1, forms.size());
+        assertEquals("C", forms.get(0)[0]);
+    }
+
+
+    private static List<String[]> parse(String xml) throws Exception {
+        XmlPullParser parser = XmlPullParserFactory.newInstance().newPullParser();
+        parser.setInput(new StringReader(xml));
+        final List<String[]> forms = new ArrayList<String[]>();
+        FormListParser.parse(parser, new FormListParser.FormListHandler() {
+            public void formFound(String name, String url, String hash, String version,
+                    String manifestUrl) {
+                forms.add(new String[] {
+                        name, url, hash, version, manifestUrl
+                });
+            }
+        });
+        return forms;
+    }
+
+
+    private static void assertForm(String[] form, String name, String url, String hash,
+            String version, String manifestUrl) {
+        assertEquals(name, form[0]);
+        assertEquals(url, form[1]);
+        assertEquals(hash, form[2]);
+        assertEquals(version, form[3]);
+        assertEquals(manifestUrl, form[4]);
+    }
+}
@@ -0,0 +1,422 @@
+/**
+ * Copyright (C) 2012 Grameen Foundation
+Licensed under the Apache License, Version 2.0 (the "License"); you may not
+use this file except in compliance with the License. You may obtain a copy of
+the License at http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations under
+the License.
+ */
+
+package org.odk.collect.android.utilities;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests resuming downloads against a {@link StandInServer} that drops connections part way
+ * through a file, and patching forms with the deltas it makes.
+ */
+public class HttpDownloaderTest extends TestCase {
+
+    private static final String PATH = "/form.xml";
+    private static final int LENGTH = 20000;
+    private static final int DROP_AT = 8000;
+
+    private File mDir;
+    private File mStaging;
+    private File mTarget;
+    private StandInServer mServer;
+
+
+    @Override
+    protected void setUp() throws Exception {
+        mDir = File.createTempFile("downloader", "");
+        mDir.delete();
+        mDir.mkdirs();
+        mStaging = new File(mDir, "staging");
+        mTarget = new File(mDir, "form.xml");
+    }
+
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mServer != null) {
+            mServer.stop();
+        }
+        deleteAll(mDir);
+    }
+
+
+    public void testResumesAfterDroppedConnection() throws Exception {
+        final byte[] body = body(LENGTH, 'a');
+        mServer = new StandInServer(new StandInServer.Handler() {
+            public void respond(StandInServer.Request request, StandInServer.Response response)
+                    throws IOException {
+                response.header("ETag", "\"v1\"");
+                // only the first request is cut off
+                sendRange(request, response, body, request.getHeader("Range") == null);
+            }
+        });
+
+        HttpDownloader.Result r = download(md5(body));
+
+        assertEquals(md5(body), r.hash);
+        assertContent(body, mTarget);
+        List<StandInServer.Request> requests = mServer.getRequests();
+        assertEquals(2, requests.size());
+        assertNull(requests.get(0).getHeader("Range"));
+        assertEquals("bytes=" + DROP_AT + "-", requests.get(1).getHeader("Range"));
+        assertEquals("\"v1\"", requests.get(1).getHeader("If-Range"));
+        assertEquals(0, mStaging.list().length);
+    }
+
+
+    public void testKeepsPartialForTheNextDownload() throws Exception {
+        final byte[] body = body(LENGTH, 'b');
+        final int[] count = new int[1];
+        mServer = new StandInServer(new StandInServer.Handler() {
+            public void respond(StandInServer.Request request, StandInServer.Response response)
+                    throws IOException {
+                if (++count[0] == 2) {
+                    // the retry within the first download fails outright
+                    response.send(503, new byte[0]);
+                    return;
+                }
+                response.header("Last-Modified", "Tue, 10 Jan 2012 10:00:00 GMT");
+                sendRange(request, response, body, count[0] == 1);
+            }
+        });
+
+        try {
+            download(md5(body));
+            fail("expected the first download to fail");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(DROP_AT, partSize());
+        assertFalse(mTarget.exists());
+
+        HttpDownloader.Result r = download(md5(body));
+
+        assertEquals(md5(body), r.hash);
+        assertContent(body, mTarget);
+        StandInServer.Request last = mServer.getRequests().get(2);
+        assertEquals("bytes=" + DROP_AT + "-", last.getHeader("Range"));
+        assertEquals("Tue, 10 Jan 2012 10:00:00 GMT", last.getHeader("If-Range"));
+    }
+
+
+    public void testStartsOverWhenServerSendsWholeFile() throws Exception {
+        final byte[] oldBody = body(LENGTH, 'c');
+        final byte[] newBody = body(LENGTH + 100, 'd');
+        final int[] count = new int[1];
+        mServer = new StandInServer(new StandInServer.Handler() {
+            public void respond(StandInServer.Request request, StandInServer.Response response)
+                    throws IOException {
+                if (++count[0] == 1) {
+                    response.header("ETag", "\"v1\"");
+                    response.send(200, oldBody, 0, DROP_AT, oldBody.length);
+                } else {
+                    // the file changed, so If-Range makes the server ignore the Range
+                    response.header("ETag", "\"v2\"");
+                    response.send(200, newBody);
+                }
+            }
+        });
+
+        HttpDownloader.Result r = download(md5(newBody));
+
+        assertEquals(md5(newBody), r.hash);
+        assertContent(newBody, mTarget);
+        assertEquals(0, mStaging.list().length);
+    }
+
+
+    public void testDiscardsRangeOfChangedFileWhenServerIgnoresIfRange() throws Exception {
+        final byte[] oldBody = body(LENGTH, 'e');
+        final byte[] newBody = body(LENGTH, 'f');
+        final int[] count = new int[1];
+        mServer = new StandInServer(new StandInServer.Handler() {
+            public void respond(StandInServer.Request request, StandInServer.Response response)
+                    throws IOException {
+                if (++count[0] == 1) {
+                    response.header("ETag", "\"v1\"");
+                    sendRange(request, response, oldBody, true);
+                } else {
+                    // honours the Range even though If-Range names an older file
+                    response.header("ETag", "\"v2\"");
+                    sendRange(request, response, newBody, false);
+                }
+            }
+        });
+
+        try {
+            download(md5(newBody));
+            fail("expected the resumed download to be refused");
+        } catch (IOException e) {
+            // expected
+        }
+        assertFalse(mTarget.exists());
+        assertEquals(-1, partSize());
+
+        HttpDownloader.Result r = download(md5(newBody));
+
+        assertEquals(md5(newBody), r.hash);
+        assertContent(newBody, mTarget);
+        assertNull(mServer.getRequests().get(2).getHeader("Range"));
+    }
+
+
+    public void testDiscardsMixedFileWhenServerIgnoresIfRangeWithoutValidators()
+            throws Exception {
+        final byte[] oldBody = body(LENGTH, 'g');
+        final byte[] newBody = body(LENGTH, 'h');
+        final int[] count = new int[1];
+        mServer = new StandInServer(new StandInServer.Handler() {
+            public void respond(StandInServer.Request request, StandInServer.Response response)
+                    throws IOException {
+                if (++count[0] == 1) {
+                    response.header("ETag", "\"v1\"");
+                    sendRange(request, response, oldBody, true);
+                } else {
+                    // no validator on the range, so only the hash shows the file changed
+                    sendRange(request, response, newBody, false);
+                }
+            }
+        });
+
+        try {
+            download(md5(newBody));
+            fail("expected the mixed file to fail its hash check");
+        } catch (IOException e) {
+            // expected
+        }
+        assertFalse(mTarget.exists());
+        assertEquals(-1, partSize());
+    }
+
+
+    public void testPatchesOurCopyWithDelta() throws Exception {
+        final String oldForm = "<h>\n<title>Form</title>\n<body/>\n</h>\n";
+        final String newForm = "<h>\n<title>Fixed form</title>\n<body/>\n</h>\n";
+        write(mTarget, oldForm.getBytes("UTF-8"));
+        mServer = new DeltaServer(oldForm, newForm, false);
+
+        HttpDownloader.Result r = download(md5(newForm), md5(oldForm));
+
+        assertEquals(md5(newForm), r.hash);
+        assertContent(newForm.getBytes("UTF-8"), mTarget);
+        List<StandInServer.Request> requests = mServer.getRequests();
+        assertEquals(1, requests.size());
+        assertEquals(DeltaPatcher.DIFFE, requests.get(0).getHeader("A-IM"));
+        assertEquals("\"md5:" + md5(oldForm) + "\"", requests.get(0).getHeader("If-None-Match"));
+    }
+
+
+    public void testFallsBackToWholeFileWhenPatchDoesNotMatch() throws Exception {
+        final String oldForm = "<h>\n<a/>\n</h>\n";
+        final String newForm = "<h>\n<b/>\n</h>\n";
+        write(mTarget, oldForm.getBytes("UTF-8"));
+        // a delta against some other copy of the form
+        mServer = new DeltaServer("<h>\n<c/>\n<a/>\n</h>\n", newForm, false);
+
+        HttpDownloader.Result r = download(md5(newForm), md5(oldForm));
+
+        assertEquals(md5(newForm), r.hash);
+        assertContent(newForm.getBytes("UTF-8"), mTarget);
+        List<StandInServer.Request> requests = mServer.getRequests();
+        assertEquals(2, requests.size());
+        assertNull(requests.get(1).getHeader("A-IM"));
+    }
+
+
+    public void testFallsBackToWholeFileWhenDeltaIsBroken() throws Exception {
+        final String oldForm = "<h>\n<a/>\n</h>\n";
+        final String newForm = "<h>\n<b/>\n</h>\n";
+        write(mTarget, oldForm.getBytes("UTF-8"));
+        mServer = new DeltaServer(oldForm, newForm, true);
+
+        HttpDownloader.Result r = download(md5(newForm), md5(oldForm));
+
+        assertEquals(md5(newForm), r.hash);
+        assertContent(newForm.getBytes("UTF-8"), mTarget);
+        assertEquals(2, mServer.getRequests().size());
+    }
+
+
+    public void testRefusesDeltaItDidNotAskFor() throws Exception {
+        final String oldForm = "<h>\n<a/>\n</h>\n";
+        final String newForm = "<h>\n<b/>\n</h>\n";
+        write(mTarget, oldForm.getBytes("UTF-8"));
+        mServer = new StandInServer(new StandInServer.Handler() {
+            public void respond(StandInServer.Request request, StandInServer.Response response)
+                    throws IOException {
+                response.header("IM", DeltaPatcher.DIFFE);
+                response.send(226, DiffEWriter.diff(oldForm, newForm).getBytes("UTF-8"));
+            }
+        });
+
+        try {
+            download(md5(newForm), null);
+            fail("expected the delta to be refused");
+        } catch (IOException e) {
+            // expected
+        }
+        assertContent(oldForm.getBytes("UTF-8"), mTarget);
+        assertNull(mServer.getRequests().get(0).getHeader("A-IM"));
+    }
+
+
+    public void testDownloadsWholeFileFromServerWithoutDeltas() throws Exception {
+        final String oldForm = "<h>\n<a/>\n</h>\n";
+        final String newForm = "<h>\n<b/>\n</h>\n";
+        write(mTarget, oldForm.getBytes("UTF-8"));
+        mServer = new StandInServer(new StandInServer.Handler() {
+            public void respond(StandInServer.Request request, StandInServer.Response response)
+                    throws IOException {
+                response.send(200, newForm.getBytes("UTF-8"));
+            }
+        });
+
+        HttpDownloader.Result r = download(md5(newForm), md5(oldForm));
+
+        assertEquals(md5(newForm), r.hash);
+        assertContent(newForm.getBytes("UTF-8"), mTarget);
+        assertEquals(1, mServer.getRequests().size());
+    }
+
+
+    /**
+     * Serves newForm, as a delta against base when the client asks for one with base's hash.
+     */
+    private static class DeltaServer extends StandInServer {
+        DeltaServer(final String base, final String newForm, final boolean broken)
+                throws IOException {
+            super(new Handler() {
+                public void respond(Request request, Response response) throws IOException {
+                    String tags = request.getHeader("If-None-Match");
+                    if (DeltaPatcher.DIFFE.equals(request.getHeader("A-IM")) && tags != null) {
+                        String delta = broken ? "2x\n" : DiffEWriter.diff(base, newForm);
+                        response.header("IM", DeltaPatcher.DIFFE);
+                        response.send(226, delta.getBytes("UTF-8"));
+                    } else {
+                        response.send(200, newForm.getBytes("UTF-8"));
+                    }
+                }
+            });
+        }
+    }
+
+
+    private HttpDownloader.Result download(String expectedHash) throws IOException {
+        return download(expectedHash, null);
+    }
+
+
+    private HttpDownloader.Result download(String expectedHash, String baseHash)
+            throws IOException {
+        return HttpDownloader.download(mServer.getUrl(PATH), mTarget, null, expectedHash,
+            baseHash, null, mStaging);
+    }
+
+
+    /**
+     * Sends the part of body asked for by the request's Range header, or all of it. If drop is
+     * set, the connection is dropped after DROP_AT bytes of the whole file.
+     */
+    static void sendRange(StandInServer.Request request, StandInServer.Response response,
+            byte[] body, boolean drop) throws IOException {
+        String range = request.getHeader("Range");
+        int end = drop ? DROP_AT : body.length;
+        if (range == null) {
+            response.send(200, body, 0, end, body.length);
+            return;
+        }
+        int start = Integer.parseInt(range.substring("bytes=".length(), range.length() - 1));
+        response.header("Content-Range", "bytes " + start + "-" + (body.length - 1) + "/"
+                + body.length);
+        response.send(206, body, start, Math.max(start, end), body.length - start);
+    }
+
+
+    /**
+     * @return the size of the partial file in the staging folder, or -1 if there is none
+     */
+    private long partSize() {
+        String[] names = mStaging.list();
+        for (String name : names) {
+            if (name.endsWith(".part")) {
+                return new File(mStaging, name).length();
+            }
+        }
+        return -1;
+    }
+
+
+    static byte[] body(int length, char seed) {
+        byte[] body = new byte[length];
+        for (int i = 0; i < length; i++) {
+            body[i] = (byte) (seed + i % 23);
+        }
+        return body;
+    }
+
+
+    static String md5(byte[] data) throws Exception {
+        return FileUtils.getMd5String(MessageDigest.getInstance("MD5").digest(data));
+    }
+
+
+    static String md5(String text) throws Exception {
+        return md5(text.getBytes("UTF-8"));
+    }
+
+
+    static void assertContent(byte[] expected, File f) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        InputStream is = new FileInputStream(f);
+        try {
+            byte buf[] = new byte[8192];
+            int len;
+            while ((len = is.read(buf)) > 0) {
+                bytes.write(buf, 0, len);
+            }
+        } finally {
+            is.close();
+        }
+        assertTrue("content of " + f.getName(), Arrays.equals(expected, bytes.toByteArray()));
+    }
+
+
+    static void write(File f, byte[] data) throws IOException {
+        FileOutputStream os = new FileOutputStream(f);
+        try {
+            os.write(data);
+        } finally {
+            os.close();
+        }
+    }
+
+
+    static void deleteAll(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteAll(child);
+            }
+        }
+        f.delete();
+    }
+}
@@ -0,0 +1,85 @@
+/**
+ * Copyright (C) 2012 Grameen Foundation
+Licensed under the Apache License, Version 2.0 (the "License"); you may not
+use this file except in compliance with the License. You may obtain a copy of
+the License at http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations under
+the License.
+ */
+
+package org.odk.collect.android.utilities;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+
+import junit.framework.TestCase;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+/**
+ * Tests reading media manifests with {@link MediaManifestParser}.
+ */
+public class MediaManifestParserTest extends TestCase {
+
+    public void testReadsFiles() throws Exception {
+        ArrayList<MediaManifestParser.MediaFile> files =
+            parse("<manifest>"
+                    + "<mediaFile><filename>logo.png</filename><size>1234</size>"
+                    + "<hash>md5:abc</hash><downloadUrl>http://s/logo.png</downloadUrl>"
+                    + "</mediaFile>"
+                    // any order, and size is optional
+                    + "<mediaFile><downloadUrl> http://s/a.mp3 </downloadUrl>"
+                    + "<filename> a.mp3 </filename></mediaFile>" + "</manifest>");
+        assertEquals(2, files.size());
+        assertEquals("logo.png", files.get(0).filename);
+        assertEquals(1234, files.get(0).size);
+        assertEquals("md5:abc", files.get(0).hash);
+        assertEquals("http://s/logo.png", files.get(0).downloadUrl);
+        assertEquals("a.mp3", files.get(1).filename);
+        assertEquals(-1, files.get(1).size);
+        assertNull(files.get(1).hash);
+        assertEquals("http://s/a.mp3", files.get(1).downloadUrl);
+    }
+
+
+    public void testIgnoresBadSize() throws Exception {
+        ArrayList<MediaManifestParser.MediaFile> files =
+            parse("<manifest><mediaFile><filename>a.png</filename><size>big</size>"
+                    + "<downloadUrl>http://s/a</downloadUrl></mediaFile></manifest>");
+        assertEquals(-1, files.get(0).size);
+    }
+
+
+    public void testSkipsFilesThatCantBeStored() throws Exception {
+        ArrayList<MediaManifestParser.MediaFile> files =
+            parse("<manifest>"
+                    + "<mediaFile><filename>no-url.png</filename></mediaFile>"
+                    + "<mediaFile><downloadUrl>http://s/x</downloadUrl></mediaFile>"
+                    + "<mediaFile><filename>../up.png</filename>"
+                    + "<downloadUrl>http://s/up</downloadUrl></mediaFile>"
+                    + "<mediaFile><filename>.hidden</filename>"
+                    + "<downloadUrl>http://s/h</downloadUrl></mediaFile>"
+                    + "<mediaFile><filename>ok.png</filename>"
+                    + "<downloadUrl>http://s/ok</downloadUrl></mediaFile>" + "</manifest>");
+        assertEquals(1, files.size());
+        assertEquals("ok.png", files.get(0).filename);
+    }
+
+
+    public void testIgnoresTagsOutsideFiles() throws Exception {
+        ArrayList<MediaManifestParser.MediaFile> files =
+            parse("<manifest><filename>stray.png</filename></manifest>");
+        assertEquals(0, files.size());
+    }
+
+
+    private static ArrayList<MediaManifestParser.MediaFile> parse(String xml) throws Exception {
+        XmlPullParser parser = XmlPullParserFactory.newInstance().newPullParser();
+        parser.setInput(new StringReader(xml));
+        return MediaManifestParser.parse(parser);
+    }
+}
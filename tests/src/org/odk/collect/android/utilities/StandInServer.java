@@ -0,0 +1,185 @@
+/**
+ * Copyright (C) 2012 Grameen Foundation
+Licensed under the Apache License, Version 2.0 (the "License"); you may not
+use this file except in compliance with the License. You may obtain a copy of
+the License at http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations under
+the License.
+ */
+
+package org.odk.collect.android.utilities;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A local HTTP server for the download tests. Each request is answered by a {@link Handler} on a
+ * fresh connection, which is closed afterwards. Responses are written by hand, so a handler can
+ * stop part way through a body to act like a dropped connection.
+ */
+public class StandInServer {
+
+    /**
+     * A request as the server received it. Header names are lower case.
+     */
+    public static class Request {
+        public String method;
+        public String path;
+        public final Map<String, String> headers = new HashMap<String, String>();
+
+
+        public String getHeader(String name) {
+            return headers.get(name.toLowerCase());
+        }
+    }
+
+
+    /**
+     * Answers a request.
+     */
+    public interface Handler {
+        void respond(Request request, Response response) throws IOException;
+    }
+
+
+    /**
+     * Writes a response to the connection.
+     */
+    public static class Response {
+        private final OutputStream mOut;
+        private final Map<String, String> mHeaders = new HashMap<String, String>();
+
+
+        Response(OutputStream out) {
+            mOut = out;
+        }
+
+
+        public Response header(String name, String value) {
+            mHeaders.put(name, value);
+            return this;
+        }
+
+
+        /**
+         * Sends the status, headers and the whole body.
+         */
+        public void send(int status, byte[] body) throws IOException {
+            send(status, body, 0, body.length, body.length);
+        }
+
+
+        /**
+         * Sends the status and headers with a Content-Length of length, then only the bytes of
+         * body from offset to end, so the client sees the connection drop if end falls short.
+         */
+        public void send(int status, byte[] body, int offset, int end, int length)
+                throws IOException {
+            StringBuilder head = new StringBuilder();
+            head.append("HTTP/1.1 ").append(status).append(" Stand-in\r\n");
+            head.append("Content-Length: ").append(length).append("\r\n");
+            head.append("Connection: close\r\n");
+            for (Map.Entry<String, String> h : mHeaders.entrySet()) {
+                head.append(h.getKey()).append(": ").append(h.getValue()).append("\r\n");
+            }
+            head.append("\r\n");
+            mOut.write(head.toString().getBytes("ISO-8859-1"));
+            mOut.write(body, offset, end - offset);
+            mOut.flush();
+        }
+    }
+
+
+    private final ServerSocket mSocket;
+    private final Handler mHandler;
+    private final List<Request> mRequests = new ArrayList<Request>();
+    private final Thread mThread;
+
+
+    public StandInServer(Handler handler) throws IOException {
+        mHandler = handler;
+        mSocket = new ServerSocket(0);
+        mThread = new Thread(new Runnable() {
+            public void run() {
+                serve();
+            }
+        }, "StandInServer");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+
+    public String getUrl(String path) {
+        return "http://127.0.0.1:" + mSocket.getLocalPort() + path;
+    }
+
+
+    /**
+     * @return the requests received so far, oldest first
+     */
+    public List<Request> getRequests() {
+        synchronized (mRequests) {
+            return new ArrayList<Request>(mRequests);
+        }
+    }
+
+
+    public void stop() throws IOException {
+        mSocket.close();
+    }
+
+
+    private void serve() {
+        while (!mSocket.isClosed()) {
+            Socket s;
+            try {
+                s = mSocket.accept();
+            } catch (IOException e) {
+                return;
+            }
+            try {
+                Request request = readRequest(s);
+                synchronized (mRequests) {
+                    mRequests.add(request);
+                }
+                mHandler.respond(request, new Response(s.getOutputStream()));
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                try {
+                    s.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+
+    private static Request readRequest(Socket s) throws IOException {
+        BufferedReader r =
+            new BufferedReader(new InputStreamReader(s.getInputStream(), "ISO-8859-1"));
+        Request request = new Request();
+        String[] line = r.readLine().split(" ");
+        request.method = line[0];
+        request.path = line[1];
+        String header;
+        while ((header = r.readLine()) != null && header.length() > 0) {
+            int colon = header.indexOf(':');
+            request.headers.put(header.substring(0, colon).trim().toLowerCase(), header
+                    .substring(colon + 1).trim());
+        }
+        return request;
+    }
+}